@@ -0,0 +1,108 @@
+package com.epam.aidial.core.controller;
+
+import io.vertx.core.http.HttpMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the dispatch latency over the url shapes covered by ControllerSelectorTest.
+ * <ul>
+ *     <li>dispatch - the prefix trie used by ControllerSelector.</li>
+ *     <li>regex - the chain of regex patterns tried one by one in the order the selector used to try them.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ControllerSelectorBenchmark {
+
+    private static final List<Pattern> GET_PATTERNS = compile(
+            "^/+openai/deployments/([^/]+)$",
+            "^/+openai/deployments$",
+            "^/+openai/models/([^/]+)$",
+            "^/+openai/models$",
+            "^/+openai/addons/([^/]+)$",
+            "^/+openai/addons$",
+            "^/+openai/assistants/([^/]+)$",
+            "^/+openai/assistants$",
+            "^/+openai/applications/(.+?)$",
+            "^/+openai/applications$",
+            "^/v1/metadata/files/[a-zA-Z0-9]+/.*",
+            "^/v1/files/[a-zA-Z0-9]+/.*",
+            "^/v1/(conversations|prompts|applications)/[a-zA-Z0-9]+/.*",
+            "^/v1/metadata/(conversations|prompts|applications)/[a-zA-Z0-9]+/.*",
+            "^/v1/bucket$",
+            "^/v1/invitations/([a-zA-Z0-9]+)$",
+            "^/v1/invitations$",
+            "^/v1/deployments/([^/]+)/limits$",
+            "^/+v1/deployments/(.+?)/configuration$");
+
+    private static final List<Pattern> POST_PATTERNS = compile(
+            "^/+openai/deployments/(.+?)/(completions|chat/completions|embeddings)$",
+            "^/+v1/(.+?)/rate$",
+            "^/+v1/deployments/(.+?)/tokenize$",
+            "^/+v1/deployments/(.+?)/truncate_prompt$",
+            "^/v1/ops/resource/share/(create|list|discard|revoke|copy)$",
+            "^/v1/ops/publication/(list|get|create|delete|approve|reject)$",
+            "^/v1/ops/publication/rule/list$",
+            "^/v1/ops/resource/(move|subscribe)$",
+            "^/v1/ops/publication/resource/list$",
+            "^/v1/ops/notification/(list|delete)$");
+
+    @Param({
+            "GET /openai/deployments/deployment1",
+            "GET /openai/deployments",
+            "GET /openai/applications/app1",
+            "GET /v1/metadata/files/bucket/fol%2Fder%201/",
+            "GET /v1/files/bucket/folder1/file1.txt",
+            "POST /openai/deployments/app1/completions",
+            "POST /openai/deployments/applications/bucket/my-application/chat/completions",
+            "POST /v1/deployments/app/truncate_prompt",
+            "POST /route/request"
+    })
+    private String request;
+
+    private HttpMethod method;
+    private String path;
+    private List<Pattern> patterns;
+
+    @Setup
+    public void setup() {
+        int space = request.indexOf(' ');
+        method = HttpMethod.valueOf(request.substring(0, space));
+        path = request.substring(space + 1);
+        patterns = (method == HttpMethod.GET) ? GET_PATTERNS : POST_PATTERNS;
+    }
+
+    @Benchmark
+    public Object dispatch() {
+        return ControllerSelector.match(method, path);
+    }
+
+    @Benchmark
+    public Object regex() {
+        for (Pattern pattern : patterns) {
+            Matcher matcher = pattern.matcher(path);
+            if (matcher.find()) {
+                return matcher.toMatchResult();
+            }
+        }
+
+        return null;
+    }
+
+    private static List<Pattern> compile(String... patterns) {
+        return List.of(patterns).stream().map(Pattern::compile).toList();
+    }
+}
@@ -0,0 +1,101 @@
+package com.epam.aidial.core.log;
+
+import com.epam.aidial.core.function.BaseResponseFunction;
+import com.epam.aidial.core.util.EventStreamParser;
+import com.epam.aidial.core.util.StreamingResponseAssembler;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares assembling of the streaming response after the response is finished with assembling while the events are parsed.
+ * <ul>
+ *     <li>parse - the parsing of the events which is done anyway to collect attachments.</li>
+ *     <li>parseAndAssemble - the parsing with the incremental assembling.</li>
+ *     <li>parseThenAssemble - the parsing followed by the assembling of the whole buffered response.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamingResponseAssemblyBenchmark {
+
+    private static final BaseResponseFunction NO_OP = new BaseResponseFunction(null, null) {
+        @Override
+        public Future<Void> apply(ObjectNode tree) {
+            return Future.succeededFuture();
+        }
+    };
+
+    @Param({"100", "1000", "10000"})
+    private int events;
+
+    private List<Buffer> chunks;
+    private Buffer response;
+
+    @Setup
+    public void setup() {
+        chunks = new ArrayList<>(events + 2);
+        response = Buffer.buffer();
+
+        for (int i = 0; i < events; i++) {
+            String chunk = "data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1687780896,\"model\":\"gpt-4\","
+                    + "\"choices\":[{\"index\":0,\"finish_reason\":null,\"delta\":{\"content\":\" token" + i + "\"}}],\"usage\":null}\n\n";
+            chunks.add(Buffer.buffer(chunk));
+        }
+
+        chunks.add(Buffer.buffer("data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1687780896,\"model\":\"gpt-4\","
+                + "\"choices\":[{\"index\":0,\"finish_reason\":\"stop\",\"delta\":{}}],"
+                + "\"usage\":{\"completion_tokens\":" + events + ",\"prompt_tokens\":10,\"total_tokens\":" + (events + 10) + "}}\n\n"));
+        chunks.add(Buffer.buffer("data: [DONE]\n\n"));
+
+        for (Buffer chunk : chunks) {
+            response.appendBuffer(chunk);
+        }
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return parse(NO_OP);
+    }
+
+    private boolean parse(BaseResponseFunction handler) {
+        EventStreamParser parser = new EventStreamParser(512, handler);
+        boolean done = false;
+        for (Buffer chunk : chunks) {
+            done = parser.parse(chunk).result();
+        }
+        return done;
+    }
+
+    @Benchmark
+    public String parseAndAssemble() {
+        StreamingResponseAssembler assembler = new StreamingResponseAssembler();
+        parse(new BaseResponseFunction(null, null) {
+            @Override
+            public Future<Void> apply(ObjectNode tree) {
+                assembler.append(tree);
+                return Future.succeededFuture();
+            }
+        });
+        return assembler.assemble();
+    }
+
+    @Benchmark
+    public String parseThenAssemble() {
+        parse(NO_OP);
+        return GfLogStore.assembleStreamingResponse(response);
+    }
+}
@@ -1,13 +1,17 @@
 package com.epam.aidial.core;
 
 import com.epam.aidial.core.cache.CacheClientFactory;
+import com.epam.aidial.core.cache.ResponseCache;
 import com.epam.aidial.core.config.ConfigStore;
 import com.epam.aidial.core.config.Encryption;
 import com.epam.aidial.core.config.FileConfigStore;
 import com.epam.aidial.core.config.Storage;
+import com.epam.aidial.core.config.StreamSettings;
+import com.epam.aidial.core.limiter.ConcurrencyLimiter;
+import com.epam.aidial.core.limiter.RateLeases;
 import com.epam.aidial.core.limiter.RateLimiter;
+import com.epam.aidial.core.limiter.RedisRateBuckets;
 import com.epam.aidial.core.log.GfLogStore;
-import com.epam.aidial.core.log.LogStore;
 import com.epam.aidial.core.security.AccessService;
 import com.epam.aidial.core.security.AccessTokenValidator;
 import com.epam.aidial.core.security.ApiKeyStore;
@@ -23,7 +27,9 @@ import com.epam.aidial.core.service.RuleService;
 import com.epam.aidial.core.service.ShareService;
 import com.epam.aidial.core.storage.BlobStorage;
 import com.epam.aidial.core.token.TokenStatsTracker;
+import com.epam.aidial.core.upstream.RequestHedger;
 import com.epam.aidial.core.upstream.UpstreamBalancer;
+import com.epam.aidial.core.upstream.UpstreamClients;
 import com.epam.deltix.gflog.core.LogConfigurator;
 import com.google.common.annotations.VisibleForTesting;
 import io.micrometer.core.instrument.Clock;
@@ -31,6 +37,7 @@ import io.micrometer.registry.otlp.OtlpMeterRegistry;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.sdk.autoconfigure.AutoConfiguredOpenTelemetrySdk;
 import io.vertx.config.spi.utils.JsonObjectHelper;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
@@ -52,11 +59,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.function.LongSupplier;
 import java.util.function.Supplier;
@@ -70,14 +79,18 @@ public class AiDial {
     private Vertx vertx;
     private HttpServer server;
     private HttpClient client;
+    private UpstreamClients upstreamClients;
+    private String deploymentId;
 
     private RedissonClient redis;
     private Proxy proxy;
+    private GfLogStore logStore;
 
     private AccessTokenValidator accessTokenValidator;
 
     private BlobStorage storage;
     private ResourceService resourceService;
+    private RateLeases rateLeases;
 
     private LongSupplier clock = System::currentTimeMillis;
     private Supplier<String> generator = () -> UUID.randomUUID().toString().replace("-", "");
@@ -93,9 +106,12 @@ public class AiDial {
 
             vertx = Vertx.vertx(vertxOptions);
             client = vertx.createHttpClient(new HttpClientOptions(settings("client")));
+            upstreamClients = new UpstreamClients(vertx, client, settings("client"));
 
-            LogStore logStore = new GfLogStore(vertx);
-            UpstreamBalancer upstreamBalancer = new UpstreamBalancer();
+            logStore = new GfLogStore(settings("log"));
+            UpstreamBalancer upstreamBalancer = new UpstreamBalancer(settings("circuitBreaker"));
+            RequestHedger requestHedger = new RequestHedger(settings("hedging"));
+            ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(vertx, settings("concurrencyLimiter"));
 
             if (accessTokenValidator == null) {
                 accessTokenValidator = new AccessTokenValidator(settings("identityProviders"), vertx, client);
@@ -119,26 +135,63 @@ public class AiDial {
             NotificationService notificationService = new NotificationService(resourceService, encryptionService);
             PublicationService publicationService = new PublicationService(encryptionService, resourceService, accessService,
                     ruleService, notificationService, generator, clock);
-            RateLimiter rateLimiter = new RateLimiter(vertx, resourceService);
-
-            ApiKeyStore apiKeyStore = new ApiKeyStore(resourceService, vertx);
+            JsonObject limiterSettings = settings("limiter");
+            RedisRateBuckets rateBuckets = "redis".equals(limiterSettings.getString("engine"))
+                    ? new RedisRateBuckets(redis, storage.getPrefix()) : null;
+            JsonObject leaseSettings = limiterSettings.getJsonObject("lease", new JsonObject());
+            rateLeases = (rateBuckets != null && leaseSettings.getBoolean("enabled", false))
+                    ? new RateLeases(vertx, rateBuckets, leaseSettings) : null;
+            RateLimiter rateLimiter = new RateLimiter(vertx, resourceService, rateBuckets, rateLeases);
+
+            ApiKeyStore apiKeyStore = new ApiKeyStore(resourceService, vertx, redis, settings("perRequestApiKey"), storage.getPrefix());
             ConfigStore configStore = new FileConfigStore(vertx, settings("config"), apiKeyStore);
 
             CustomApplicationService customApplicationService = new CustomApplicationService(encryptionService,
                     resourceService, shareService, accessService, settings("applications"));
 
-            TokenStatsTracker tokenStatsTracker = new TokenStatsTracker(vertx, resourceService);
+            TokenStatsTracker tokenStatsTracker = new TokenStatsTracker(vertx, redis, storage.getPrefix(),
+                    settings("tokenStats").getLong("ttl", 3_600_000L));
+            ResponseCache responseCache = new ResponseCache(vertx, redis, storage.getPrefix(), settings("responseCache"));
+
+            JsonObject responseStreamSettings = settings("responseStream");
+            StreamSettings streamSettings = new StreamSettings();
+            if (responseStreamSettings.getBoolean("bounded", false)) {
+                streamSettings.setResponseWindowSize(responseStreamSettings.getInteger("windowSize", 65536));
+            }
+
+            JsonObject requestStreamSettings = settings("requestStream");
+            if (requestStreamSettings.getBoolean("passthrough", false)) {
+                streamSettings.setPassthroughMinLength(requestStreamSettings.getInteger("minLength", 1048576));
+            }
+            streamSettings.setPassthroughCaptureSize(requestStreamSettings.getInteger("captureSize", 65536));
 
-            proxy = new Proxy(vertx, client, configStore, logStore,
-                    rateLimiter, upstreamBalancer, accessTokenValidator,
+            String version = version();
+            Supplier<Proxy> proxyFactory = () -> new Proxy(vertx, client, upstreamClients, configStore, logStore,
+                    rateLimiter, concurrencyLimiter, upstreamBalancer, requestHedger, responseCache, accessTokenValidator,
                     storage, encryptionService, apiKeyStore, tokenStatsTracker, resourceService, invitationService,
                     shareService, publicationService, accessService, lockService, resourceOperationService, ruleService,
-                    notificationService, customApplicationService, version());
+                    notificationService, customApplicationService, streamSettings, version);
+
+            JsonObject serverSettings = settings("server");
+            int instances = serverSettings.getInteger("instances", Runtime.getRuntime().availableProcessors());
+            HttpServerOptions serverOptions = new HttpServerOptions(serverSettings);
+            if (serverOptions.getPort() == 0) {
+                // the instances share the same random port only if it is negative, otherwise each of them gets its own
+                serverOptions.setPort(-1);
+            }
+            List<ProxyVerticle> verticles = new CopyOnWriteArrayList<>();
 
-            server = vertx.createHttpServer(new HttpServerOptions(settings("server"))).requestHandler(proxy);
-            open(server, HttpServer::listen);
+            deploymentId = open(vertx, it -> it.deployVerticle(() -> {
+                ProxyVerticle verticle = new ProxyVerticle(proxyFactory, serverOptions);
+                verticles.add(verticle);
+                return verticle;
+            }, new DeploymentOptions().setInstances(instances)));
 
-            log.info("Proxy started on {}", server.actualPort());
+            // all instances share the same services and listen on the same port
+            proxy = verticles.get(0).getProxy();
+            server = verticles.get(0).getServer();
+
+            log.info("Proxy started on {} with {} instances", server.actualPort(), instances);
         } catch (Throwable e) {
             log.error("Proxy failed to start:", e);
             stop();
@@ -149,8 +202,13 @@ public class AiDial {
     @VisibleForTesting
     void stop() {
         try {
-            close(server, HttpServer::close);
+            if (deploymentId != null) {
+                close(vertx, it -> it.undeploy(deploymentId));
+            }
+            close(upstreamClients, UpstreamClients::close);
             close(client, HttpClient::close);
+            close(logStore);
+            close(rateLeases);
             close(resourceService);
             close(vertx, Vertx::close);
             close(storage);
@@ -229,10 +287,10 @@ public class AiDial {
         return JsonObjectHelper.from(properties, false, true);
     }
 
-    private static <R> void open(R resource, AsyncOpener<R> opener) throws Exception {
-        CompletableFuture<R> startup = new CompletableFuture<>();
+    private static <R, T> T open(R resource, AsyncOpener<R, T> opener) throws Exception {
+        CompletableFuture<T> startup = new CompletableFuture<>();
         opener.open(resource).onSuccess(startup::complete).onFailure(startup::completeExceptionally);
-        startup.get(15, TimeUnit.SECONDS);
+        return startup.get(15, TimeUnit.SECONDS);
     }
 
     private static <R> void close(R resource, AsyncCloser<R> closer) throws Exception {
@@ -255,8 +313,8 @@ public class AiDial {
         }
     }
 
-    private interface AsyncOpener<R> {
-        Future<R> open(R resource);
+    private interface AsyncOpener<R, T> {
+        Future<T> open(R resource);
     }
 
     private interface AsyncCloser<R> {
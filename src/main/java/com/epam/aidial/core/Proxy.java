@@ -1,10 +1,13 @@
 package com.epam.aidial.core;
 
+import com.epam.aidial.core.cache.ResponseCache;
 import com.epam.aidial.core.config.ApiKeyData;
 import com.epam.aidial.core.config.Config;
 import com.epam.aidial.core.config.ConfigStore;
+import com.epam.aidial.core.config.StreamSettings;
 import com.epam.aidial.core.controller.Controller;
 import com.epam.aidial.core.controller.ControllerSelector;
+import com.epam.aidial.core.limiter.ConcurrencyLimiter;
 import com.epam.aidial.core.limiter.RateLimiter;
 import com.epam.aidial.core.log.LogStore;
 import com.epam.aidial.core.security.AccessService;
@@ -23,7 +26,9 @@ import com.epam.aidial.core.service.RuleService;
 import com.epam.aidial.core.service.ShareService;
 import com.epam.aidial.core.storage.BlobStorage;
 import com.epam.aidial.core.token.TokenStatsTracker;
+import com.epam.aidial.core.upstream.RequestHedger;
 import com.epam.aidial.core.upstream.UpstreamBalancer;
+import com.epam.aidial.core.upstream.UpstreamClients;
 import com.epam.aidial.core.util.HttpException;
 import com.epam.aidial.core.util.HttpStatus;
 import com.epam.aidial.core.util.ProxyUtil;
@@ -63,6 +68,7 @@ public class Proxy implements Handler<HttpServerRequest> {
     public static final String HEADER_UPSTREAM_ENDPOINT = "X-UPSTREAM-ENDPOINT";
     public static final String HEADER_UPSTREAM_KEY = "X-UPSTREAM-KEY";
     public static final String HEADER_UPSTREAM_ATTEMPTS = "X-UPSTREAM-ATTEMPTS";
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
     public static final String HEADER_CONTENT_TYPE_APPLICATION_JSON = "application/json";
 
     public static final int REQUEST_BODY_MAX_SIZE_BYTES = 16 * 1024 * 1024;
@@ -72,10 +78,14 @@ public class Proxy implements Handler<HttpServerRequest> {
 
     private final Vertx vertx;
     private final HttpClient client;
+    private final UpstreamClients upstreamClients;
     private final ConfigStore configStore;
     private final LogStore logStore;
     private final RateLimiter rateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
     private final UpstreamBalancer upstreamBalancer;
+    private final RequestHedger requestHedger;
+    private final ResponseCache responseCache;
     private final AccessTokenValidator tokenValidator;
     private final BlobStorage storage;
     private final EncryptionService encryptionService;
@@ -91,6 +101,7 @@ public class Proxy implements Handler<HttpServerRequest> {
     private final RuleService ruleService;
     private final NotificationService notificationService;
     private final CustomApplicationService customApplicationService;
+    private final StreamSettings streamSettings;
     private final String version;
 
     @Override
@@ -124,7 +135,7 @@ public class Proxy implements Handler<HttpServerRequest> {
     private void handleRequest(HttpServerRequest request) {
         enableCors(request);
 
-        if (request.version() != HttpVersion.HTTP_1_1) {
+        if (request.version() != HttpVersion.HTTP_1_1 && request.version() != HttpVersion.HTTP_2) {
             respond(request, HttpStatus.HTTP_VERSION_NOT_SUPPORTED);
             return;
         }
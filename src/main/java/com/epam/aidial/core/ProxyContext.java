@@ -4,6 +4,7 @@ import com.epam.aidial.core.config.ApiKeyData;
 import com.epam.aidial.core.config.Config;
 import com.epam.aidial.core.config.Deployment;
 import com.epam.aidial.core.config.Key;
+import com.epam.aidial.core.limiter.ConcurrencyLimiter;
 import com.epam.aidial.core.security.ExtractedClaims;
 import com.epam.aidial.core.token.TokenUsage;
 import com.epam.aidial.core.upstream.UpstreamRoute;
@@ -11,6 +12,8 @@ import com.epam.aidial.core.util.BufferingReadStream;
 import com.epam.aidial.core.util.HttpException;
 import com.epam.aidial.core.util.HttpStatus;
 import com.epam.aidial.core.util.ProxyUtil;
+import com.epam.aidial.core.util.StreamingResponseAssembler;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
@@ -55,12 +58,24 @@ public class ProxyContext {
     private String userHash;
     private TokenUsage tokenUsage;
     private UpstreamRoute upstreamRoute;
+    // held while the request to the deployment is in flight
+    private ConcurrencyLimiter.Permit concurrencyPermit;
     private HttpClientRequest proxyRequest;
     private Map<String, String> requestHeaders = Map.of();
     private HttpClientResponse proxyResponse;
     private Buffer requestBody;
+    // parsed once and shared by the request functions, the request body is serialized from it if it is modified.
+    // Released before the request is sent to origin
+    private ObjectNode requestTree;
+    private boolean requestTreeModified;
+    // the number of characters of the request content without whitespaces, counted for the models priced per character
+    private int requestContentLength = -1;
     private Buffer responseBody;
     private BufferingReadStream responseStream; // received from origin
+    // facts collected from the streaming response while it was forwarded
+    private StreamingResponseAssembler responseAssembler;
+    // the response is served from the response cache instead of origin
+    private boolean responseCached;
     private long requestTimestamp;
     private long requestBodyTimestamp;
     private long proxyConnectTimestamp;
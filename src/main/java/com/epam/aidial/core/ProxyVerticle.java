@@ -0,0 +1,51 @@
+package com.epam.aidial.core;
+
+import com.epam.aidial.core.util.MetricUtil;
+import io.micrometer.core.instrument.Counter;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.Supplier;
+
+/**
+ * One instance of the HTTP listener bound to its own event loop.
+ * Vert.x balances the connections accepted on the shared port among the deployed instances.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class ProxyVerticle extends AbstractVerticle {
+
+    private final Supplier<Proxy> proxyFactory;
+    private final HttpServerOptions options;
+
+    @Getter
+    private Proxy proxy;
+    @Getter
+    private HttpServer server;
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        String eventLoop = Thread.currentThread().getName();
+        Counter requests = Counter.builder("aidial.server.requests")
+                .description("Number of requests accepted by the event loop")
+                .tag("event_loop", eventLoop)
+                .register(MetricUtil.registry());
+
+        proxy = proxyFactory.get();
+        server = vertx.createHttpServer(new HttpServerOptions(options))
+                .requestHandler(request -> {
+                    requests.increment();
+                    proxy.handle(request);
+                });
+
+        server.listen()
+                .onSuccess(ignore -> log.debug("Proxy instance is listening on {}. Event loop: {}", server.actualPort(), eventLoop))
+                .<Void>mapEmpty()
+                .onComplete(startPromise);
+    }
+}
@@ -0,0 +1,222 @@
+package com.epam.aidial.core.cache;
+
+import com.epam.aidial.core.storage.BlobStorageUtil;
+import com.epam.aidial.core.util.MetricUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBatch;
+import org.redisson.api.RMap;
+import org.redisson.api.RMapAsync;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.codec.CompositeCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Caches the responses of the deployments by the hash of the request, so the identical requests are not sent to origin again.
+ * <p>
+ *     The responses are kept in two tiers: the in-process LRU limited by the total size of the bodies
+ *     and Redis shared by all instances. Both tiers expire the response in the given time after it is stored.
+ *     The responses larger than the max body size are not cached.
+ * </p>
+ */
+@Slf4j
+public class ResponseCache {
+
+    private static final Codec REDIS_MAP_CODEC = new CompositeCodec(StringCodec.INSTANCE, ByteArrayCodec.INSTANCE);
+    private static final String BODY = "body";
+    private static final String CONTENT_TYPE = "content_type";
+
+    private final Vertx vertx;
+    private final RedissonClient redis;
+    @Nullable
+    private final String prefix;
+    private final Settings settings;
+    private final Cache<String, Entry> cache;
+
+    private final Counter localHits;
+    private final Counter redisHits;
+    private final Counter misses;
+
+    public ResponseCache(Vertx vertx, RedissonClient redis, @Nullable String prefix, JsonObject settings) {
+        this.vertx = vertx;
+        this.redis = redis;
+        this.prefix = prefix;
+        this.settings = Settings.from(settings);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(this.settings.memorySize)
+                .weigher((String key, Entry entry) -> entry.body.length)
+                .expireAfterWrite(this.settings.expiration, TimeUnit.MILLISECONDS)
+                .build();
+
+        MeterRegistry registry = MetricUtil.registry();
+        localHits = Counter.builder("aidial.response.cache.hits")
+                .description("Number of responses found in the cache")
+                .tag("tier", "memory")
+                .register(registry);
+        redisHits = Counter.builder("aidial.response.cache.hits")
+                .description("Number of responses found in the cache")
+                .tag("tier", "redis")
+                .register(registry);
+        misses = Counter.builder("aidial.response.cache.misses")
+                .description("Number of responses not found in the cache")
+                .register(registry);
+        Gauge.builder("aidial.response.cache.size", cache, Cache::size)
+                .description("Number of responses in the in-process cache")
+                .register(registry);
+    }
+
+    /**
+     * Computes the key of the request from the deployment, the query, the headers included by the settings
+     * and the request body with the object fields sorted, so the formatting and the order of the fields don't matter.
+     */
+    public String key(String deployment, @Nullable String query, MultiMap headers, JsonNode body) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(deployment, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(query), StandardCharsets.UTF_8).putByte((byte) 0);
+
+        for (String header : settings.headers) {
+            hasher.putString(header, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(String.valueOf(headers.get(header)), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+
+        hasher.putString(canonicalize(body).toString(), StandardCharsets.UTF_8);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the cached response or null if the response is not cached.
+     */
+    public Future<Entry> get(String key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            localHits.increment();
+            return Future.succeededFuture(entry);
+        }
+
+        return vertx.executeBlocking(() -> {
+            RMap<String, byte[]> map = redis.getMap(redisKey(key), REDIS_MAP_CODEC);
+            Map<String, byte[]> fields = map.getAll(Set.of(BODY, CONTENT_TYPE));
+            byte[] body = fields.get(BODY);
+            if (body == null) {
+                misses.increment();
+                return null;
+            }
+
+            byte[] contentType = fields.get(CONTENT_TYPE);
+            Entry cached = new Entry((contentType == null) ? null : new String(contentType, StandardCharsets.UTF_8), body);
+            cache.put(key, cached);
+            redisHits.increment();
+            return cached;
+        }, false);
+    }
+
+    /**
+     * Stores the response unless it is larger than the max body size.
+     */
+    public Future<Void> put(String key, Entry entry) {
+        if (entry.body.length > settings.maxBodySize) {
+            return Future.succeededFuture();
+        }
+
+        cache.put(key, entry);
+        return vertx.executeBlocking(() -> {
+            RBatch batch = redis.createBatch();
+            RMapAsync<String, byte[]> map = batch.getMap(redisKey(key), REDIS_MAP_CODEC);
+            map.putAllAsync((entry.contentType == null)
+                    ? Map.of(BODY, entry.body)
+                    : Map.of(BODY, entry.body, CONTENT_TYPE, entry.contentType.getBytes(StandardCharsets.UTF_8)));
+            map.expireAsync(Duration.ofMillis(settings.expiration));
+            batch.execute();
+            return null;
+        }, false);
+    }
+
+    @VisibleForTesting
+    public void invalidateLocal() {
+        cache.invalidateAll();
+    }
+
+    private String redisKey(String key) {
+        return "response_cache:" + BlobStorageUtil.toStoragePath(prefix, key);
+    }
+
+    private static JsonNode canonicalize(JsonNode node) {
+        if (node instanceof ObjectNode object) {
+            List<String> names = new ArrayList<>();
+            object.fieldNames().forEachRemaining(names::add);
+            names.sort(null);
+
+            ObjectNode sorted = JsonNodeFactory.instance.objectNode();
+            for (String name : names) {
+                sorted.set(name, canonicalize(object.get(name)));
+            }
+            return sorted;
+        }
+
+        if (node instanceof ArrayNode array) {
+            ArrayNode copy = JsonNodeFactory.instance.arrayNode(array.size());
+            for (Iterator<JsonNode> it = array.elements(); it.hasNext(); ) {
+                copy.add(canonicalize(it.next()));
+            }
+            return copy;
+        }
+
+        return node;
+    }
+
+    /**
+     * @param contentType - the content type of the response.
+     * @param body - the response body as received from origin.
+     */
+    public record Entry(@Nullable String contentType, byte[] body) {
+    }
+
+    /**
+     * @param memorySize - the max total size in bytes of the responses kept in the in-process cache.
+     * @param maxBodySize - the max size in bytes of the cached response.
+     * @param expiration - the time in milliseconds the response is kept after it is stored.
+     * @param headers - the lower case names of the request headers which are included in the key.
+     */
+    record Settings(long memorySize, int maxBodySize, long expiration, List<String> headers) {
+
+        static Settings from(JsonObject settings) {
+            List<String> headers = new ArrayList<>();
+            settings.getJsonArray("headers", new JsonArray())
+                    .forEach(header -> headers.add(header.toString().toLowerCase()));
+
+            return new Settings(
+                    settings.getLong("memorySize", 67108864L),
+                    settings.getInteger("maxBodySize", 1048576),
+                    settings.getLong("expiration", 86400000L),
+                    List.copyOf(headers));
+        }
+    }
+}
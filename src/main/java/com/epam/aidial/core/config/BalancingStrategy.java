@@ -0,0 +1,17 @@
+package com.epam.aidial.core.config;
+
+public enum BalancingStrategy {
+    /**
+     * Upstreams are tried in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Upstream with the least number of in-flight requests is tried first.
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * Upstream with the lower latency cost of two random ones is tried first.
+     * The cost is the average time to first byte multiplied by the number of in-flight requests.
+     */
+    POWER_OF_TWO_CHOICES
+}
@@ -1,7 +1,14 @@
 package com.epam.aidial.core.config;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import io.vertx.core.http.HttpMethod;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -24,6 +31,28 @@ public class Config {
     private Set<Integer> retriableErrorCodes = Set.of();
     private Map<String, Interceptor> interceptors = Map.of();
 
+    // compiled on first use, so the routes are compiled once per config version
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private volatile RouteSelector routeSelector;
+
+    public void setRoutes(LinkedHashMap<String, Route> routes) {
+        this.routes = routes;
+        this.routeSelector = null;
+    }
+
+    public Route selectRoute(HttpMethod method, String uri) {
+        RouteSelector selector = routeSelector;
+        if (selector == null) {
+            selector = new RouteSelector(routes);
+            routeSelector = selector;
+        }
+
+        return selector.select(method, uri);
+    }
 
     public Deployment selectDeployment(String deploymentId) {
         Application application = applications.get(deploymentId);
@@ -10,6 +10,14 @@ import java.util.Set;
 public abstract class Deployment {
     private String name;
     private String endpoint;
+    /**
+     * Protocol used to connect to the endpoint, HTTP/1.1 if not set.
+     */
+    private UpstreamProtocol protocol;
+    /**
+     * The limit of concurrent streams per HTTP/2 connection to the endpoint, the limit of the endpoint is used if not set.
+     */
+    private Integer maxConcurrentStreams;
     private String displayName;
     private String displayVersion;
     private String iconUrl;
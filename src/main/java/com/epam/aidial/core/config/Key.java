@@ -7,4 +7,6 @@ public class Key {
     private String key;
     private String project;
     private String role;
+    // share of the deployment capacity when the requests are queued, the role weight is used if it is not set
+    private Double weight;
 }
@@ -15,6 +15,14 @@ public class Model extends Deployment {
     private TokenLimits limits;
     private Pricing pricing;
     private List<Upstream> upstreams = List.of();
+    private BalancingStrategy balancingStrategy = BalancingStrategy.ROUND_ROBIN;
+    // if it's set then the requests of the same conversation are routed to the same upstream while it is available and not overloaded
+    private boolean conversationAffinity;
+    // if it's set then the attempt is aborted and the next upstream is tried if the upstream doesn't respond with the headers in time
+    private Long firstByteTimeout;
+    // if it's set then the responses to embeddings and deterministic chat requests are cached by the hash of the request
+    // and the identical requests are not sent to the upstreams
+    private boolean responseCache;
     // if it's set then the model name is overridden with that name in the request body to the model adapter
     private String overrideName;
 }
\ No newline at end of file
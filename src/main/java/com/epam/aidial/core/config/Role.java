@@ -8,4 +8,6 @@ import java.util.Map;
 public class Role {
     private String name;
     private Map<String, Limit> limits;
+    // share of the deployment capacity when the requests are queued
+    private double weight = 1.0;
 }
\ No newline at end of file
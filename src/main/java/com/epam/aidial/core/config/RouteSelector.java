@@ -0,0 +1,97 @@
+package com.epam.aidial.core.config;
+
+import io.vertx.core.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the first route in the config order which matches the method and the uri.
+ * The routes are grouped by method on first use and the literal paths are looked up by the exact uri,
+ * so only the regex paths defined before the literal match are evaluated.
+ */
+class RouteSelector {
+
+    private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+    private final List<Route> routes;
+    private final Map<HttpMethod, Table> tables = new ConcurrentHashMap<>();
+
+    RouteSelector(Map<String, Route> routes) {
+        this.routes = List.copyOf(routes.values());
+    }
+
+    Route select(HttpMethod method, String uri) {
+        Table table = tables.computeIfAbsent(method, this::compile);
+        Integer exact = table.exact.get(uri);
+        int limit = (exact == null) ? Integer.MAX_VALUE : exact;
+
+        for (Candidate candidate : table.candidates) {
+            if (candidate.index > limit) {
+                break;
+            }
+
+            if (candidate.path == null || candidate.path.matcher(uri).matches()) {
+                return routes.get(candidate.index);
+            }
+        }
+
+        return (exact == null) ? null : routes.get(exact);
+    }
+
+    private Table compile(HttpMethod method) {
+        Table table = new Table();
+
+        for (int index = 0; index < routes.size(); index++) {
+            Route route = routes.get(index);
+            if (!route.getMethods().isEmpty() && !route.getMethods().contains(method)) {
+                continue;
+            }
+
+            if (route.getPaths().isEmpty()) {
+                table.candidates.add(new Candidate(index, null));
+                continue;
+            }
+
+            for (Pattern path : route.getPaths()) {
+                if (isLiteral(path)) {
+                    table.exact.putIfAbsent(path.pattern(), index);
+                } else {
+                    table.candidates.add(new Candidate(index, path));
+                }
+            }
+        }
+
+        return table;
+    }
+
+    private static boolean isLiteral(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return false;
+        }
+
+        String regex = pattern.pattern();
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_CHARS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static class Table {
+        final Map<String, Integer> exact = new HashMap<>();
+        final List<Candidate> candidates = new ArrayList<>();
+    }
+
+    /**
+     * @param path - the regex path or <code>null</code> if the route matches any path.
+     */
+    private record Candidate(int index, Pattern path) {
+    }
+}
@@ -0,0 +1,23 @@
+package com.epam.aidial.core.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class StreamSettings {
+    /**
+     * Size of the retained tail of bounded responses, negative value means that the whole response is retained
+     */
+    int responseWindowSize = -1;
+    /**
+     * Min length of model requests which are streamed to origin as is, negative value means that requests are always buffered
+     */
+    int passthroughMinLength = -1;
+    /**
+     * Size of the head of streamed requests which is scanned before the request is sent and retained for the prompt log
+     */
+    int passthroughCaptureSize = 65536;
+}
@@ -6,4 +6,12 @@ import lombok.Data;
 public class Upstream {
     private String endpoint;
     private String key;
-}
\ No newline at end of file
+    /**
+     * The share of requests relative to the other upstreams of the same tier.
+     */
+    private int weight = 1;
+    /**
+     * The upstreams of the lower tier are tried first, the next tier is used only when they are rate limited or failing.
+     */
+    private int tier;
+}
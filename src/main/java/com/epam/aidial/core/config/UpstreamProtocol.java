@@ -0,0 +1,16 @@
+package com.epam.aidial.core.config;
+
+public enum UpstreamProtocol {
+    /**
+     * HTTP/1.1 over a pooled connection per in-flight request.
+     */
+    HTTP_1_1,
+    /**
+     * HTTP/2 negotiated with ALPN over TLS or with the upgrade over cleartext, falls back to HTTP/1.1.
+     */
+    H2,
+    /**
+     * HTTP/2 over cleartext with prior knowledge, the upstream must accept it.
+     */
+    H2C
+}
@@ -8,197 +8,99 @@ import com.epam.aidial.core.util.UrlUtil;
 import io.vertx.core.http.HttpMethod;
 import lombok.experimental.UtilityClass;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @UtilityClass
 public class ControllerSelector {
 
-    private static final Pattern PATTERN_POST_DEPLOYMENT = Pattern.compile("^/+openai/deployments/(.+?)/(completions|chat/completions|embeddings)$");
-    private static final Pattern PATTERN_DEPLOYMENT = Pattern.compile("^/+openai/deployments/([^/]+)$");
-    private static final Pattern PATTERN_DEPLOYMENTS = Pattern.compile("^/+openai/deployments$");
+    private static final PathDispatcher<ControllerFactory> DISPATCHER = new PathDispatcher<>();
 
-    private static final Pattern PATTERN_MODEL = Pattern.compile("^/+openai/models/([^/]+)$");
-    private static final Pattern PATTERN_MODELS = Pattern.compile("^/+openai/models$");
-
-    private static final Pattern PATTERN_ADDON = Pattern.compile("^/+openai/addons/([^/]+)$");
-    private static final Pattern PATTERN_ADDONS = Pattern.compile("^/+openai/addons$");
-
-    private static final Pattern PATTERN_ASSISTANT = Pattern.compile("^/+openai/assistants/([^/]+)$");
-    private static final Pattern PATTERN_ASSISTANTS = Pattern.compile("^/+openai/assistants$");
-
-    private static final Pattern PATTERN_APPLICATION = Pattern.compile("^/+openai/applications/(.+?)$");
-    private static final Pattern PATTERN_APPLICATIONS = Pattern.compile("^/+openai/applications$");
-
-
-    private static final Pattern PATTERN_BUCKET = Pattern.compile("^/v1/bucket$");
-
-    private static final Pattern PATTERN_FILES = Pattern.compile("^/v1/files/[a-zA-Z0-9]+/.*");
-    private static final Pattern PATTERN_FILES_METADATA = Pattern.compile("^/v1/metadata/files/[a-zA-Z0-9]+/.*");
-
-    private static final Pattern PATTERN_RESOURCE = Pattern.compile("^/v1/(conversations|prompts|applications)/[a-zA-Z0-9]+/.*");
-    private static final Pattern PATTERN_RESOURCE_METADATA = Pattern.compile("^/v1/metadata/(conversations|prompts|applications)/[a-zA-Z0-9]+/.*");
-
-    // deployment feature patterns
-    private static final Pattern PATTERN_RATE_RESPONSE = Pattern.compile("^/+v1/(.+?)/rate$");
-    private static final Pattern PATTERN_TOKENIZE = Pattern.compile("^/+v1/deployments/(.+?)/tokenize$");
-    private static final Pattern PATTERN_TRUNCATE_PROMPT = Pattern.compile("^/+v1/deployments/(.+?)/truncate_prompt$");
-    private static final Pattern PATTERN_CONFIGURATION = Pattern.compile("^/+v1/deployments/(.+?)/configuration$");
-
-    private static final Pattern SHARE_RESOURCE_OPERATIONS = Pattern.compile("^/v1/ops/resource/share/(create|list|discard|revoke|copy)$");
-    private static final Pattern INVITATIONS = Pattern.compile("^/v1/invitations$");
-    private static final Pattern INVITATION = Pattern.compile("^/v1/invitations/([a-zA-Z0-9]+)$");
-    private static final Pattern PUBLICATIONS = Pattern.compile("^/v1/ops/publication/(list|get|create|delete|approve|reject)$");
-    private static final Pattern PUBLISHED_RESOURCES = Pattern.compile("^/v1/ops/publication/resource/list$");
-    private static final Pattern PUBLICATION_RULES = Pattern.compile("^/v1/ops/publication/rule/list$");
-
-    private static final Pattern RESOURCE_OPERATIONS = Pattern.compile("^/v1/ops/resource/(move|subscribe)$");
-
-    private static final Pattern DEPLOYMENT_LIMITS = Pattern.compile("^/v1/deployments/([^/]+)/limits$");
-
-    private static final Pattern NOTIFICATIONS = Pattern.compile("^/v1/ops/notification/(list|delete)$");
-
-    public Controller select(Proxy proxy, ProxyContext context) {
-        String path = context.getRequest().path();
-        HttpMethod method = context.getRequest().method();
-        Controller controller = null;
-
-        if (method == HttpMethod.GET) {
-            controller = selectGet(proxy, context, path);
-        } else if (method == HttpMethod.POST) {
-            controller = selectPost(proxy, context, path);
-        } else if (method == HttpMethod.DELETE) {
-            controller = selectDelete(proxy, context, path);
-        } else if (method == HttpMethod.PUT) {
-            controller = selectPut(proxy, context, path);
-        }
-
-        return (controller == null) ? new RouteController(proxy, context) : controller;
-    }
-
-    private static Controller selectGet(Proxy proxy, ProxyContext context, String path) {
-        Matcher match;
-
-        match = match(PATTERN_DEPLOYMENT, path);
-        if (match != null) {
+    static {
+        // GET routes
+        get("/+openai/deployments/{id}", (proxy, context, path, params) -> {
             DeploymentController controller = new DeploymentController(context);
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
             return () -> controller.getDeployment(deploymentId);
-        }
-
-        match = match(PATTERN_DEPLOYMENTS, path);
-        if (match != null) {
+        });
+        get("/+openai/deployments", (proxy, context, path, params) -> {
             DeploymentController controller = new DeploymentController(context);
             return controller::getDeployments;
-        }
-
-        match = match(PATTERN_MODEL, path);
-        if (match != null) {
+        });
+        get("/+openai/models/{id}", (proxy, context, path, params) -> {
             ModelController controller = new ModelController(context);
-            String modelId = UrlUtil.decodePath(match.group(1));
+            String modelId = UrlUtil.decodePath(params.get("id"));
             return () -> controller.getModel(modelId);
-        }
-
-        match = match(PATTERN_MODELS, path);
-        if (match != null) {
+        });
+        get("/+openai/models", (proxy, context, path, params) -> {
             ModelController controller = new ModelController(context);
             return controller::getModels;
-        }
-
-        match = match(PATTERN_ADDON, path);
-        if (match != null) {
+        });
+        get("/+openai/addons/{id}", (proxy, context, path, params) -> {
             AddonController controller = new AddonController(context);
-            String addonId = UrlUtil.decodePath(match.group(1));
+            String addonId = UrlUtil.decodePath(params.get("id"));
             return () -> controller.getAddon(addonId);
-        }
-
-        match = match(PATTERN_ADDONS, path);
-        if (match != null) {
+        });
+        get("/+openai/addons", (proxy, context, path, params) -> {
             AddonController controller = new AddonController(context);
             return controller::getAddons;
-        }
-
-        match = match(PATTERN_ASSISTANT, path);
-        if (match != null) {
+        });
+        get("/+openai/assistants/{id}", (proxy, context, path, params) -> {
             AssistantController controller = new AssistantController(context);
-            String assistantId = UrlUtil.decodePath(match.group(1));
+            String assistantId = UrlUtil.decodePath(params.get("id"));
             return () -> controller.getAssistant(assistantId);
-        }
-
-        match = match(PATTERN_ASSISTANTS, path);
-        if (match != null) {
+        });
+        get("/+openai/assistants", (proxy, context, path, params) -> {
             AssistantController controller = new AssistantController(context);
             return controller::getAssistants;
-        }
-
-        match = match(PATTERN_APPLICATION, path);
-        if (match != null) {
+        });
+        get("/+openai/applications/{id+}", (proxy, context, path, params) -> {
             ApplicationController controller = new ApplicationController(context, proxy);
-            String application = UrlUtil.decodePath(match.group(1));
+            String application = UrlUtil.decodePath(params.get("id"));
             return () -> controller.getApplication(application);
-        }
-
-        match = match(PATTERN_APPLICATIONS, path);
-        if (match != null) {
+        });
+        get("/+openai/applications", (proxy, context, path, params) -> {
             ApplicationController controller = new ApplicationController(context, proxy);
             return controller::getApplications;
-        }
-
-        match = match(PATTERN_FILES_METADATA, path);
-        if (match != null) {
+        });
+        get("/v1/metadata/files/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             FileMetadataController controller = new FileMetadataController(proxy, context);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_FILES, path);
-        if (match != null) {
+        });
+        get("/v1/files/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             DownloadFileController controller = new DownloadFileController(proxy, context);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_RESOURCE, path);
-        if (match != null) {
+        });
+        get("/v1/{type:conversations|prompts|applications}/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             ResourceController controller = new ResourceController(proxy, context, false);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_RESOURCE_METADATA, path);
-        if (match != null) {
+        });
+        get("/v1/metadata/{type:conversations|prompts|applications}/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             ResourceController controller = new ResourceController(proxy, context, true);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_BUCKET, path);
-        if (match != null) {
+        });
+        get("/v1/bucket", (proxy, context, path, params) -> {
             BucketController controller = new BucketController(proxy, context);
             return controller::getBucket;
-        }
-
-        match = match(INVITATION, path);
-        if (match != null) {
-            String invitationId = UrlUtil.decodePath(match.group(1));
+        });
+        get("/v1/invitations/{id:[a-zA-Z0-9]+}", (proxy, context, path, params) -> {
+            String invitationId = UrlUtil.decodePath(params.get("id"));
             InvitationController controller = new InvitationController(proxy, context);
             return () -> controller.getOrAcceptInvitation(invitationId);
-        }
-
-        match = match(INVITATIONS, path);
-        if (match != null) {
+        });
+        get("/v1/invitations", (proxy, context, path, params) -> {
             InvitationController controller = new InvitationController(proxy, context);
             return controller::getInvitations;
-        }
-
-        match = match(DEPLOYMENT_LIMITS, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+        });
+        get("/v1/deployments/{id}/limits", (proxy, context, path, params) -> {
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
             LimitController controller = new LimitController(proxy, context);
             return () -> controller.getLimits(deploymentId);
-        }
-
-        match = match(PATTERN_CONFIGURATION, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+        });
+        get("/+v1/deployments/{id+}/configuration", (proxy, context, path, params) -> {
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
             Function<Deployment, String> getter = (model) -> Optional.ofNullable(model)
                     .map(Deployment::getFeatures)
                     .map(Features::getConfigurationEndpoint)
@@ -206,23 +108,18 @@ public class ControllerSelector {
 
             DeploymentFeatureController controller = new DeploymentFeatureController(proxy, context);
             return () -> controller.handle(deploymentId, getter, false);
-        }
+        });
 
-        return null;
-    }
-
-    private static Controller selectPost(Proxy proxy, ProxyContext context, String path) {
-        Matcher match = match(PATTERN_POST_DEPLOYMENT, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
-            String deploymentApi = UrlUtil.decodePath(match.group(2));
-            DeploymentPostController controller = new DeploymentPostController(proxy, context);
-            return () -> controller.handle(deploymentId, deploymentApi);
+        // POST routes
+        for (String api : List.of("completions", "chat/completions", "embeddings")) {
+            post("/+openai/deployments/{id+}/" + api, (proxy, context, path, params) -> {
+                String deploymentId = UrlUtil.decodePath(params.get("id"));
+                DeploymentPostController controller = new DeploymentPostController(proxy, context);
+                return () -> controller.handle(deploymentId, api);
+            });
         }
-
-        match = match(PATTERN_RATE_RESPONSE, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+        post("/+v1/{id+}/rate", (proxy, context, path, params) -> {
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
 
             Function<Deployment, String> getter = (model) -> Optional.ofNullable(model)
                     .map(Deployment::getFeatures)
@@ -231,11 +128,9 @@ public class ControllerSelector {
 
             DeploymentFeatureController controller = new DeploymentFeatureController(proxy, context);
             return () -> controller.handle(deploymentId, getter, false);
-        }
-
-        match = match(PATTERN_TOKENIZE, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+        });
+        post("/+v1/deployments/{id+}/tokenize", (proxy, context, path, params) -> {
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
 
             Function<Deployment, String> getter = (model) -> Optional.ofNullable(model)
                     .map(Deployment::getFeatures)
@@ -244,11 +139,9 @@ public class ControllerSelector {
 
             DeploymentFeatureController controller = new DeploymentFeatureController(proxy, context);
             return () -> controller.handle(deploymentId, getter, true);
-        }
-
-        match = match(PATTERN_TRUNCATE_PROMPT, path);
-        if (match != null) {
-            String deploymentId = UrlUtil.decodePath(match.group(1));
+        });
+        post("/+v1/deployments/{id+}/truncate_prompt", (proxy, context, path, params) -> {
+            String deploymentId = UrlUtil.decodePath(params.get("id"));
 
             Function<Deployment, String> getter = (model) -> Optional.ofNullable(model)
                     .map(Deployment::getFeatures)
@@ -257,114 +150,83 @@ public class ControllerSelector {
 
             DeploymentFeatureController controller = new DeploymentFeatureController(proxy, context);
             return () -> controller.handle(deploymentId, getter, true);
-        }
-
-        match = match(SHARE_RESOURCE_OPERATIONS, path);
-        if (match != null) {
-            String operation = match.group(1);
+        });
+        post("/v1/ops/resource/share/{operation:create|list|discard|revoke|copy}", (proxy, context, path, params) -> {
+            String operation = params.get("operation");
             ShareController.Operation op = ShareController.Operation.valueOf(operation.toUpperCase());
 
             ShareController controller = new ShareController(proxy, context);
             return () -> controller.handle(op);
-        }
-
-        match = match(PUBLICATIONS, path);
-        if (match != null) {
-            String operation = match.group(1);
-            PublicationController controller = new PublicationController(proxy, context);
-
-            return switch (operation) {
-                case "list" -> controller::listPublications;
-                case "get" -> controller::getPublication;
-                case "create" -> controller::createPublication;
-                case "delete" -> controller::deletePublication;
-                case "approve" -> controller::approvePublication;
-                case "reject" -> controller::rejectPublication;
-                default -> null;
-            };
-        }
-
-        match = match(PUBLICATION_RULES, path);
-        if (match != null) {
-            PublicationController controller = new PublicationController(proxy, context);
-            return controller::listRules;
-        }
-
-        match = match(RESOURCE_OPERATIONS, path);
-        if (match != null) {
-            String operation = match.group(1);
-            ResourceOperationController controller = new ResourceOperationController(proxy, context);
-
-            return switch (operation)  {
-                case "move" -> controller::move;
-                case "subscribe" -> controller::subscribe;
-                default -> null;
-            };
-        }
-
-        match = match(PUBLISHED_RESOURCES, path);
-        if (match != null) {
-            PublicationController controller = new PublicationController(proxy, context);
-            return controller::listPublishedResources;
-        }
-
-        match = match(NOTIFICATIONS, path);
-        if (match != null) {
-            String operation = match.group(1);
-            NotificationController controller = new NotificationController(proxy, context);
-
-            return switch (operation) {
-                case "list" -> controller::listNotifications;
-                case "delete" -> controller::deleteNotification;
-                default -> null;
-            };
-        }
-
-        return null;
-    }
-
-    private static Controller selectDelete(Proxy proxy, ProxyContext context, String path) {
-        Matcher match = match(PATTERN_FILES, path);
-        if (match != null) {
+        });
+        post("/v1/ops/publication/list", (proxy, context, path, params) -> new PublicationController(proxy, context)::listPublications);
+        post("/v1/ops/publication/get", (proxy, context, path, params) -> new PublicationController(proxy, context)::getPublication);
+        post("/v1/ops/publication/create", (proxy, context, path, params) -> new PublicationController(proxy, context)::createPublication);
+        post("/v1/ops/publication/delete", (proxy, context, path, params) -> new PublicationController(proxy, context)::deletePublication);
+        post("/v1/ops/publication/approve", (proxy, context, path, params) -> new PublicationController(proxy, context)::approvePublication);
+        post("/v1/ops/publication/reject", (proxy, context, path, params) -> new PublicationController(proxy, context)::rejectPublication);
+        post("/v1/ops/publication/rule/list", (proxy, context, path, params) -> new PublicationController(proxy, context)::listRules);
+        post("/v1/ops/publication/resource/list", (proxy, context, path, params) -> new PublicationController(proxy, context)::listPublishedResources);
+        post("/v1/ops/resource/move", (proxy, context, path, params) -> new ResourceOperationController(proxy, context)::move);
+        post("/v1/ops/resource/subscribe", (proxy, context, path, params) -> new ResourceOperationController(proxy, context)::subscribe);
+        post("/v1/ops/notification/list", (proxy, context, path, params) -> new NotificationController(proxy, context)::listNotifications);
+        post("/v1/ops/notification/delete", (proxy, context, path, params) -> new NotificationController(proxy, context)::deleteNotification);
+
+        // DELETE routes
+        delete("/v1/files/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             DeleteFileController controller = new DeleteFileController(proxy, context);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_RESOURCE, path);
-        if (match != null) {
+        });
+        delete("/v1/{type:conversations|prompts|applications}/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             ResourceController controller = new ResourceController(proxy, context, false);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(INVITATION, path);
-        if (match != null) {
-            String invitationId = UrlUtil.decodePath(match.group(1));
+        });
+        delete("/v1/invitations/{id:[a-zA-Z0-9]+}", (proxy, context, path, params) -> {
+            String invitationId = UrlUtil.decodePath(params.get("id"));
             InvitationController controller = new InvitationController(proxy, context);
             return () -> controller.deleteInvitation(invitationId);
-        }
-
-        return null;
-    }
+        });
 
-    private static Controller selectPut(Proxy proxy, ProxyContext context, String path) {
-        Matcher match = match(PATTERN_FILES, path);
-        if (match != null) {
+        // PUT routes
+        put("/v1/files/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             UploadFileController controller = new UploadFileController(proxy, context);
             return () -> controller.handle(resourcePath(path));
-        }
-
-        match = match(PATTERN_RESOURCE, path);
-        if (match != null) {
+        });
+        put("/v1/{type:conversations|prompts|applications}/{bucket:[a-zA-Z0-9]+}/{path*}", (proxy, context, path, params) -> {
             ResourceController controller = new ResourceController(proxy, context, false);
             return () -> controller.handle(resourcePath(path));
-        }
+        });
+    }
+
+    public Controller select(Proxy proxy, ProxyContext context) {
+        String path = context.getRequest().path();
+        HttpMethod method = context.getRequest().method();
+        PathDispatcher.Match<ControllerFactory> match = match(method, path);
+        Controller controller = (match == null) ? null : match.value().create(proxy, context, path, match.params());
+        return (controller == null) ? new RouteController(proxy, context) : controller;
+    }
+
+    static PathDispatcher.Match<ControllerFactory> match(HttpMethod method, String path) {
+        return DISPATCHER.match(method, path);
+    }
+
+    private static void get(String template, ControllerFactory factory) {
+        add(HttpMethod.GET, template, factory);
+    }
+
+    private static void post(String template, ControllerFactory factory) {
+        add(HttpMethod.POST, template, factory);
+    }
 
-        return null;
+    private static void delete(String template, ControllerFactory factory) {
+        add(HttpMethod.DELETE, template, factory);
     }
 
-    private Matcher match(Pattern pattern, String path) {
-        Matcher matcher = pattern.matcher(path);
-        return matcher.find() ? matcher : null;
+    private static void put(String template, ControllerFactory factory) {
+        add(HttpMethod.PUT, template, factory);
+    }
+
+    private static void add(HttpMethod method, String template, ControllerFactory factory) {
+        DISPATCHER.add(method, template, factory);
     }
 
     private String resourcePath(String url) {
@@ -380,4 +242,13 @@ public class ControllerSelector {
 
         return url.substring(prefix.length());
     }
+
+    @FunctionalInterface
+    interface ControllerFactory {
+        /**
+         * @param path - the request path.
+         * @param params - the path parameters captured by the template.
+         */
+        Controller create(Proxy proxy, ProxyContext context, String path, Map<String, String> params);
+    }
 }
\ No newline at end of file
@@ -2,22 +2,28 @@ package com.epam.aidial.core.controller;
 
 import com.epam.aidial.core.Proxy;
 import com.epam.aidial.core.ProxyContext;
+import com.epam.aidial.core.cache.ResponseCache;
 import com.epam.aidial.core.config.ApiKeyData;
 import com.epam.aidial.core.config.Config;
 import com.epam.aidial.core.config.Deployment;
+import com.epam.aidial.core.config.Features;
 import com.epam.aidial.core.config.Interceptor;
+import com.epam.aidial.core.config.Key;
 import com.epam.aidial.core.config.Model;
 import com.epam.aidial.core.config.ModelType;
 import com.epam.aidial.core.config.Pricing;
+import com.epam.aidial.core.config.Role;
 import com.epam.aidial.core.config.Upstream;
 import com.epam.aidial.core.data.ErrorData;
 import com.epam.aidial.core.function.BaseRequestFunction;
 import com.epam.aidial.core.function.CollectRequestAttachmentsFn;
+import com.epam.aidial.core.function.CollectRequestContentLengthFn;
 import com.epam.aidial.core.function.CollectRequestDataFn;
 import com.epam.aidial.core.function.CollectResponseAttachmentsFn;
 import com.epam.aidial.core.function.enhancement.ApplyDefaultDeploymentSettingsFn;
 import com.epam.aidial.core.function.enhancement.EnhanceAssistantRequestFn;
 import com.epam.aidial.core.function.enhancement.EnhanceModelRequestFn;
+import com.epam.aidial.core.limiter.ConcurrencyLimiter;
 import com.epam.aidial.core.limiter.RateLimitResult;
 import com.epam.aidial.core.service.CustomApplicationService;
 import com.epam.aidial.core.service.PermissionDeniedException;
@@ -25,16 +31,25 @@ import com.epam.aidial.core.service.ResourceNotFoundException;
 import com.epam.aidial.core.token.TokenUsage;
 import com.epam.aidial.core.token.TokenUsageParser;
 import com.epam.aidial.core.upstream.DeploymentUpstreamProvider;
+import com.epam.aidial.core.upstream.RequestHedger;
 import com.epam.aidial.core.upstream.UpstreamProvider;
 import com.epam.aidial.core.upstream.UpstreamRoute;
 import com.epam.aidial.core.util.BufferingReadStream;
 import com.epam.aidial.core.util.HttpStatus;
+import com.epam.aidial.core.util.MetricUtil;
 import com.epam.aidial.core.util.ModelCostCalculator;
 import com.epam.aidial.core.util.ProxyUtil;
+import com.epam.aidial.core.util.RateLimitHeaders;
+import com.epam.aidial.core.util.SequenceScanner;
+import com.epam.aidial.core.util.StreamingResponseAssembler;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
 import io.netty.buffer.ByteBufInputStream;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
@@ -51,12 +66,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class DeploymentPostController {
 
+    private static final String ATTACHMENTS_FIELD = "\"attachments\"";
+
     private static final Set<Integer> DEFAULT_RETRIABLE_HTTP_CODES = Set.of(HttpStatus.TOO_MANY_REQUESTS.getCode(),
             HttpStatus.BAD_GATEWAY.getCode(), HttpStatus.GATEWAY_TIMEOUT.getCode(),
             HttpStatus.SERVICE_UNAVAILABLE.getCode());
@@ -65,6 +84,21 @@ public class DeploymentPostController {
     private final ProxyContext context;
     private final CustomApplicationService applicationService;
     private final List<BaseRequestFunction<ObjectNode>> enhancementFunctions;
+    // the request body is streamed to origin as it is received from the client
+    private boolean passthrough;
+    private long passthroughLength;
+    // the head of the client body received before the request is sent to origin
+    private Buffer passthroughHead;
+    private boolean passthroughEnded;
+    private SequenceScanner attachmentScanner;
+    private long firstByteTimer = -1;
+    // the duplicate of the embeddings request sent to the next upstream if the first one is slow to respond
+    private long hedgeTimer = -1;
+    private UpstreamRoute hedgeRoute;
+    private HttpClientRequest hedgeRequest;
+    private long hedgeConnectTimestamp;
+    // the key of the response in the response cache if the deployment caches the responses
+    private String cacheKey;
 
     public DeploymentPostController(Proxy proxy, ProxyContext context) {
         this.proxy = proxy;
@@ -74,7 +108,8 @@ public class DeploymentPostController {
                 new CollectRequestDataFn(proxy, context),
                 new ApplyDefaultDeploymentSettingsFn(proxy, context),
                 new EnhanceAssistantRequestFn(proxy, context),
-                new EnhanceModelRequestFn(proxy, context));
+                new EnhanceModelRequestFn(proxy, context),
+                new CollectRequestContentLengthFn(proxy, context));
     }
 
     public Future<?> handle(String deploymentId, String deploymentApi) {
@@ -190,10 +225,37 @@ public class DeploymentPostController {
                 context.getProject(), context.getDeployment().getName(),
                 context.getRequest().headers().size());
 
-        UpstreamProvider endpointProvider = new DeploymentUpstreamProvider(context.getDeployment());
+        // only the models of the config are limited, so the limiter doesn't keep the state of every custom application
+        ConcurrencyLimiter limiter = proxy.getConcurrencyLimiter();
+        if (!limiter.isEnabled() || !(context.getDeployment() instanceof Model)) {
+            return handleAdmission(deploymentId);
+        }
+
+        return limiter.acquire(context.getDeployment().getName(), getQueueFlow(), getQueueWeight())
+                .compose(permit -> {
+                    if (permit == null) {
+                        handleConcurrencyLimitHit(deploymentId);
+                        return Future.succeededFuture();
+                    }
+
+                    context.setConcurrencyPermit(permit);
+                    return handleAdmission(deploymentId);
+                });
+    }
+
+    /**
+     * Called when the request is admitted by the concurrency limiter.
+     */
+    private Future<?> handleAdmission(String deploymentId) {
+        UpstreamProvider endpointProvider = new DeploymentUpstreamProvider(context.getDeployment(), getAffinityKey());
         UpstreamRoute endpointRoute = proxy.getUpstreamBalancer().balance(endpointProvider);
         context.setUpstreamRoute(endpointRoute);
 
+        if (!endpointRoute.hasNext() && endpointRoute.getRetryAfter() > 0) {
+            handleUpstreamsThrottled(deploymentId, endpointRoute.getRetryAfter());
+            return Future.succeededFuture();
+        }
+
         if (!endpointRoute.hasNext()) {
             log.error("No route. Trace: {}. Span: {}. Key: {}. Deployment: {}. User sub: {}",
                     context.getTraceId(), context.getSpanId(),
@@ -204,6 +266,10 @@ public class DeploymentPostController {
         }
 
         setupProxyApiKeyData();
+        if (isPassthroughRequest()) {
+            return handlePassthrough();
+        }
+
         return proxy.getTokenStatsTracker().startSpan(context).map(ignore -> {
             context.getRequest().body()
                     .onSuccess(body -> proxy.getVertx().executeBlocking(() -> {
@@ -215,6 +281,106 @@ public class DeploymentPostController {
         });
     }
 
+    /**
+     * The request is streamed if none of the request functions would change it and it is large enough to bother.
+     * The decision is made from the deployment config and the headers, then confirmed by the scan of the body head.
+     */
+    private boolean isPassthroughRequest() {
+        if (!(context.getDeployment() instanceof Model model) || !model.getInterceptors().isEmpty()) {
+            return false;
+        }
+
+        int minLength = proxy.getStreamSettings().getPassthroughMinLength();
+        if (minLength < 0) {
+            return false;
+        }
+
+        Features features = model.getFeatures();
+        boolean attachments = (model.getInputAttachmentTypes() != null && !model.getInputAttachmentTypes().isEmpty())
+                || (features != null && (Boolean.TRUE.equals(features.getUrlAttachmentsSupported())
+                || Boolean.TRUE.equals(features.getFolderAttachmentsSupported())));
+        Pricing pricing = model.getPricing();
+        boolean charPricing = pricing != null && "char_without_whitespace".equals(pricing.getUnit());
+
+        return model.getOverrideName() == null && model.getDefaults().isEmpty() && !attachments && !charPricing
+                && ProxyUtil.contentLength(context.getRequest(), -1) >= minLength;
+    }
+
+    /**
+     * Receives the head of the client body before anything is sent to origin.
+     * The returned future is completed once the head handlers are set, so no chunk is lost when the request is resumed.
+     */
+    private Future<?> handlePassthrough() {
+        return proxy.getTokenStatsTracker().startSpan(context)
+                .onSuccess(ignore -> receiveRequestHead())
+                .onFailure(this::handleError)
+                .otherwiseEmpty();
+    }
+
+    private void receiveRequestHead() {
+        HttpServerRequest request = context.getRequest();
+        int captureSize = proxy.getStreamSettings().getPassthroughCaptureSize();
+        Buffer head = Buffer.buffer(Math.min(captureSize, 4096));
+
+        request.handler(chunk -> {
+            head.appendBuffer(chunk);
+            if (head.length() >= captureSize) {
+                request.pause();
+                handleRequestHead(head, false);
+            }
+        });
+        request.endHandler(ignore -> handleRequestHead(head, true));
+        request.exceptionHandler(this::handleRequestBodyError);
+    }
+
+    /**
+     * Called when the head of the client body is received, the request is paused unless it is ended.
+     * The attachments must be collected to check the access to them, so the request with attachments in the head is buffered as usual.
+     */
+    private void handleRequestHead(Buffer head, boolean ended) {
+        attachmentScanner = new SequenceScanner(ATTACHMENTS_FIELD);
+        if (attachmentScanner.scan(head)) {
+            receiveRequestBody(head, ended);
+            return;
+        }
+
+        log.info("Streaming body to origin. Trace: {}. Span: {}. Key: {}. Deployment: {}. Length: {}",
+                context.getTraceId(), context.getSpanId(),
+                context.getProject(), context.getDeployment().getName(),
+                context.getRequest().getHeader(HttpHeaders.CONTENT_LENGTH));
+
+        passthrough = true;
+        passthroughHead = head;
+        passthroughEnded = ended;
+        context.setRequestBodyTimestamp(System.currentTimeMillis());
+
+        proxy.getVertx().executeBlocking(() -> {
+            // no attachments are collected, since none are found in the head and the rest is scanned as it is streamed
+            proxy.getApiKeyStore().assignPerRequestApiKey(context.getProxyApiKeyData());
+            return null;
+        }, false).onSuccess(ignore -> sendRequest()).onFailure(this::handleError);
+    }
+
+    /**
+     * Receives the rest of the client body after its head and handles the whole body as the buffered request.
+     */
+    private void receiveRequestBody(Buffer head, boolean ended) {
+        HttpServerRequest request = context.getRequest();
+        Handler<Void> endHandler = ignore -> proxy.getVertx().executeBlocking(() -> {
+            handleRequestBody(head);
+            return null;
+        }, false).onFailure(this::handleError);
+
+        if (ended) {
+            endHandler.handle(null);
+            return;
+        }
+
+        request.handler(head::appendBuffer);
+        request.endHandler(endHandler);
+        request.resume();
+    }
+
     private void setupProxyApiKeyData() {
         ApiKeyData proxyApiKeyData = new ApiKeyData();
         context.setProxyApiKeyData(proxyApiKeyData);
@@ -231,6 +397,75 @@ public class DeploymentPostController {
         respond(result.status(), rateLimitError);
     }
 
+    /**
+     * The requests of the same key or user share the capacity when they are queued.
+     */
+    private String getQueueFlow() {
+        String project = context.getProject();
+        return (project == null) ? "user:" + context.getUserSub() : "key:" + project;
+    }
+
+    private double getQueueWeight() {
+        Map<String, Role> roles = context.getConfig().getRoles();
+        Key key = context.getKey();
+        if (key != null) {
+            Role role = roles.get(key.getRole());
+            return (key.getWeight() != null) ? key.getWeight() : (role == null) ? 1.0 : role.getWeight();
+        }
+
+        List<String> userRoles = context.getUserRoles();
+        double weight = 0;
+        if (userRoles != null) {
+            for (String userRole : userRoles) {
+                Role role = roles.get(userRole);
+                if (role != null) {
+                    weight = Math.max(weight, role.getWeight());
+                }
+            }
+        }
+        return (weight > 0) ? weight : 1.0;
+    }
+
+    private void handleConcurrencyLimitHit(String deploymentId) {
+        long retryAfter = proxy.getConcurrencyLimiter().getRetryAfter(context.getDeployment().getName());
+        ErrorData error = new ErrorData();
+        error.getError().setCode(String.valueOf(HttpStatus.TOO_MANY_REQUESTS.getCode()));
+        error.getError().setMessage("Deployment is overloaded. Retry after: " + retryAfter + " seconds");
+        log.warn("Concurrency limit hit. Key: {}. User sub: {}. Deployment: {}. Trace: {}. Span: {}",
+                context.getProject(), context.getUserSub(), deploymentId, context.getTraceId(), context.getSpanId());
+        context.getResponse().putHeader(Proxy.HEADER_RETRY_AFTER, Long.toString(retryAfter));
+        respond(HttpStatus.TOO_MANY_REQUESTS, error);
+    }
+
+    /**
+     * @return the conversation id from the header or the trace id of the per request key if the model routes
+     *     the requests of the same conversation to the same upstream.
+     */
+    private String getAffinityKey() {
+        if (!(context.getDeployment() instanceof Model model) || !model.isConversationAffinity()) {
+            return null;
+        }
+
+        String conversationId = context.getRequest().getHeader(Proxy.HEADER_CONVERSATION_ID);
+        if (StringUtils.isNotBlank(conversationId)) {
+            return conversationId;
+        }
+
+        ApiKeyData apiKeyData = context.getApiKeyData();
+        return (apiKeyData == null) ? null : apiKeyData.getTraceId();
+    }
+
+    private void handleUpstreamsThrottled(String deploymentId, long backoff) {
+        long retryAfter = TimeUnit.MILLISECONDS.toSeconds(backoff + 999);
+        ErrorData error = new ErrorData();
+        error.getError().setCode(String.valueOf(HttpStatus.TOO_MANY_REQUESTS.getCode()));
+        error.getError().setMessage("All upstreams are rate limited. Retry after: " + retryAfter + " seconds");
+        log.warn("Upstreams throttled. Key: {}. User sub: {}. Deployment: {}. Trace: {}. Span: {}",
+                context.getProject(), context.getUserSub(), deploymentId, context.getTraceId(), context.getSpanId());
+        context.getResponse().putHeader(Proxy.HEADER_RETRY_AFTER, Long.toString(retryAfter));
+        respond(HttpStatus.TOO_MANY_REQUESTS, error);
+    }
+
     private void handleError(Throwable error) {
         log.error("Can't handle request. Key: {}. User sub: {}. Trace: {}. Span: {}. Error: {}",
                 context.getProject(), context.getUserSub(), context.getTraceId(), context.getSpanId(), error.getMessage());
@@ -238,7 +473,7 @@ public class DeploymentPostController {
     }
 
     @SneakyThrows
-    private void sendRequest() {
+    private Future<?> sendRequest() {
         UpstreamRoute route = context.getUpstreamRoute();
         HttpServerRequest request = context.getRequest();
 
@@ -248,7 +483,7 @@ public class DeploymentPostController {
                     context.getProject(), context.getDeployment().getName(), context.getUserSub());
 
             respond(HttpStatus.BAD_GATEWAY, "No route");
-            return;
+            return Future.succeededFuture();
         }
 
         Upstream upstream = route.next();
@@ -259,7 +494,7 @@ public class DeploymentPostController {
                 .setAbsoluteURI(uri)
                 .setMethod(request.method());
 
-        proxy.getClient().request(options)
+        return proxy.getUpstreamClients().request(context.getDeployment(), options)
                 .onSuccess(this::handleProxyRequest)
                 .onFailure(this::handleProxyConnectionError);
     }
@@ -276,11 +511,17 @@ public class DeploymentPostController {
 
         try (InputStream stream = new ByteBufInputStream(requestBody.getByteBuf())) {
             ObjectNode tree = (ObjectNode) ProxyUtil.MAPPER.readTree(stream);
+            context.setRequestTree(tree);
             Throwable error = ProxyUtil.processChain(tree, enhancementFunctions);
             if (error != null) {
                 finalizeRequest();
                 return;
             }
+
+            // the original body is forwarded as is unless some function modified the tree
+            if (context.isRequestTreeModified()) {
+                context.setRequestBody(Buffer.buffer(ProxyUtil.MAPPER.writeValueAsBytes(tree)));
+            }
         } catch (IOException e) {
             respond(HttpStatus.BAD_REQUEST);
             log.warn("Can't parse JSON request body. Trace: {}. Span: {}. Error:",
@@ -288,7 +529,137 @@ public class DeploymentPostController {
             return;
         }
 
-        sendRequest();
+        boolean cacheable = isCacheableRequest();
+        ResponseCache cache = proxy.getResponseCache();
+        if (cacheable) {
+            cacheKey = cache.key(deployment.getName(), context.getRequest().query(), context.getRequest().headers(), context.getRequestTree());
+        }
+
+        // the tree is not needed anymore, so it is not retained while the request is in flight
+        context.setRequestTree(null);
+
+        if (!cacheable) {
+            sendRequest();
+            return;
+        }
+
+        cache.get(cacheKey)
+                .onFailure(error -> log.warn("Failed to get cached response. Trace: {}. Span: {}. Error: {}",
+                        context.getTraceId(), context.getSpanId(), error.getMessage()))
+                .onComplete(result -> {
+                    if (result.succeeded() && result.result() != null) {
+                        handleCachedResponse(result.result());
+                    } else {
+                        sendRequest();
+                    }
+                });
+    }
+
+    private boolean isCacheableRequest() {
+        if (!(context.getDeployment() instanceof Model model) || !model.isResponseCache()) {
+            return false;
+        }
+
+        return model.getType() == ModelType.EMBEDDING
+                || (model.getType() == ModelType.CHAT && isDeterministicRequest(context.getRequestTree()));
+    }
+
+    /**
+     * The chat request is deterministic if the sampling is greedy or the seed is fixed,
+     * so the identical request is expected to get the same response.
+     */
+    private static boolean isDeterministicRequest(ObjectNode tree) {
+        JsonNode temperature = tree.get("temperature");
+        JsonNode seed = tree.get("seed");
+        return (temperature != null && temperature.isNumber() && temperature.doubleValue() == 0)
+                || (seed != null && seed.isIntegralNumber());
+    }
+
+    /**
+     * Responds with the cached response instead of sending the request to origin.
+     * The token usage of the cached response is counted by the rate limiter, but the response costs nothing.
+     * The request is logged as usual.
+     */
+    private void handleCachedResponse(ResponseCache.Entry entry) {
+        log.info("Found cached response. Trace: {}. Span: {}. Key: {}. Deployment: {}. Length: {}",
+                context.getTraceId(), context.getSpanId(),
+                context.getProject(), context.getDeployment().getName(), entry.body().length);
+
+        long now = System.currentTimeMillis();
+        Buffer responseBody = Buffer.buffer(entry.body());
+        context.setResponseCached(true);
+        context.setResponseBody(responseBody);
+        context.setProxyConnectTimestamp(now);
+        context.setProxyResponseTimestamp(now);
+        context.setResponseBodyTimestamp(now);
+
+        HttpServerResponse response = context.getResponse();
+        response.setStatusCode(HttpStatus.OK.getCode());
+        if (entry.contentType() != null) {
+            response.putHeader(HttpHeaders.CONTENT_TYPE, entry.contentType());
+        }
+
+        boolean streaming = StringUtils.containsIgnoreCase(entry.contentType(), "text/event-stream");
+        if (streaming) {
+            response.setChunked(true);
+            writeEvents(response, responseBody);
+        }
+
+        collectTokenUsage(responseBody).onComplete(result -> {
+            if (result.failed()) {
+                log.warn("Failed to collect token usage. Trace: {}. Span: {}",
+                        context.getTraceId(), context.getSpanId(), result.cause());
+            }
+
+            if (streaming) {
+                response.end();
+            } else {
+                response.end(responseBody);
+            }
+            proxy.getLogStore().save(context);
+
+            log.info("Sent cached response to client. Trace: {}. Span: {}. Key: {}. Deployment: {}. Status: {}. Length: {}."
+                            + " Timing: {} (body={}). Tokens: {}",
+                    context.getTraceId(), context.getSpanId(),
+                    context.getProject(), context.getDeployment().getName(),
+                    response.getStatusCode(), responseBody.length(),
+                    now - context.getRequestTimestamp(),
+                    context.getRequestBodyTimestamp() - context.getRequestTimestamp(),
+                    context.getTokenUsage() == null ? "n/a" : context.getTokenUsage());
+
+            finalizeRequest();
+        });
+    }
+
+    /**
+     * Writes the cached event stream event by event, so the client gets the events framed as they were sent by origin.
+     */
+    private static void writeEvents(HttpServerResponse response, Buffer body) {
+        int start = 0;
+        for (int i = 1; i < body.length(); i++) {
+            if (body.getByte(i) == '\n' && body.getByte(i - 1) == '\n') {
+                response.write(body.slice(start, i + 1));
+                start = i + 1;
+            }
+        }
+
+        if (start < body.length()) {
+            response.write(body.slice(start, body.length()));
+        }
+    }
+
+    /**
+     * Stores the successful response which is retained as a whole, so the identical requests are served from the cache.
+     */
+    private void cacheResponse(BufferingReadStream responseStream) {
+        if (cacheKey == null || context.getResponse().getStatusCode() != HttpStatus.OK.getCode() || responseStream.isTruncated()) {
+            return;
+        }
+
+        String contentType = context.getProxyResponse().getHeader(HttpHeaders.CONTENT_TYPE);
+        proxy.getResponseCache().put(cacheKey, new ResponseCache.Entry(contentType, context.getResponseBody().getBytes()))
+                .onFailure(error -> log.warn("Failed to cache response. Trace: {}. Span: {}. Error: {}",
+                        context.getTraceId(), context.getSpanId(), error.getMessage()));
     }
 
     /**
@@ -304,7 +675,93 @@ public class DeploymentPostController {
         HttpServerRequest request = context.getRequest();
         context.setProxyRequest(proxyRequest);
         context.setProxyConnectTimestamp(System.currentTimeMillis());
+        copyRequestHeaders(proxyRequest, context.getUpstreamRoute());
+
+        if (passthrough) {
+            // the request is not hedged, since the client body can't be sent twice
+            proxyRequest.putHeader(HttpHeaders.CONTENT_LENGTH, request.getHeader(HttpHeaders.CONTENT_LENGTH));
+            context.getRequestHeaders().forEach(proxyRequest::putHeader);
+            proxyRequest.response()
+                    .onSuccess(this::handleProxyResponse)
+                    .onFailure(error -> {
+                        // the request is cancelled if the attachments are found in the client body
+                        if (proxyRequest == context.getProxyRequest()) {
+                            handleProxyResponseError(error);
+                        }
+                    });
+            pipeRequestBody(request, proxyRequest);
+            return;
+        }
+
+        Buffer requestBody = context.getRequestBody();
+        proxyRequest.putHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(requestBody.length()));
+        context.getRequestHeaders().forEach(proxyRequest::putHeader);
+        recordFirstByte();
+
+        proxyRequest.send(requestBody)
+                .onSuccess(this::handleProxyResponse)
+                .onFailure(error -> {
+                    // the request is cancelled if the hedge responded first
+                    if (proxyRequest == context.getProxyRequest()) {
+                        handleProxyResponseError(error);
+                    }
+                });
+        scheduleFirstByteTimeout(proxyRequest);
+        scheduleHedge();
+    }
+
+    private void scheduleFirstByteTimeout(HttpClientRequest proxyRequest) {
+        if (context.getDeployment() instanceof Model model && model.getFirstByteTimeout() != null) {
+            firstByteTimer = proxy.getVertx().setTimer(model.getFirstByteTimeout(), ignore -> handleFirstByteTimeout(proxyRequest));
+        }
+    }
+
+    private void cancelFirstByteTimeout() {
+        if (firstByteTimer >= 0) {
+            proxy.getVertx().cancelTimer(firstByteTimer);
+            firstByteTimer = -1;
+        }
+    }
 
+    /**
+     * Called when the upstream didn't respond with the headers within the first byte timeout of the model.
+     * The attempt is aborted and the next upstream is tried, the timeout counts as the failure of the upstream.
+     */
+    private void handleFirstByteTimeout(HttpClientRequest proxyRequest) {
+        firstByteTimer = -1;
+        if (proxyRequest != context.getProxyRequest()) {
+            return;
+        }
+
+        String endpoint = context.getUpstreamRoute().get().getEndpoint();
+        log.warn("Origin did not respond in time. Trace: {}. Span: {}. Key: {}. Deployment: {}. Upstream: {}",
+                context.getTraceId(), context.getSpanId(),
+                context.getProject(), context.getDeployment().getName(), endpoint);
+
+        Counter.builder("aidial.upstream.first.byte.timeouts")
+                .description("Number of attempts aborted because the upstream didn't respond with the headers in time")
+                .tag("deployment", String.valueOf(context.getDeployment().getName()))
+                .tag("endpoint", String.valueOf(endpoint))
+                .register(MetricUtil.registry())
+                .increment();
+
+        // the response error of the aborted request is ignored
+        context.setProxyRequest(null);
+        proxyRequest.reset();
+        cancelHedge();
+        context.getUpstreamRoute().failed();
+        onConcurrencyFailure();
+
+        // the client body is consumed by the streamed request, so it can't be sent to another upstream
+        if (!passthrough && context.getUpstreamRoute().hasNext()) {
+            sendRequest();
+        } else {
+            respond(HttpStatus.GATEWAY_TIMEOUT, "Origin did not respond in time");
+        }
+    }
+
+    private void copyRequestHeaders(HttpClientRequest proxyRequest, UpstreamRoute route) {
+        HttpServerRequest request = context.getRequest();
         Deployment deployment = context.getDeployment();
         MultiMap excludeHeaders = MultiMap.caseInsensitiveMultiMap();
         if (!deployment.isForwardAuthToken()) {
@@ -316,19 +773,219 @@ public class DeploymentPostController {
         ApiKeyData proxyApiKeyData = context.getProxyApiKeyData();
         proxyRequest.headers().add(Proxy.HEADER_API_KEY, proxyApiKeyData.getPerRequestKey());
 
-        if (context.getDeployment() instanceof Model model && !model.getUpstreams().isEmpty()) {
-            Upstream upstream = context.getUpstreamRoute().get();
+        if (deployment instanceof Model model && !model.getUpstreams().isEmpty()) {
+            Upstream upstream = route.get();
             proxyRequest.putHeader(Proxy.HEADER_UPSTREAM_ENDPOINT, upstream.getEndpoint());
             proxyRequest.putHeader(Proxy.HEADER_UPSTREAM_KEY, upstream.getKey());
         }
+    }
 
-        Buffer requestBody = context.getRequestBody();
-        proxyRequest.putHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(requestBody.length()));
-        context.getRequestHeaders().forEach(proxyRequest::putHeader);
+    /**
+     * Sends the duplicate of the first attempt of the embeddings request to the next upstream
+     * if the upstream doesn't respond with the headers within the delay of the deployment.
+     */
+    private void scheduleHedge() {
+        if (!(context.getDeployment() instanceof Model model) || model.getType() != ModelType.EMBEDDING) {
+            return;
+        }
 
-        proxyRequest.send(requestBody)
-                .onSuccess(this::handleProxyResponse)
-                .onFailure(this::handleProxyResponseError);
+        RequestHedger hedger = proxy.getRequestHedger();
+        UpstreamRoute route = context.getUpstreamRoute();
+        if (!hedger.isEnabled() || route.used() != 1 || route.retries() != 0) {
+            return;
+        }
+
+        long delay = hedger.onRequest(model.getName());
+        if (delay >= 0 && route.hasNext()) {
+            hedgeTimer = proxy.getVertx().setTimer(delay, ignore -> sendHedge());
+        }
+    }
+
+    private void sendHedge() {
+        hedgeTimer = -1;
+        String deployment = context.getDeployment().getName();
+
+        if (context.getProxyResponse() != null || !proxy.getRequestHedger().tryHedge(deployment)) {
+            return;
+        }
+
+        UpstreamRoute route = context.getUpstreamRoute().hedge();
+        if (route == null) {
+            return;
+        }
+
+        hedgeRoute = route;
+        Upstream upstream = route.next();
+        log.info("Sending hedge to origin. Trace: {}. Span: {}. Key: {}. Deployment: {}. Upstream: {}",
+                context.getTraceId(), context.getSpanId(), context.getProject(), deployment, upstream.getEndpoint());
+
+        RequestOptions options = new RequestOptions()
+                .setAbsoluteURI(buildUri(context))
+                .setMethod(context.getRequest().method());
+
+        proxy.getUpstreamClients().request(context.getDeployment(), options)
+                .onSuccess(proxyRequest -> {
+                    if (hedgeRoute != route) {
+                        proxyRequest.reset();
+                        return;
+                    }
+
+                    hedgeRequest = proxyRequest;
+                    hedgeConnectTimestamp = System.currentTimeMillis();
+                    copyRequestHeaders(proxyRequest, route);
+
+                    Buffer requestBody = context.getRequestBody();
+                    proxyRequest.putHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(requestBody.length()));
+                    context.getRequestHeaders().forEach(proxyRequest::putHeader);
+                    proxyRequest.send(requestBody)
+                            .onSuccess(response -> handleHedgeResponse(route, response))
+                            .onFailure(error -> handleHedgeError(route, error));
+                })
+                .onFailure(error -> handleHedgeError(route, error));
+    }
+
+    /**
+     * The hedge wins if it responds before the first request with other than the retriable error.
+     */
+    private void handleHedgeResponse(UpstreamRoute route, HttpClientResponse proxyResponse) {
+        if (hedgeRoute != route) {
+            return;
+        }
+
+        if (isRetriableStatus(proxyResponse.statusCode())) {
+            route.responded(proxyResponse.statusCode());
+            throttleUpstream(route, proxyResponse);
+            cancelHedge();
+            return;
+        }
+
+        log.info("Hedge responded first. Trace: {}. Span: {}. Key: {}. Deployment: {}. Upstream: {}",
+                context.getTraceId(), context.getSpanId(), context.getProject(),
+                context.getDeployment().getName(), route.get().getEndpoint());
+
+        proxy.getRequestHedger().onWin(context.getDeployment().getName());
+        HttpClientRequest firstRequest = context.getProxyRequest();
+        context.getUpstreamRoute().release();
+        context.setUpstreamRoute(route);
+        context.setProxyRequest(hedgeRequest);
+        context.setProxyConnectTimestamp(hedgeConnectTimestamp);
+        hedgeRoute = null;
+        hedgeRequest = null;
+        firstRequest.reset();
+
+        handleProxyResponse(proxyResponse);
+    }
+
+    private void handleHedgeError(UpstreamRoute route, Throwable error) {
+        if (hedgeRoute != route) {
+            return;
+        }
+
+        log.warn("Hedge failed. Trace: {}. Span: {}. Key: {}. Deployment: {}. Error: {}",
+                context.getTraceId(), context.getSpanId(), context.getProject(),
+                context.getDeployment().getName(), error.getMessage());
+
+        route.failed();
+        cancelHedge();
+    }
+
+    /**
+     * Cancels the hedge timer or the hedge in flight once the request is completed otherwise.
+     */
+    private void cancelHedge() {
+        if (hedgeTimer >= 0) {
+            proxy.getVertx().cancelTimer(hedgeTimer);
+            hedgeTimer = -1;
+        }
+
+        if (hedgeRoute != null) {
+            hedgeRoute.release();
+            hedgeRoute = null;
+        }
+
+        if (hedgeRequest != null) {
+            hedgeRequest.reset();
+            hedgeRequest = null;
+        }
+    }
+
+    /**
+     * Writes the client body to origin chunk by chunk, pausing the client while the origin is not ready to take more.
+     * Only the head of the body is retained for the prompt log.
+     * The rest of the body is scanned for the attachments, the request is cancelled if they are found,
+     * since the attachments are not collected and the access to them is not checked.
+     */
+    private void pipeRequestBody(HttpServerRequest request, HttpClientRequest proxyRequest) {
+        int captureSize = proxy.getStreamSettings().getPassthroughCaptureSize();
+        Buffer head = passthroughHead;
+        passthroughHead = null;
+        context.setRequestBody(head.length() > captureSize ? head.getBuffer(0, captureSize) : head);
+
+        recordFirstByte();
+        passthroughLength = head.length();
+        proxyRequest.write(head);
+
+        if (passthroughEnded) {
+            endRequestBody(proxyRequest);
+            return;
+        }
+
+        request.handler(chunk -> {
+            if (proxyRequest != context.getProxyRequest()) {
+                return;
+            }
+
+            if (attachmentScanner.scan(chunk)) {
+                rejectRequestBody(proxyRequest);
+                return;
+            }
+
+            passthroughLength += chunk.length();
+            proxyRequest.write(chunk);
+            if (proxyRequest.writeQueueFull()) {
+                request.pause();
+                proxyRequest.drainHandler(ignore -> request.resume());
+            }
+        });
+        request.endHandler(ignore -> {
+            if (proxyRequest == context.getProxyRequest()) {
+                endRequestBody(proxyRequest);
+            }
+        });
+        request.exceptionHandler(error -> {
+            log.warn("Failed to stream client body. Trace: {}. Span: {}. Error: {}",
+                    context.getTraceId(), context.getSpanId(), error.getMessage());
+            proxyRequest.reset(0, error);
+        });
+        request.resume();
+    }
+
+    private void endRequestBody(HttpClientRequest proxyRequest) {
+        log.info("Streamed body to origin. Trace: {}. Span: {}. Length: {}",
+                context.getTraceId(), context.getSpanId(), passthroughLength);
+        proxyRequest.end();
+        // the origin is not expected to respond before the whole body is received, which takes as long as the client sends it
+        scheduleFirstByteTimeout(proxyRequest);
+    }
+
+    private void rejectRequestBody(HttpClientRequest proxyRequest) {
+        log.warn("Found attachments in streamed body. Trace: {}. Span: {}. Key: {}. Deployment: {}. Length: {}",
+                context.getTraceId(), context.getSpanId(),
+                context.getProject(), context.getDeployment().getName(), passthroughLength);
+
+        // the response error of the cancelled request is ignored
+        context.setProxyRequest(null);
+        proxyRequest.reset();
+        respond(HttpStatus.BAD_REQUEST, "Attachments must be in the first %d bytes of the large request"
+                .formatted(proxy.getStreamSettings().getPassthroughCaptureSize()));
+    }
+
+    private void recordFirstByte() {
+        Timer.builder("aidial.request.upstream.first.byte")
+                .description("Time from receiving the request headers to sending the first byte of the body to origin")
+                .tag("passthrough", Boolean.toString(passthrough))
+                .register(MetricUtil.registry())
+                .record(System.currentTimeMillis() - context.getRequestTimestamp(), TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -341,15 +998,33 @@ public class DeploymentPostController {
                 context.getDeployment().getEndpoint(), context.getUpstreamRoute().get().getEndpoint(),
                 proxyResponse.statusCode(), proxyResponse.headers().size());
 
-        if (context.getUpstreamRoute().hasNext() && isRetriableError(proxyResponse.statusCode())) {
+        cancelFirstByteTimeout();
+        cancelHedge();
+        recordHedgeLatency(proxyResponse.statusCode());
+
+        context.getUpstreamRoute().responded(proxyResponse.statusCode());
+        throttleUpstream(context.getUpstreamRoute(), proxyResponse);
+        ConcurrencyLimiter.Permit permit = context.getConcurrencyPermit();
+        if (permit != null) {
+            permit.onResponse(proxyResponse.statusCode());
+        }
+
+        if (!passthrough && context.getUpstreamRoute().hasNext() && isRetriableError(proxyResponse.statusCode())) {
             sendRequest(); // try next
             return;
         }
 
+        if (passthrough) {
+            // the request is not parsed, so the response tells whether it is streaming
+            String contentType = proxyResponse.getHeader(HttpHeaders.CONTENT_TYPE);
+            context.setStreamingRequest(StringUtils.containsIgnoreCase(contentType, "text/event-stream"));
+        }
+
         CollectResponseAttachmentsFn handler = context.isStreamingRequest() ? new CollectResponseAttachmentsFn(proxy, context) : null;
 
+        int windowSize = isBoundedResponse() ? proxy.getStreamSettings().getResponseWindowSize() : -1;
         BufferingReadStream responseStream = new BufferingReadStream(proxyResponse,
-                ProxyUtil.contentLength(proxyResponse, 1024), handler);
+                ProxyUtil.contentLength(proxyResponse, 1024), handler, windowSize);
 
         context.setProxyResponse(proxyResponse);
         context.setProxyResponseTimestamp(System.currentTimeMillis());
@@ -371,9 +1046,37 @@ public class DeploymentPostController {
                 .onFailure(this::handleResponseError);
     }
 
+    /**
+     * Only the tail of streaming responses can be retained, since the usage and the assembled response are collected from the events.
+     * The other responses, including embeddings, are parsed as a whole to collect usage and attachments, and logged as is.
+     */
+    private boolean isBoundedResponse() {
+        return context.isStreamingRequest();
+    }
+
+    /**
+     * Stops routing to the upstream for the time it asks to wait in the rate limit headers.
+     * Only the upstreams of the model are throttled, the other deployments have the only endpoint to route to.
+     */
+    private void throttleUpstream(UpstreamRoute route, HttpClientResponse proxyResponse) {
+        if (context.getDeployment() instanceof Model model && !model.getUpstreams().isEmpty()) {
+            route.throttle(RateLimitHeaders.getBackoff(proxyResponse.headers(), System.currentTimeMillis()));
+        }
+    }
+
     private boolean isRetriableError(int statusCode) {
-        return context.getUpstreamRoute().hasNext()
-                && (DEFAULT_RETRIABLE_HTTP_CODES.contains(statusCode) || context.getConfig().getRetriableErrorCodes().contains(statusCode));
+        return context.getUpstreamRoute().hasNext() && isRetriableStatus(statusCode);
+    }
+
+    private boolean isRetriableStatus(int statusCode) {
+        return DEFAULT_RETRIABLE_HTTP_CODES.contains(statusCode) || context.getConfig().getRetriableErrorCodes().contains(statusCode);
+    }
+
+    private void recordHedgeLatency(int statusCode) {
+        if (context.getDeployment() instanceof Model model && model.getType() == ModelType.EMBEDDING
+                && proxy.getRequestHedger().isEnabled() && !isRetriableStatus(statusCode)) {
+            proxy.getRequestHedger().onResponse(model.getName(), System.currentTimeMillis() - context.getProxyConnectTimestamp());
+        }
     }
 
     /**
@@ -383,7 +1086,9 @@ public class DeploymentPostController {
     void handleResponse(BufferingReadStream responseStream) {
         Buffer responseBody = context.getResponseStream().getContent();
         context.setResponseBody(responseBody);
+        context.setResponseAssembler(context.getResponseStream().getAssembler());
         context.setResponseBodyTimestamp(System.currentTimeMillis());
+        cacheResponse(responseStream);
         Future<TokenUsage> tokenUsageFuture = collectTokenUsage(responseBody);
 
         Future<Void> handleResponseFuture = tokenUsageFuture.transform(result -> {
@@ -407,7 +1112,11 @@ public class DeploymentPostController {
         Future<TokenUsage> tokenUsageFuture = Future.succeededFuture();
         if (context.getDeployment() instanceof Model model) {
             if (context.getResponse().getStatusCode() == HttpStatus.OK.getCode()) {
-                TokenUsage tokenUsage = TokenUsageParser.parse(responseBody);
+                StreamingResponseAssembler assembler = context.getResponseAssembler();
+                TokenUsage tokenUsage = (assembler == null) ? null : assembler.getTokenUsage();
+                if (tokenUsage == null) {
+                    tokenUsage = TokenUsageParser.parse(responseBody);
+                }
                 if (tokenUsage == null) {
                     Pricing pricing = model.getPricing();
                     if (pricing == null || "token".equals(pricing.getUnit())) {
@@ -415,12 +1124,15 @@ public class DeploymentPostController {
                                 context.getTraceId(), context.getSpanId(),
                                 context.getProject(), context.getDeployment().getName(),
                                 context.getDeployment().getEndpoint(),
-                                context.getUpstreamRoute().get().getEndpoint(),
+                                context.isResponseCached() ? "cache" : context.getUpstreamRoute().get().getEndpoint(),
                                 context.getResponse().getStatusCode(),
                                 context.getResponseBody().length());
                     }
                     tokenUsage = new TokenUsage();
                 }
+                if (context.isResponseCached()) {
+                    tokenUsage.setCachedTokens(tokenUsage.getTotalTokens());
+                }
                 context.setTokenUsage(tokenUsage);
                 proxy.getRateLimiter().increase(context).onFailure(error -> log.warn("Failed to increase limit. Trace: {}. Span: {}",
                         context.getTraceId(), context.getSpanId(), error));
@@ -441,7 +1153,7 @@ public class DeploymentPostController {
     }
 
     private Future<Void> collectResponseAttachments(Buffer responseBody) {
-        if (context.isStreamingRequest()) {
+        if (context.isStreamingRequest() || context.getResponseStream().isTruncated()) {
             return Future.succeededFuture();
         }
         try (InputStream stream = new ByteBufInputStream(responseBody.getByteBuf())) {
@@ -498,6 +1210,8 @@ public class DeploymentPostController {
                 context.getProject(), context.getDeployment().getName(),
                 buildUri(context), error.getMessage());
 
+        context.getUpstreamRoute().failed();
+        onConcurrencyFailure();
         respond(HttpStatus.BAD_GATEWAY, "Failed to connect to origin");
     }
 
@@ -511,6 +1225,16 @@ public class DeploymentPostController {
                 context.getProxyRequest().connection().remoteAddress(),
                 error);
 
+        cancelFirstByteTimeout();
+        cancelHedge();
+        context.getUpstreamRoute().failed();
+        onConcurrencyFailure();
+        if (passthrough) {
+            // the client body is consumed, so it can't be sent to another upstream
+            respond(HttpStatus.BAD_GATEWAY, "Failed to receive response from origin");
+            return;
+        }
+
         context.getUpstreamRoute().retry();
         sendRequest();
     }
@@ -575,7 +1299,26 @@ public class DeploymentPostController {
         context.respond(status, result);
     }
 
+    private void onConcurrencyFailure() {
+        ConcurrencyLimiter.Permit permit = context.getConcurrencyPermit();
+        if (permit != null) {
+            permit.onFailure();
+        }
+    }
+
     private void finalizeRequest() {
+        cancelFirstByteTimeout();
+        cancelHedge();
+        UpstreamRoute upstreamRoute = context.getUpstreamRoute();
+        if (upstreamRoute != null) {
+            upstreamRoute.release();
+        }
+
+        ConcurrencyLimiter.Permit permit = context.getConcurrencyPermit();
+        if (permit != null) {
+            permit.release();
+        }
+
         proxy.getTokenStatsTracker().endSpan(context).onFailure(error -> log.error("Error occurred at completing span", error));
         ApiKeyData proxyApiKeyData = context.getProxyApiKeyData();
         if (proxyApiKeyData != null) {
@@ -0,0 +1,238 @@
+package com.epam.aidial.core.controller;
+
+import io.vertx.core.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Prefix trie of path templates which routes a request on method and path segments.
+ * <p>
+ *     The template consists of the segments separated by slash:
+ *     <ul>
+ *         <li><code>name</code> - literal segment.</li>
+ *         <li><code>{name}</code> - non-empty segment captured as a parameter.</li>
+ *         <li><code>{name:regex}</code> - segment matching the regex captured as a parameter.</li>
+ *         <li><code>{name+}</code> - one or more segments captured as a non-empty parameter, can be followed by literal segments only.</li>
+ *         <li><code>{name*}</code> - the rest of the path after the slash, must be the last segment.</li>
+ *     </ul>
+ *     The template starting with <code>/+</code> matches the path with multiple leading slashes.
+ * </p>
+ * <p>
+ *     The literal segments are preferred over the parameters and the parameters are preferred over the multi-segment parameters.
+ *     The multi-segment parameters with the longest suffix are preferred, so the shortest value is captured.
+ *     The parameters are captured as they are without decoding.
+ * </p>
+ */
+class PathDispatcher<T> {
+
+    private final Node<T> root = new Node<>();
+
+    public PathDispatcher<T> add(HttpMethod method, String template, T value) {
+        boolean slashes = template.startsWith("/+");
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Template must start with slash: " + template);
+        }
+
+        String[] segments = template.substring(slashes ? 2 : 1).split("/", -1);
+        Node<T> node = root;
+
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (!isParameter(segment)) {
+                node = node.literals.computeIfAbsent(segment, key -> new Node<>());
+                continue;
+            }
+
+            String name = segment.substring(1, segment.length() - 1);
+            int colon = name.indexOf(':');
+            if (colon < 0 && (name.endsWith("+") || name.endsWith("*"))) {
+                boolean rest = name.endsWith("*");
+                List<String> suffix = Arrays.asList(segments).subList(i + 1, segments.length);
+                if (rest && !suffix.isEmpty() || suffix.stream().anyMatch(PathDispatcher::isParameter)) {
+                    throw new IllegalArgumentException("Template has segments after the multi-segment parameter: " + template);
+                }
+
+                String parameter = name.substring(0, name.length() - 1);
+                Tail<T> tail = node.tails.stream()
+                        .filter(candidate -> candidate.name.equals(parameter) && candidate.rest == rest && candidate.suffix.equals(suffix))
+                        .findFirst()
+                        .orElse(null);
+
+                if (tail == null) {
+                    tail = new Tail<>(parameter, rest, List.copyOf(suffix));
+                    node.tails.add(tail);
+                    node.tails.sort(Comparator.comparingInt((Tail<T> candidate) -> candidate.suffix.size()).reversed());
+                }
+
+                put(tail.values, method, template, new Entry<>(value, slashes));
+                return this;
+            }
+
+            String regex = (colon < 0) ? null : name.substring(colon + 1);
+            String parameter = (colon < 0) ? name : name.substring(0, colon);
+
+            Param<T> param = node.params.stream()
+                    .filter(candidate -> candidate.name.equals(parameter) && String.valueOf(candidate.pattern).equals(String.valueOf(regex)))
+                    .findFirst()
+                    .orElse(null);
+
+            if (param == null) {
+                param = new Param<>(parameter, regex == null ? null : Pattern.compile(regex));
+                node.params.add(param);
+            }
+
+            node = param.node;
+        }
+
+        put(node.values, method, template, new Entry<>(value, slashes));
+        return this;
+    }
+
+    /**
+     * @return the match or <code>null</code> if no template matches the method and the path.
+     */
+    public Match<T> match(HttpMethod method, String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+
+        if (start == 0) {
+            return null;
+        }
+
+        String[] segments = path.substring(start).split("/", -1);
+        List<String> params = new ArrayList<>(4);
+        return match(root, method, segments, 0, start > 1, params);
+    }
+
+    private static <T> Match<T> match(Node<T> node, HttpMethod method, String[] segments, int index, boolean slashes, List<String> params) {
+        if (index == segments.length) {
+            return match(node.values.get(method), slashes, params);
+        }
+
+        String segment = segments[index];
+        Node<T> literal = node.literals.get(segment);
+        if (literal != null) {
+            Match<T> match = match(literal, method, segments, index + 1, slashes, params);
+            if (match != null) {
+                return match;
+            }
+        }
+
+        if (!segment.isEmpty()) {
+            for (Param<T> param : node.params) {
+                if (param.pattern != null && !param.pattern.matcher(segment).matches()) {
+                    continue;
+                }
+
+                int size = params.size();
+                params.add(param.name);
+                params.add(segment);
+
+                Match<T> match = match(param.node, method, segments, index + 1, slashes, params);
+                if (match != null) {
+                    return match;
+                }
+
+                params.subList(size, params.size()).clear();
+            }
+        }
+
+        for (Tail<T> tail : node.tails) {
+            int end = segments.length - tail.suffix.size();
+            if (end <= index || !endsWith(segments, tail.suffix)) {
+                continue;
+            }
+
+            String value = String.join("/", Arrays.asList(segments).subList(index, end));
+            if (value.isEmpty() && !tail.rest) {
+                continue;
+            }
+
+            int size = params.size();
+            params.add(tail.name);
+            params.add(value);
+
+            Match<T> match = match(tail.values.get(method), slashes, params);
+            if (match != null) {
+                return match;
+            }
+
+            params.subList(size, params.size()).clear();
+        }
+
+        return null;
+    }
+
+    private static <T> Match<T> match(Entry<T> entry, boolean slashes, List<String> params) {
+        if (entry == null || (slashes && !entry.slashes)) {
+            return null;
+        }
+
+        Map<String, String> map = new HashMap<>(params.size());
+        for (int i = 0; i < params.size(); i += 2) {
+            map.put(params.get(i), params.get(i + 1));
+        }
+
+        return new Match<>(entry.value, map);
+    }
+
+    private static boolean endsWith(String[] segments, List<String> suffix) {
+        for (int i = 0, j = segments.length - suffix.size(); i < suffix.size(); i++, j++) {
+            if (!segments[j].equals(suffix.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    private static <T> void put(Map<HttpMethod, Entry<T>> values, HttpMethod method, String template, Entry<T> entry) {
+        if (values.putIfAbsent(method, entry) != null) {
+            throw new IllegalArgumentException("Duplicate template: " + method + " " + template);
+        }
+    }
+
+    /**
+     * @param params - the captured parameters by name.
+     */
+    public record Match<T>(T value, Map<String, String> params) {
+
+        public String param(String name) {
+            return params.get(name);
+        }
+    }
+
+    private record Entry<T>(T value, boolean slashes) {
+    }
+
+    private static class Node<T> {
+        final Map<String, Node<T>> literals = new HashMap<>();
+        final List<Param<T>> params = new ArrayList<>();
+        final List<Tail<T>> tails = new ArrayList<>();
+        final Map<HttpMethod, Entry<T>> values = new HashMap<>();
+    }
+
+    private record Param<T>(String name, Pattern pattern, Node<T> node) {
+        Param(String name, Pattern pattern) {
+            this(name, pattern, new Node<>());
+        }
+    }
+
+    private record Tail<T>(String name, boolean rest, List<String> suffix, Map<HttpMethod, Entry<T>> values) {
+        Tail(String name, boolean rest, List<String> suffix) {
+            this(name, rest, suffix, new HashMap<>());
+        }
+    }
+}
@@ -16,7 +16,6 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpHeaders;
-import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.RequestOptions;
@@ -25,9 +24,6 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.URL;
-import java.util.List;
-import java.util.Set;
-import java.util.regex.Pattern;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -79,6 +75,7 @@ public class RouteController implements Controller {
         HttpServerRequest request = context.getRequest();
 
         if (!route.hasNext()) {
+            route.release();
             log.warn("RouteController can't find a upstream route to proceed the request: {}", getRequestUri());
             return context.respond(HttpStatus.BAD_GATEWAY, "No route");
         }
@@ -88,7 +85,7 @@ public class RouteController implements Controller {
                 .setAbsoluteURI(new URL(upstream.getEndpoint()))
                 .setMethod(request.method());
 
-        return proxy.getClient().request(options)
+        return proxy.getUpstreamClients().request(options)
                 .onSuccess(this::handleProxyRequest)
                 .onFailure(this::handleProxyConnectionError);
     }
@@ -132,6 +129,8 @@ public class RouteController implements Controller {
         log.info("Received response header from origin: status={}, headers={}", proxyResponse.statusCode(),
                 proxyResponse.headers().size());
 
+        context.getUpstreamRoute().responded(proxyResponse.statusCode());
+
         if (proxyResponse.statusCode() == HttpStatus.TOO_MANY_REQUESTS.getCode()) {
             sendRequest(); // try next
             return;
@@ -159,6 +158,7 @@ public class RouteController implements Controller {
      * Called when proxy sent response from the origin to the client.
      */
     private void handleResponse() {
+        context.getUpstreamRoute().release();
         Buffer proxyResponseBody = context.getResponseStream().getContent();
         context.setResponseBody(proxyResponseBody);
         proxy.getLogStore().save(context);
@@ -177,6 +177,7 @@ public class RouteController implements Controller {
      */
     private void handleProxyConnectionError(Throwable error) {
         log.warn("Can't connect to origin: {}", error.getMessage());
+        context.getUpstreamRoute().failed();
         sendRequest(); // try next
     }
 
@@ -185,6 +186,7 @@ public class RouteController implements Controller {
      */
     private void handleProxyRequestError(Throwable error) {
         log.warn("Can't send request to origin: {}", error.getMessage());
+        context.getUpstreamRoute().failed();
         sendRequest(); // try next
     }
 
@@ -193,6 +195,7 @@ public class RouteController implements Controller {
      */
     private void handleResponseError(Throwable error) {
         log.warn("Can't send response to client: {}", error.getMessage());
+        context.getUpstreamRoute().release();
         context.getProxyRequest().reset(); // drop connection to stop origin response
         context.getResponse().reset();     // drop connection, so that partial client response won't seem complete
     }
@@ -200,27 +203,6 @@ public class RouteController implements Controller {
     private Route selectRoute() {
         Config config = context.getConfig();
         HttpServerRequest request = context.getRequest();
-        String uri = request.uri();
-
-        for (Route route : config.getRoutes().values()) {
-            List<Pattern> paths = route.getPaths();
-            Set<HttpMethod> methods = route.getMethods();
-
-            if (!methods.isEmpty() && !methods.contains(request.method())) {
-                continue;
-            }
-
-            if (paths.isEmpty()) {
-                return route;
-            }
-
-            for (Pattern path : route.getPaths()) {
-                if (path.matcher(uri).matches()) {
-                    return route;
-                }
-            }
-        }
-
-        return null;
+        return config.selectRoute(request.method(), request.uri());
     }
 }
\ No newline at end of file
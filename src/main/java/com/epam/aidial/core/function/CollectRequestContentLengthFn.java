@@ -0,0 +1,42 @@
+package com.epam.aidial.core.function;
+
+import com.epam.aidial.core.Proxy;
+import com.epam.aidial.core.ProxyContext;
+import com.epam.aidial.core.config.Model;
+import com.epam.aidial.core.config.Pricing;
+import com.epam.aidial.core.util.ModelCostCalculator;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counts the characters of the request content for the models priced per character,
+ * so the request tree is not retained until the cost is calculated.
+ * Must be the last function of the chain to count the request as it is sent to origin.
+ */
+@Slf4j
+public class CollectRequestContentLengthFn extends BaseRequestFunction<ObjectNode> {
+    public CollectRequestContentLengthFn(Proxy proxy, ProxyContext context) {
+        super(proxy, context);
+    }
+
+    @Override
+    public Throwable apply(ObjectNode tree) {
+        if (!(context.getDeployment() instanceof Model model)) {
+            return null;
+        }
+
+        Pricing pricing = model.getPricing();
+        if (pricing == null || !"char_without_whitespace".equals(pricing.getUnit())) {
+            return null;
+        }
+
+        try {
+            context.setRequestContentLength(ModelCostCalculator.getRequestContentLength(model.getType(), tree));
+        } catch (Throwable e) {
+            // the request is sent anyway, only its cost is unknown
+            log.warn("Can't count request content length for model={}. Trace: {}. Span: {}. Error: {}",
+                    model.getName(), context.getTraceId(), context.getSpanId(), e.getMessage());
+        }
+        return null;
+    }
+}
@@ -8,7 +8,6 @@ import com.epam.aidial.core.util.HttpStatus;
 import com.epam.aidial.core.util.ProxyUtil;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import io.vertx.core.buffer.Buffer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
@@ -23,7 +22,7 @@ public class ApplyDefaultDeploymentSettingsFn extends BaseRequestFunction<Object
     public Throwable apply(ObjectNode tree) {
         try {
             if (applyDefaults(context, tree)) {
-                context.setRequestBody(Buffer.buffer(ProxyUtil.MAPPER.writeValueAsBytes(tree)));
+                context.setRequestTreeModified(true);
             }
             return null;
         } catch (Throwable e) {
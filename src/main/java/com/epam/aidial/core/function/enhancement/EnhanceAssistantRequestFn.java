@@ -11,11 +11,9 @@ import com.epam.aidial.core.controller.DeploymentController;
 import com.epam.aidial.core.function.BaseRequestFunction;
 import com.epam.aidial.core.util.HttpException;
 import com.epam.aidial.core.util.HttpStatus;
-import com.epam.aidial.core.util.ProxyUtil;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import io.vertx.core.buffer.Buffer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.HashMap;
@@ -34,9 +32,9 @@ public class EnhanceAssistantRequestFn extends BaseRequestFunction<ObjectNode> {
         Deployment deployment = context.getDeployment();
         if (deployment instanceof Assistant) {
             try {
-                Map.Entry<Buffer, Map<String, String>> enhancedRequest = enhanceAssistantRequest(context, tree);
-                context.setRequestBody(enhancedRequest.getKey());
-                context.setRequestHeaders(enhancedRequest.getValue());
+                Map<String, String> headers = enhanceAssistantRequest(context, tree);
+                context.setRequestTreeModified(true);
+                context.setRequestHeaders(headers);
             } catch (HttpException e) {
                 context.respond(e.getStatus(), e.getMessage());
                 log.warn("Can't enhance assistant request. Trace: {}. Span: {}. Error: {}",
@@ -52,8 +50,7 @@ public class EnhanceAssistantRequestFn extends BaseRequestFunction<ObjectNode> {
         return null;
     }
 
-    private static Map.Entry<Buffer, Map<String, String>> enhanceAssistantRequest(ProxyContext context, ObjectNode tree)
-            throws Exception {
+    private static Map<String, String> enhanceAssistantRequest(ProxyContext context, ObjectNode tree) {
         Config config = context.getConfig();
         Assistant assistant = (Assistant) context.getDeployment();
 
@@ -108,8 +105,7 @@ public class EnhanceAssistantRequestFn extends BaseRequestFunction<ObjectNode> {
             throw new HttpException(HttpStatus.FORBIDDEN, "Forbidden model: " + name);
         }
 
-        Buffer updatedBody = Buffer.buffer(ProxyUtil.MAPPER.writeValueAsBytes(tree));
-        return Map.entry(updatedBody, headers);
+        return headers;
     }
 
     private static void deletePrompt(ArrayNode messages) {
@@ -0,0 +1,110 @@
+package com.epam.aidial.core.limiter;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Adapts the concurrency limit of a deployment to the latency observed by its requests.
+ * <p>
+ *     The long-term latency is an exponential average of the samples, the gradient is the ratio of the long-term latency
+ *     with the tolerance to the sample. The limit shrinks when the latency grows and grows by the square root of the limit
+ *     when the latency is stable, so a queue builds in the adapter only up to that size.
+ *     The limit is cut by the backoff when the deployment fails or is overloaded.
+ * </p>
+ */
+class ConcurrencyLimit {
+
+    private final Settings settings;
+
+    private double limit;
+    private int inflight;
+    private double longLatency;
+
+    ConcurrencyLimit(Settings settings) {
+        this.settings = settings;
+        this.limit = settings.initialLimit;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInflight() {
+        return inflight;
+    }
+
+    /**
+     * @return the long-term latency in nanoseconds or 0 if there are no samples yet.
+     */
+    synchronized long getLatency() {
+        return (long) longLatency;
+    }
+
+    /**
+     * @return true if the request can be sent, false if it must be shed.
+     */
+    synchronized boolean tryAcquire() {
+        if (settings.enabled && inflight >= (int) limit) {
+            return false;
+        }
+
+        inflight++;
+        return true;
+    }
+
+    synchronized void release() {
+        inflight--;
+    }
+
+    /**
+     * @param latency - the time in nanoseconds from acquiring the permit to receiving the response header.
+     */
+    synchronized void onSample(long latency) {
+        if (longLatency == 0) {
+            longLatency = latency;
+        } else {
+            longLatency += (latency - longLatency) / settings.window;
+        }
+
+        // the long-term latency recovers faster after the latency spike is over
+        if (longLatency > 2.0 * latency) {
+            longLatency *= 0.95;
+        }
+
+        // the limit is not grown when it is not used
+        if (inflight < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, settings.tolerance * longLatency / Math.max(latency, 1)));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        update(limit * (1 - settings.smoothing) + newLimit * settings.smoothing);
+    }
+
+    synchronized void onDrop() {
+        update(limit * settings.backoff);
+    }
+
+    private void update(double newLimit) {
+        limit = Math.max(settings.minLimit, Math.min(settings.maxLimit, newLimit));
+    }
+
+    /**
+     * @param enabled - if false, the limit is computed, but no request is shed.
+     * @param window - the number of samples the long-term latency is averaged over.
+     */
+    record Settings(boolean enabled, int initialLimit, int minLimit, int maxLimit,
+                    double tolerance, double smoothing, double backoff, int window) {
+
+        static Settings from(JsonObject settings) {
+            return new Settings(
+                    settings.getBoolean("enabled", false),
+                    settings.getInteger("initialLimit", 20),
+                    settings.getInteger("minLimit", 1),
+                    settings.getInteger("maxLimit", 1000),
+                    settings.getDouble("tolerance", 1.5),
+                    settings.getDouble("smoothing", 0.2),
+                    settings.getDouble("backoff", 0.9),
+                    settings.getInteger("window", 100));
+        }
+    }
+}
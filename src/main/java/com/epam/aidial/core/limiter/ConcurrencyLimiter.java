@@ -0,0 +1,276 @@
+package com.epam.aidial.core.limiter;
+
+import com.epam.aidial.core.util.HttpStatus;
+import com.epam.aidial.core.util.MetricUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent requests per deployment, so a slow deployment is not flooded with requests
+ * queuing in the connection pool and doesn't hold the resources the other deployments need.
+ * The limit adapts to the latency as described in {@link ConcurrencyLimit}.
+ * <p>
+ *     The requests over the limit wait in the bounded queue of the deployment and are admitted by {@link FairQueue},
+ *     so each key or user gets the share of the capacity according to its weight.
+ *     The requests are shed if the queue is full or they wait longer than the max wait.
+ * </p>
+ * <p>
+ *     The state and the metrics of the deployment are removed after it is not requested for a while.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+
+    private static final long ENTRY_EXPIRATION = TimeUnit.MINUTES.toMillis(10);
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .expireAfterAccess(ENTRY_EXPIRATION, TimeUnit.MILLISECONDS)
+            .removalListener(ConcurrencyLimiter::onRemoval)
+            .build();
+    private final Vertx vertx;
+    private final ConcurrencyLimit.Settings settings;
+    private final int queueSize;
+    private final long queueMaxWait;
+    private final LongSupplier clock;
+
+    /**
+     * @param settings - the settings of the concurrency limit per deployment and <code>queue</code> settings:
+     *                 <code>size</code> and <code>maxWait</code>.
+     */
+    public ConcurrencyLimiter(Vertx vertx, JsonObject settings) {
+        this(vertx, settings, System::nanoTime);
+    }
+
+    ConcurrencyLimiter(Vertx vertx, JsonObject settings, LongSupplier clock) {
+        JsonObject queueSettings = settings.getJsonObject("queue", new JsonObject());
+        this.vertx = vertx;
+        this.settings = ConcurrencyLimit.Settings.from(settings);
+        this.queueSize = queueSettings.getInteger("size", 0);
+        this.queueMaxWait = queueSettings.getLong("maxWait", 1000L);
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if the requests over the limit are shed, otherwise the limiter is not used.
+     */
+    public boolean isEnabled() {
+        return settings.enabled();
+    }
+
+    /**
+     * Admits the request immediately if the deployment is under the limit, otherwise queues it.
+     *
+     * @param flow - the key or user the request is queued for.
+     * @param weight - the share of the flow relative to the other flows.
+     * @return the permit to release once the request is completed or null if the request must be shed.
+     */
+    public Future<Permit> acquire(String deployment, String flow, double weight) {
+        Entry entry = entry(deployment);
+        Waiter waiter;
+
+        synchronized (entry) {
+            if (entry.queue.size() == 0 && entry.limit.tryAcquire()) {
+                return Future.succeededFuture(new Permit(entry, clock.getAsLong()));
+            }
+
+            if (entry.queue.size() >= queueSize) {
+                entry.shed.increment();
+                return Future.succeededFuture();
+            }
+
+            waiter = new Waiter(vertx.getOrCreateContext(), Promise.promise(), clock.getAsLong());
+            waiter.item = entry.queue.add(flow, Math.max(weight, 0.001), waiter);
+            waiter.timer = vertx.setTimer(queueMaxWait, ignore -> expire(entry, waiter));
+        }
+
+        // the limit could grow since the last request was released
+        dispatch(entry);
+        return waiter.promise.future();
+    }
+
+    /**
+     * @return the time in seconds the client should wait before retrying the shed request.
+     */
+    public long getRetryAfter(String deployment) {
+        Entry entry = entries.getIfPresent(deployment);
+        long latency = (entry == null) ? 0 : entry.limit.getLatency();
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(latency + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    @VisibleForTesting
+    int getLimit(String deployment) {
+        Entry entry = entries.getIfPresent(deployment);
+        return (entry == null) ? settings.initialLimit() : entry.limit.getLimit();
+    }
+
+    private void expire(Entry entry, Waiter waiter) {
+        synchronized (entry) {
+            if (!entry.queue.remove(waiter.item)) {
+                return;
+            }
+
+            entry.shed.increment();
+        }
+
+        waiter.context.runOnContext(ignore -> waiter.promise.complete());
+    }
+
+    /**
+     * Admits the waiting requests while the deployment is under the limit.
+     */
+    private void dispatch(Entry entry) {
+        while (true) {
+            Waiter waiter;
+            long now = clock.getAsLong();
+
+            synchronized (entry) {
+                if (entry.queue.size() == 0 || !entry.limit.tryAcquire()) {
+                    return;
+                }
+
+                waiter = entry.queue.poll();
+            }
+
+            vertx.cancelTimer(waiter.timer);
+            entry.queueWait.record(now - waiter.start, TimeUnit.NANOSECONDS);
+            Permit permit = new Permit(entry, now);
+            waiter.context.runOnContext(ignore -> waiter.promise.complete(permit));
+        }
+    }
+
+    private Entry entry(String deployment) {
+        try {
+            return entries.get(deployment, () -> createEntry(deployment));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void onRemoval(RemovalNotification<String, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry != null) {
+            MeterRegistry registry = MetricUtil.registry();
+            entry.meters.forEach(registry::remove);
+        }
+    }
+
+    private Entry createEntry(String deployment) {
+        ConcurrencyLimit limit = new ConcurrencyLimit(settings);
+        FairQueue<Waiter> queue = new FairQueue<>();
+        String name = String.valueOf(deployment);
+        MeterRegistry registry = MetricUtil.registry();
+
+        Gauge limitGauge = Gauge.builder("aidial.deployment.concurrency.limit", limit, ConcurrencyLimit::getLimit)
+                .description("Current concurrency limit of the deployment")
+                .tag("deployment", name)
+                .register(registry);
+        Gauge inflightGauge = Gauge.builder("aidial.deployment.concurrency.inflight", limit, ConcurrencyLimit::getInflight)
+                .description("Number of requests to the deployment in flight")
+                .tag("deployment", name)
+                .register(registry);
+        Counter shed = Counter.builder("aidial.deployment.concurrency.shed")
+                .description("Number of requests to the deployment shed over the concurrency limit")
+                .tag("deployment", name)
+                .register(registry);
+        Gauge queueSizeGauge = Gauge.builder("aidial.deployment.concurrency.queue.size", queue, FairQueue::size)
+                .description("Number of requests to the deployment waiting in the queue")
+                .tag("deployment", name)
+                .register(registry);
+        Timer queueWait = Timer.builder("aidial.deployment.concurrency.queue.wait")
+                .description("Time the admitted request to the deployment waited in the queue")
+                .tag("deployment", name)
+                .register(registry);
+
+        return new Entry(limit, queue, shed, queueWait, List.of(limitGauge, inflightGauge, shed, queueSizeGauge, queueWait));
+    }
+
+    /**
+     * @param meters - all meters of the deployment to remove once the entry is evicted.
+     */
+    private record Entry(ConcurrencyLimit limit, FairQueue<Waiter> queue, Counter shed, Timer queueWait, List<Meter> meters) {
+    }
+
+    private static class Waiter {
+        final Context context;
+        final Promise<Permit> promise;
+        final long start;
+        FairQueue.Item<Waiter> item;
+        long timer;
+
+        Waiter(Context context, Promise<Permit> promise, long start) {
+            this.context = context;
+            this.promise = promise;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Held by the request from the deployment is selected until the request is completed.
+     * Only the first response or failure is sampled, so the retries to other upstreams don't skew the latency.
+     */
+    public class Permit {
+
+        private final Entry entry;
+        private final ConcurrencyLimit limit;
+        private final long start;
+        private boolean sampled;
+        private boolean released;
+
+        private Permit(Entry entry, long start) {
+            this.entry = entry;
+            this.limit = entry.limit;
+            this.start = start;
+        }
+
+        public synchronized void onResponse(int status) {
+            if (sampled) {
+                return;
+            }
+
+            sampled = true;
+            if (status == HttpStatus.TOO_MANY_REQUESTS.getCode() || status == HttpStatus.SERVICE_UNAVAILABLE.getCode()
+                    || status == HttpStatus.GATEWAY_TIMEOUT.getCode()) {
+                limit.onDrop();
+            } else {
+                limit.onSample(clock.getAsLong() - start);
+            }
+        }
+
+        public synchronized void onFailure() {
+            if (!sampled) {
+                sampled = true;
+                limit.onDrop();
+            }
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+
+            synchronized (entry) {
+                limit.release();
+            }
+            dispatch(entry);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.epam.aidial.core.limiter;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Orders the waiting requests by self-clocked weighted fair queuing: each request of a flow gets the virtual finish time
+ * after the previous request of the same flow, spaced by the inverse of the flow weight.
+ * So a flow with many waiting requests can't delay the requests of the other flows by more than its share.
+ * Not thread-safe.
+ */
+class FairQueue<T> {
+
+    private final PriorityQueue<Item<T>> items = new PriorityQueue<>(
+            Comparator.<Item<T>>comparingDouble(item -> item.finish()).thenComparingLong(item -> item.sequence()));
+    private final Map<String, Double> finishes = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+
+    int size() {
+        return items.size();
+    }
+
+    Item<T> add(String flow, double weight, T value) {
+        double start = Math.max(virtualTime, finishes.getOrDefault(flow, 0.0));
+        double finish = start + 1.0 / weight;
+        finishes.put(flow, finish);
+
+        Item<T> item = new Item<>(value, finish, sequence++);
+        items.add(item);
+        return item;
+    }
+
+    /**
+     * @return the value with the earliest virtual finish time or null if the queue is empty.
+     */
+    T poll() {
+        Item<T> item = items.poll();
+        if (item == null) {
+            return null;
+        }
+
+        virtualTime = item.finish();
+        if (items.isEmpty()) {
+            finishes.clear();
+        } else if (finishes.size() > 2 * items.size()) {
+            // the flows without waiting requests start from the virtual time anyway
+            finishes.values().removeIf(finish -> finish <= virtualTime);
+        }
+
+        return item.value();
+    }
+
+    boolean remove(Item<T> item) {
+        return items.remove(item);
+    }
+
+    record Item<T>(T value, double finish, long sequence) {
+    }
+}
@@ -0,0 +1,264 @@
+package com.epam.aidial.core.limiter;
+
+import com.epam.aidial.core.config.Limit;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Admits requests locally against the allowance leased from {@link RedisRateBuckets}, so most requests don't go to Redis.
+ * <p>
+ *     The node leases a block of requests per deployment and user bucket: the whole block is counted in Redis when it is leased.
+ *     The block is at most <code>requests</code> and at most half of the remaining requests known from the previous lease.
+ *     Token usage is accumulated locally and flushed to Redis when the lease is renewed or expires.
+ *     The unused requests are returned at the same time if they fall into the same bucket interval, otherwise they expire being counted.
+ * </p>
+ * <p>
+ *     The limits are enforced with the tolerance: a request limit can be exceeded by up to <code>requests - 1</code> per node,
+ *     a token limit can be exceeded by the tokens used on other nodes within <code>duration</code>.
+ * </p>
+ */
+@Slf4j
+public class RateLeases implements AutoCloseable {
+
+    private static final String TOKENS = "tokens";
+    private static final String REQUESTS = "requests";
+
+    private final Vertx vertx;
+    private final RedisRateBuckets buckets;
+    private final long maxRequests;
+    private final long duration;
+    private final long flushTimer;
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * @param settings - lease settings: <code>requests</code> and <code>duration</code>.
+     */
+    public RateLeases(Vertx vertx, RedisRateBuckets buckets, JsonObject settings) {
+        this.vertx = vertx;
+        this.buckets = buckets;
+        this.maxRequests = settings.getLong("requests", 10L);
+        this.duration = settings.getLong("duration", 1000L);
+        // vertex timer is called from event loop, so flush is done in worker thread to not block event loop
+        this.flushTimer = vertx.setPeriodic(duration, duration, ignore -> vertx.executeBlocking(() -> flush(false), false));
+    }
+
+    /**
+     * Admits the request against the current lease without going to Redis. Can be called from event loop.
+     *
+     * @return true if the request is admitted, false if the lease must be renewed with {@link #acquire}.
+     */
+    boolean tryAcquire(String bucketLocation, String deploymentName, Limit limit, long timestamp) {
+        Lease lease = leases.get(bucketLocation + deploymentName);
+        if (lease == null) {
+            return false;
+        }
+
+        synchronized (lease) {
+            if (lease.removed || lease.requests <= 0 || timestamp >= lease.expiration
+                    || lease.minuteTokens + lease.pendingTokens >= limit.getMinute()
+                    || lease.dayTokens + lease.pendingTokens >= limit.getDay()) {
+                return false;
+            }
+
+            lease.requests--;
+            return true;
+        }
+    }
+
+    /**
+     * Renews the lease in one round trip: flushes the pending tokens, returns the unused requests,
+     * checks the token limits and leases the next block of requests, one of which is taken by the current request.
+     *
+     * @return the result with the bucket sums: minute tokens, day tokens, hour requests and day requests.
+     */
+    RedisRateBuckets.Result acquire(String bucketLocation, String deploymentName, Limit limit, long timestamp) {
+        Lease lease;
+        long pending;
+        long hourReturn;
+        long dayReturn;
+        long block;
+
+        while (true) {
+            lease = leases.computeIfAbsent(bucketLocation + deploymentName, key -> new Lease(bucketLocation, deploymentName));
+            synchronized (lease) {
+                if (lease.removed) {
+                    continue;
+                }
+
+                pending = lease.pendingTokens;
+                hourReturn = returnable(lease, RateWindow.HOUR, timestamp);
+                dayReturn = returnable(lease, RateWindow.DAY, timestamp);
+                long remaining = Math.min(limit.getRequestHour() - lease.hourRequests, limit.getRequestDay() - lease.dayRequests);
+                block = Math.max(1, Math.min(maxRequests, remaining / 2));
+                lease.pendingTokens = 0;
+                lease.requests = 0;
+                break;
+            }
+        }
+
+        List<RedisRateBuckets.Operation> operations = List.of(
+                RedisRateBuckets.Operation.checkAndAdd(lease.minuteTokensKey, RateWindow.MINUTE,
+                        Math.max(0, limit.getMinute() - pending), pending),
+                RedisRateBuckets.Operation.checkAndAdd(lease.dayTokensKey, RateWindow.DAY,
+                        Math.max(0, limit.getDay() - pending), pending),
+                RedisRateBuckets.Operation.checkAndAdd(lease.hourRequestsKey, RateWindow.HOUR,
+                        saturatedAdd(limit.getRequestHour(), hourReturn), block - hourReturn),
+                RedisRateBuckets.Operation.checkAndAdd(lease.dayRequestsKey, RateWindow.DAY,
+                        saturatedAdd(limit.getRequestDay(), dayReturn), block - dayReturn));
+
+        RedisRateBuckets.Result result = buckets.apply(timestamp, operations);
+        long[] sums = result.sums();
+
+        if (!result.accepted()) {
+            // nothing is added when rejected, the tokens are used anyway, while the unused requests expire being counted
+            flushTokens(lease, timestamp, pending);
+            sums[0] += pending;
+            sums[1] += pending;
+            sums[2] -= hourReturn;
+            sums[3] -= dayReturn;
+            return new RedisRateBuckets.Result(false, sums);
+        }
+
+        synchronized (lease) {
+            lease.requests += block - 1;
+            lease.acquired = timestamp;
+            lease.expiration = timestamp + duration;
+            lease.minuteTokens = sums[0] + pending;
+            lease.dayTokens = sums[1] + pending;
+            lease.hourRequests = sums[2] - hourReturn + block;
+            lease.dayRequests = sums[3] - dayReturn + block;
+        }
+
+        return result;
+    }
+
+    /**
+     * Accumulates the used tokens locally until the lease is renewed or expires. Can be called from event loop.
+     */
+    void addTokens(String bucketLocation, String deploymentName, long tokens) {
+        while (true) {
+            Lease lease = leases.computeIfAbsent(bucketLocation + deploymentName, key -> new Lease(bucketLocation, deploymentName));
+            synchronized (lease) {
+                if (!lease.removed) {
+                    lease.pendingTokens += tokens;
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        vertx.cancelTimer(flushTimer);
+        flush(true);
+    }
+
+    /**
+     * Flushes the pending tokens and returns the unused requests of the expired leases and removes them.
+     *
+     * @param all - flush all the leases regardless of the expiration.
+     */
+    Void flush(boolean all) {
+        long timestamp = System.currentTimeMillis();
+
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            long pending;
+            long hourReturn;
+            long dayReturn;
+
+            synchronized (lease) {
+                if (!all && timestamp < lease.expiration) {
+                    continue;
+                }
+
+                pending = lease.pendingTokens;
+                hourReturn = returnable(lease, RateWindow.HOUR, timestamp);
+                dayReturn = returnable(lease, RateWindow.DAY, timestamp);
+                lease.pendingTokens = 0;
+                lease.requests = 0;
+                lease.removed = true;
+                leases.remove(entry.getKey(), lease);
+            }
+
+            List<RedisRateBuckets.Operation> operations = new ArrayList<>(4);
+            if (pending > 0) {
+                operations.add(RedisRateBuckets.Operation.add(lease.minuteTokensKey, RateWindow.MINUTE, pending));
+                operations.add(RedisRateBuckets.Operation.add(lease.dayTokensKey, RateWindow.DAY, pending));
+            }
+            if (hourReturn > 0) {
+                operations.add(RedisRateBuckets.Operation.add(lease.hourRequestsKey, RateWindow.HOUR, -hourReturn));
+            }
+            if (dayReturn > 0) {
+                operations.add(RedisRateBuckets.Operation.add(lease.dayRequestsKey, RateWindow.DAY, -dayReturn));
+            }
+
+            try {
+                if (!operations.isEmpty()) {
+                    buckets.apply(timestamp, operations);
+                }
+            } catch (Throwable e) {
+                log.warn("Failed to flush rate lease. Bucket: {}. Deployment: {}. Tokens: {}",
+                        lease.bucketLocation, lease.deploymentName, pending, e);
+            }
+        }
+
+        return null;
+    }
+
+    private void flushTokens(Lease lease, long timestamp, long pending) {
+        if (pending > 0) {
+            buckets.apply(timestamp, List.of(
+                    RedisRateBuckets.Operation.add(lease.minuteTokensKey, RateWindow.MINUTE, pending),
+                    RedisRateBuckets.Operation.add(lease.dayTokensKey, RateWindow.DAY, pending)));
+        }
+    }
+
+    /**
+     * The unused requests can be returned only to the interval they were counted in.
+     */
+    private static long returnable(Lease lease, RateWindow window, long timestamp) {
+        boolean sameInterval = lease.acquired / window.interval() == timestamp / window.interval();
+        return sameInterval ? lease.requests : 0;
+    }
+
+    private static long saturatedAdd(long limit, long count) {
+        long sum = limit + count;
+        return (sum < limit) ? Long.MAX_VALUE : sum;
+    }
+
+    private class Lease {
+        final String bucketLocation;
+        final String deploymentName;
+        final String minuteTokensKey;
+        final String dayTokensKey;
+        final String hourRequestsKey;
+        final String dayRequestsKey;
+
+        long requests;
+        long acquired;
+        long expiration;
+        long pendingTokens;
+        long minuteTokens;
+        long dayTokens;
+        long hourRequests;
+        long dayRequests;
+        boolean removed;
+
+        Lease(String bucketLocation, String deploymentName) {
+            this.bucketLocation = bucketLocation;
+            this.deploymentName = deploymentName;
+            this.minuteTokensKey = buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.MINUTE);
+            this.dayTokensKey = buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.DAY);
+            this.hourRequestsKey = buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.HOUR);
+            this.dayRequestsKey = buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.DAY);
+        }
+    }
+}
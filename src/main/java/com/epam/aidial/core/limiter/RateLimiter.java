@@ -21,6 +21,7 @@ import lombok.extern.slf4j.Slf4j;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import javax.annotation.Nullable;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -28,11 +29,34 @@ public class RateLimiter {
 
     private static final Limit DEFAULT_LIMIT = new Limit();
     private static final String DEFAULT_USER_ROLE = "default";
+    private static final String TOKENS = "tokens";
+    private static final String REQUESTS = "requests";
 
     private final Vertx vertx;
 
     private final ResourceService resourceService;
 
+    /**
+     * Redis engine keeps rate buckets in Redis hashes and updates them with Lua script.
+     * If it is not set, rate buckets are stored as JSON resources and updated under the lock.
+     */
+    @Nullable
+    private final RedisRateBuckets buckets;
+
+    /**
+     * Leases are used with Redis engine to admit most requests locally. If it is not set, every request goes to Redis.
+     */
+    @Nullable
+    private final RateLeases leases;
+
+    public RateLimiter(Vertx vertx, ResourceService resourceService) {
+        this(vertx, resourceService, null);
+    }
+
+    public RateLimiter(Vertx vertx, ResourceService resourceService, @Nullable RedisRateBuckets buckets) {
+        this(vertx, resourceService, buckets, null);
+    }
+
     public Future<Void> increase(ProxyContext context) {
         try {
             // skip checking limits if redis is not available
@@ -46,6 +70,15 @@ public class RateLimiter {
                 return Future.succeededFuture();
             }
 
+            if (leases != null) {
+                leases.addTokens(BlobStorageUtil.buildUserBucket(context), context.getDeployment().getName(), usage.getTotalTokens());
+                return Future.succeededFuture();
+            }
+
+            if (buckets != null) {
+                return vertx.executeBlocking(() -> addTokens(context, usage.getTotalTokens()), false);
+            }
+
             String tokensPath = getPathToTokens(context.getDeployment().getName());
             ResourceDescription resourceDescription = getResourceDescription(context, tokensPath);
             return vertx.executeBlocking(() -> updateTokenLimit(resourceDescription, usage.getTotalTokens()), false);
@@ -78,6 +111,11 @@ public class RateLimiter {
                 return Future.succeededFuture(new RateLimitResult(HttpStatus.FORBIDDEN, "Access denied"));
             }
 
+            if (leases != null && leases.tryAcquire(BlobStorageUtil.buildUserBucket(context), deploymentName,
+                    limit, System.currentTimeMillis())) {
+                return Future.succeededFuture(RateLimitResult.SUCCESS);
+            }
+
             return vertx.executeBlocking(() -> checkLimit(context, limit), false);
         } catch (Throwable e) {
             return Future.failedFuture(e);
@@ -112,6 +150,10 @@ public class RateLimiter {
     private LimitStats getLimitStats(ProxyContext context, Limit limit, String deploymentName) {
         LimitStats limitStats = create(limit);
         long timestamp = System.currentTimeMillis();
+        if (buckets != null) {
+            collectLimitStats(context, limitStats, timestamp, deploymentName);
+            return limitStats;
+        }
         collectTokenLimitStats(context, limitStats, timestamp, deploymentName);
         collectRequestLimitStats(context, limitStats, timestamp, deploymentName);
         return limitStats;
@@ -168,6 +210,14 @@ public class RateLimiter {
 
     private RateLimitResult checkLimit(ProxyContext context, Limit limit) {
         long timestamp = System.currentTimeMillis();
+        if (leases != null) {
+            RedisRateBuckets.Result result = leases.acquire(BlobStorageUtil.buildUserBucket(context),
+                    context.getDeployment().getName(), limit, timestamp);
+            return toRateLimitResult(result, limit);
+        }
+        if (buckets != null) {
+            return checkBuckets(context, limit, timestamp);
+        }
         RateLimitResult tokenResult = checkTokenLimit(context, limit, timestamp);
         if (tokenResult.status() != HttpStatus.OK) {
             return tokenResult;
@@ -219,6 +269,71 @@ public class RateLimiter {
         return ProxyUtil.convertToString(rateLimit);
     }
 
+    private RateLimitResult checkBuckets(ProxyContext context, Limit limit, long timestamp) {
+        String bucketLocation = BlobStorageUtil.buildUserBucket(context);
+        String deploymentName = context.getDeployment().getName();
+        // tokens are only checked, while requests are checked and counted if no limit is hit
+        List<RedisRateBuckets.Operation> operations = List.of(
+                RedisRateBuckets.Operation.check(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.MINUTE),
+                        RateWindow.MINUTE, limit.getMinute()),
+                RedisRateBuckets.Operation.check(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.DAY),
+                        RateWindow.DAY, limit.getDay()),
+                RedisRateBuckets.Operation.checkAndAdd(buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.HOUR),
+                        RateWindow.HOUR, limit.getRequestHour(), 1),
+                RedisRateBuckets.Operation.checkAndAdd(buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.DAY),
+                        RateWindow.DAY, limit.getRequestDay(), 1));
+
+        RedisRateBuckets.Result result = buckets.apply(timestamp, operations);
+        return toRateLimitResult(result, limit);
+    }
+
+    /**
+     * @param result - the result with the bucket sums: minute tokens, day tokens, hour requests and day requests.
+     */
+    private static RateLimitResult toRateLimitResult(RedisRateBuckets.Result result, Limit limit) {
+        if (result.accepted()) {
+            return RateLimitResult.SUCCESS;
+        }
+
+        long[] sums = result.sums();
+        if (sums[0] >= limit.getMinute() || sums[1] >= limit.getDay()) {
+            String errorMsg = String.format("Hit token rate limit. Minute limit: %d / %d tokens. Day limit: %d / %d tokens.",
+                    sums[0], limit.getMinute(), sums[1], limit.getDay());
+            return new RateLimitResult(HttpStatus.TOO_MANY_REQUESTS, errorMsg);
+        }
+
+        String errorMsg = String.format("Hit request rate limit. Hour limit: %d / %d requests. Day limit: %d / %d requests.",
+                sums[2], limit.getRequestHour(), sums[3], limit.getRequestDay());
+        return new RateLimitResult(HttpStatus.TOO_MANY_REQUESTS, errorMsg);
+    }
+
+    private Void addTokens(ProxyContext context, long totalUsedTokens) {
+        String bucketLocation = BlobStorageUtil.buildUserBucket(context);
+        String deploymentName = context.getDeployment().getName();
+        List<RedisRateBuckets.Operation> operations = List.of(
+                RedisRateBuckets.Operation.add(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.MINUTE),
+                        RateWindow.MINUTE, totalUsedTokens),
+                RedisRateBuckets.Operation.add(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.DAY),
+                        RateWindow.DAY, totalUsedTokens));
+        buckets.apply(System.currentTimeMillis(), operations);
+        return null;
+    }
+
+    private void collectLimitStats(ProxyContext context, LimitStats limitStats, long timestamp, String deploymentName) {
+        String bucketLocation = BlobStorageUtil.buildUserBucket(context);
+        List<RedisRateBuckets.Operation> operations = List.of(
+                RedisRateBuckets.Operation.read(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.MINUTE), RateWindow.MINUTE),
+                RedisRateBuckets.Operation.read(buckets.key(bucketLocation, deploymentName, TOKENS, RateWindow.DAY), RateWindow.DAY),
+                RedisRateBuckets.Operation.read(buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.HOUR), RateWindow.HOUR),
+                RedisRateBuckets.Operation.read(buckets.key(bucketLocation, deploymentName, REQUESTS, RateWindow.DAY), RateWindow.DAY));
+
+        long[] sums = buckets.apply(timestamp, operations).sums();
+        limitStats.getMinuteTokenStats().setUsed(sums[0]);
+        limitStats.getDayTokenStats().setUsed(sums[1]);
+        limitStats.getHourRequestStats().setUsed(sums[2]);
+        limitStats.getDayRequestStats().setUsed(sums[3]);
+    }
+
     private Limit getLimitByApiKey(ProxyContext context, String deploymentName) {
         // API key has always one role
         Role role = context.getConfig().getRoles().get(context.getKey().getRole());
@@ -0,0 +1,161 @@
+package com.epam.aidial.core.limiter;
+
+import com.epam.aidial.core.storage.BlobStorageUtil;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps {@link RateBucket} counters in Redis hashes and updates them atomically with Lua script.
+ * <p>
+ *     A bucket is stored as a hash with the fields: <code>start</code>, <code>end</code>, <code>sum</code>
+ *     and a field per non-empty interval. All buckets passed to {@link #apply(long, List)} are updated in one round trip without locks.
+ * </p>
+ */
+public class RedisRateBuckets {
+
+    private static final String SCRIPT = """
+            local now = tonumber(ARGV[1])
+            local points = {}
+            local sums = {}
+            local accepted = 1
+
+            for i, key in ipairs(KEYS) do
+              local arg = 1 + (i - 1) * 4
+              local interval = tonumber(ARGV[arg + 1])
+              local intervals = tonumber(ARGV[arg + 2])
+              local limit = tonumber(ARGV[arg + 3])
+
+              local state = redis.call('hmget', key, 'start', 'end', 'sum')
+              local first = tonumber(state[1])
+              local last = tonumber(state[2])
+              local sum = tonumber(state[3]) or 0
+
+              local point = math.floor(now / interval)
+              if (first ~= nil and point < first) then
+                point = first
+              end
+
+              if (last == nil or point >= last) then
+                local newEnd = point + 1
+                local newStart = newEnd - intervals
+
+                if (last ~= nil) then
+                  for p = first, math.min(last, newStart) - 1 do
+                    local index = tostring(p % intervals)
+                    sum = sum - (tonumber(redis.call('hget', key, index)) or 0)
+                    redis.call('hdel', key, index)
+                  end
+                end
+
+                redis.call('hset', key, 'start', newStart, 'end', newEnd, 'sum', sum)
+              end
+
+              points[i] = point
+              sums[i] = sum
+
+              if (limit >= 0 and sum >= limit) then
+                accepted = 0
+              end
+            end
+
+            for i, key in ipairs(KEYS) do
+              local arg = 1 + (i - 1) * 4
+              local interval = tonumber(ARGV[arg + 1])
+              local intervals = tonumber(ARGV[arg + 2])
+              local count = tonumber(ARGV[arg + 4])
+
+              if (accepted == 1 and count ~= 0) then
+                redis.call('hincrby', key, tostring(points[i] % intervals), count)
+                sums[i] = sums[i] + count
+                redis.call('hset', key, 'sum', sums[i])
+              end
+
+              redis.call('pexpire', key, interval * intervals)
+            end
+
+            return {accepted, unpack(sums)}
+            """;
+
+    private final String prefix;
+    private final RScript script;
+
+    public RedisRateBuckets(RedissonClient redis, @Nullable String prefix) {
+        this.prefix = prefix;
+        this.script = redis.getScript(StringCodec.INSTANCE);
+    }
+
+    /**
+     * Updates all the buckets to the given timestamp and checks their limits.
+     * If no limit is reached, adds the counts to the buckets.
+     *
+     * @return the result with the bucket sums in the order of the operations.
+     */
+    public Result apply(long timestamp, List<Operation> operations) {
+        List<Object> keys = new ArrayList<>(operations.size());
+        List<String> args = new ArrayList<>(1 + 4 * operations.size());
+        args.add(Long.toString(timestamp));
+
+        for (Operation operation : operations) {
+            RateWindow window = operation.window();
+            if (timestamp < window.window()) {
+                throw new IllegalArgumentException("timestamp < window");
+            }
+
+            keys.add(operation.key());
+            args.add(Long.toString(window.interval()));
+            args.add(Integer.toString(window.intervals()));
+            args.add(Long.toString(operation.limit()));
+            args.add(Long.toString(operation.count()));
+        }
+
+        List<Long> result = script.eval(RScript.Mode.READ_WRITE, SCRIPT, RScript.ReturnType.MULTI,
+                keys, args.toArray());
+
+        long[] sums = new long[operations.size()];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = result.get(i + 1);
+        }
+
+        return new Result(result.get(0) == 1, sums);
+    }
+
+    /**
+     * Builds the key of the bucket. The buckets of the same deployment and user share the hash slot,
+     * so that they can be updated by one script in Redis cluster.
+     */
+    public String key(String bucketLocation, String deploymentName, String type, RateWindow window) {
+        String path = BlobStorageUtil.toStoragePath(prefix, bucketLocation + deploymentName);
+        return "limit:{" + path + "}:" + type + ":" + window.name().toLowerCase();
+    }
+
+    /**
+     * @param limit - the sum at which the operation is rejected. Negative value means no limit.
+     * @param count - the count to add if the operation is accepted. Negative value returns the count added before.
+     */
+    public record Operation(String key, RateWindow window, long limit, long count) {
+
+        public static Operation read(String key, RateWindow window) {
+            return new Operation(key, window, -1, 0);
+        }
+
+        public static Operation add(String key, RateWindow window, long count) {
+            return new Operation(key, window, -1, count);
+        }
+
+        public static Operation check(String key, RateWindow window, long limit) {
+            return new Operation(key, window, limit, 0);
+        }
+
+        public static Operation checkAndAdd(String key, RateWindow window, long limit, long count) {
+            return new Operation(key, window, limit, count);
+        }
+    }
+
+    public record Result(boolean accepted, long[] sums) {
+    }
+}
@@ -3,23 +3,31 @@ package com.epam.aidial.core.log;
 import com.epam.aidial.core.Proxy;
 import com.epam.aidial.core.ProxyContext;
 import com.epam.aidial.core.token.TokenUsage;
+import com.epam.aidial.core.upstream.UpstreamRoute;
+import com.epam.aidial.core.util.MetricUtil;
 import com.epam.aidial.core.util.ProxyUtil;
+import com.epam.aidial.core.util.StreamingResponseAssembler;
 import com.epam.deltix.gflog.api.Log;
 import com.epam.deltix.gflog.api.LogEntry;
 import com.epam.deltix.gflog.api.LogFactory;
 import com.epam.deltix.gflog.api.LogLevel;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.buffer.ByteBufInputStream;
-import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
-import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -27,15 +35,60 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Scanner;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the prompt log entries by a dedicated thread.
+ * <p>
+ *     The requests are put into a bounded queue and the writer thread takes them one by one,
+ *     so that building of the entries doesn't compete with other tasks for the worker pool.
+ *     The caller never waits and never writes. The overflow policy applies when the queue is full:
+ *     <ul>
+ *         <li>drop_body - the entry is queued into one of the reserved slots and written without the request and response bodies.
+ *         The entry is dropped if the reserved slots are full too.</li>
+ *         <li>drop_entry - the entry is dropped.</li>
+ *     </ul>
+ * </p>
+ */
 @Slf4j
-public class GfLogStore implements LogStore {
+public class GfLogStore implements LogStore, AutoCloseable {
 
     private static final Log LOGGER = LogFactory.getLog("aidial.log");
-    private final Vertx vertx;
 
-    public GfLogStore(Vertx vertx) {
-        this.vertx = vertx;
+    private final BlockingQueue<Item> queue;
+    private final int queueSize;
+    private final Overflow overflow;
+    private final Thread writer;
+    private final Counter droppedEntries;
+    private final Counter droppedBodies;
+    // used by the writer thread only
+    private final CharsetDecoder decoder = decoder();
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+    private volatile boolean active = true;
+
+    public GfLogStore(JsonObject settings) {
+        this.queueSize = settings.getInteger("queueSize", 4096);
+        this.queue = new ArrayBlockingQueue<>(queueSize + settings.getInteger("reservedSize", 512));
+        this.overflow = Overflow.valueOf(settings.getString("overflow", "drop_body").toUpperCase());
+
+        MeterRegistry registry = MetricUtil.registry();
+        Gauge.builder("aidial.log.queue.size", queue, BlockingQueue::size)
+                .description("Number of log entries waiting to be written")
+                .register(registry);
+        this.droppedEntries = Counter.builder("aidial.log.dropped")
+                .description("Number of log entries dropped or written without bodies because the queue was full")
+                .tag("part", "entry")
+                .register(registry);
+        this.droppedBodies = Counter.builder("aidial.log.dropped")
+                .description("Number of log entries dropped or written without bodies because the queue was full")
+                .tag("part", "body")
+                .register(registry);
+
+        this.writer = new Thread(this::write, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
     }
 
     @Override
@@ -44,40 +97,70 @@ public class GfLogStore implements LogStore {
             return;
         }
 
-        vertx.executeBlocking(() -> doSave(context));
+        // the slots above the queue size are reserved for the entries without bodies
+        if (queue.size() < queueSize && queue.offer(Item.of(context, true))) {
+            return;
+        }
+
+        if (overflow == Overflow.DROP_BODY && queue.offer(Item.of(context, false))) {
+            droppedBodies.increment();
+        } else {
+            droppedEntries.increment();
+        }
+    }
+
+    /**
+     * Stops the writer thread after the queued entries are written.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        active = false;
+        writer.join(TimeUnit.SECONDS.toMillis(15));
+    }
+
+    private void write() {
+        while (active || !queue.isEmpty()) {
+            try {
+                Item item = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    doSave(item);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Log writer is interrupted");
+                break;
+            } catch (Throwable e) {
+                log.warn("Log writer failed: {}", e.getMessage());
+            }
+        }
     }
 
-    private Void doSave(ProxyContext context) {
+    private void doSave(Item item) {
         LogEntry entry = LOGGER.log(LogLevel.INFO);
 
         try {
-            append(context, entry);
+            append(item, entry);
             entry.commit();
         } catch (Throwable e) {
             entry.abort();
             log.warn("Can't save log: {}", e.getMessage());
         }
-        return null;
     }
 
-    private void append(ProxyContext context, LogEntry entry) throws JsonProcessingException {
-        HttpServerRequest request = context.getRequest();
-        HttpServerResponse response = context.getResponse();
-
+    private void append(Item item, LogEntry entry) throws JsonProcessingException {
         append(entry, "{\"apiType\":\"DialOpenAI\",\"chat\":{\"id\":\"", false);
-        append(entry, request.getHeader(Proxy.HEADER_CONVERSATION_ID), true);
+        append(entry, item.conversationId, true);
 
         append(entry, "\"},\"project\":{\"id\":\"", false);
-        append(entry, context.getProject(), true);
+        append(entry, item.project, true);
 
         append(entry, "\"},\"user\":{\"id\":\"", false);
-        append(entry, context.getUserHash(), true);
+        append(entry, item.userHash, true);
 
         append(entry, "\",\"title\":\"", false);
-        append(entry, request.getHeader(Proxy.HEADER_JOB_TITLE), true);
+        append(entry, item.title, true);
         append(entry, "\"}", false);
 
-        TokenUsage tokenUsage = context.getTokenUsage();
+        TokenUsage tokenUsage = item.tokenUsage;
         if (tokenUsage != null) {
             append(entry, ",\"token_usage\":{", false);
             append(entry, "\"completion_tokens\":", false);
@@ -86,6 +169,10 @@ public class GfLogStore implements LogStore {
             append(entry, Long.toString(tokenUsage.getPromptTokens()), true);
             append(entry, ",\"total_tokens\":", false);
             append(entry, Long.toString(tokenUsage.getTotalTokens()), true);
+            if (tokenUsage.getCachedTokens() > 0) {
+                append(entry, ",\"cached_tokens\":", false);
+                append(entry, Long.toString(tokenUsage.getCachedTokens()), true);
+            }
             if (tokenUsage.getCost() != null) {
                 append(entry, ",\"deployment_price\":", false);
                 append(entry, tokenUsage.getCost().toString(), true);
@@ -98,77 +185,126 @@ public class GfLogStore implements LogStore {
         }
 
         append(entry, ",\"deployment\":\"", false);
-        append(entry, context.getDeployment().getName(), true);
+        append(entry, item.deployment, true);
         append(entry, "\"", false);
 
-        String sourceDeployment = context.getSourceDeployment();
+        if (item.responseCached) {
+            append(entry, ",\"cache_hit\":true", false);
+        }
+
+        String sourceDeployment = item.sourceDeployment;
         if (sourceDeployment != null) {
             append(entry, ",\"parent_deployment\":\"", false);
             append(entry, sourceDeployment, true);
             append(entry, "\"", false);
         }
 
-        List<String> executionPath = context.getExecutionPath();
+        List<String> executionPath = item.executionPath;
         if (executionPath != null) {
             append(entry, ",\"execution_path\":", false);
             append(entry, ProxyUtil.MAPPER.writeValueAsString(executionPath), false);
         }
 
         append(entry, ",\"assembled_response\":\"", false);
-        Buffer responseBody = context.getResponseBody();
-        if (isStreamingResponse(responseBody)) {
-            append(entry, assembleStreamingResponse(responseBody), true);
-        } else {
-            append(entry, responseBody);
+        if (item.body) {
+            Buffer responseBody = item.responseBody;
+            StreamingResponseAssembler responseAssembler = item.responseAssembler;
+            if (responseAssembler != null) {
+                append(entry, responseAssembler.assemble(), true);
+            } else if (isStreamingResponse(responseBody)) {
+                append(entry, assembleStreamingResponse(responseBody), true);
+            } else {
+                append(entry, responseBody, decoder, chars);
+            }
         }
         append(entry, "\"", false);
 
         append(entry, ",\"trace\":{\"trace_id\":\"", false);
-        append(entry, context.getTraceId(), true);
+        append(entry, item.traceId, true);
 
         append(entry, "\",\"core_span_id\":\"", false);
-        append(entry, context.getSpanId(), true);
+        append(entry, item.spanId, true);
 
-        String parentSpanId = context.getParentSpanId();
-        if (parentSpanId != null) {
+        if (item.parentSpanId != null) {
             append(entry, "\",\"core_parent_span_id\":\"", false);
-            append(entry, context.getParentSpanId(), true);
+            append(entry, item.parentSpanId, true);
         }
 
         append(entry, "\"},\"request\":{\"protocol\":\"", false);
-        append(entry, request.version().alpnName().toUpperCase(), true);
+        append(entry, item.protocol, true);
 
         append(entry, "\",\"method\":\"", false);
-        append(entry, request.method().name(), true);
+        append(entry, item.method, true);
 
         append(entry, "\",\"uri\":\"", false);
-        append(entry, request.uri(), true);
+        append(entry, item.uri, true);
 
         append(entry, "\",\"time\":\"", false);
-        append(entry, formatTimestamp(context.getRequestTimestamp()), true);
+        append(entry, formatTimestamp(item.requestTimestamp), true);
 
         append(entry, "\",\"body\":\"", false);
-        append(entry, context.getRequestBody());
+        if (item.body) {
+            append(entry, item.requestBody, decoder, chars);
+        }
 
         append(entry, "\"},\"response\":{\"status\":\"", false);
-        append(entry, Integer.toString(response.getStatusCode()), true);
+        append(entry, Integer.toString(item.status), true);
 
-        if (context.getUpstreamRoute() != null) {
+        if (item.upstreamUri != null) {
             append(entry, "\",\"upstream_uri\":\"", false);
-            append(entry, context.getUpstreamRoute().get().getEndpoint(), true);
+            append(entry, item.upstreamUri, true);
         }
 
         append(entry, "\",\"body\":\"", false);
-        append(entry, context.getResponseBody());
+        if (item.body) {
+            append(entry, item.responseBody, decoder, chars);
+        }
 
         append(entry, "\"}}", false);
     }
 
-    private static void append(LogEntry entry, Buffer buffer) {
-        if (buffer != null) {
-            byte[] bytes = buffer.getBytes();
-            String chars = new String(bytes, StandardCharsets.UTF_8); // not efficient, but ok for now
-            append(entry, chars, true);
+    /**
+     * Decodes UTF-8 bytes of the buffer and appends them escaped without conversion to string.
+     * Malformed sequences are replaced with the replacement character.
+     *
+     * @param decoder - UTF-8 decoder which replaces malformed input, see {@link #decoder()}.
+     * @param chars - buffer which the bytes are decoded into chunk by chunk.
+     */
+    static void append(LogEntry entry, Buffer buffer, CharsetDecoder decoder, CharBuffer chars) {
+        if (buffer == null) {
+            return;
+        }
+
+        ByteBuffer bytes = buffer.getByteBuf().nioBuffer();
+        CoderResult result;
+        decoder.reset();
+
+        do {
+            result = decoder.decode(bytes, chars, true);
+            append(entry, chars);
+        } while (result.isOverflow());
+
+        do {
+            result = decoder.flush(chars);
+            append(entry, chars);
+        } while (result.isOverflow());
+    }
+
+    private static void append(LogEntry entry, CharBuffer chars) {
+        chars.flip();
+        while (chars.hasRemaining()) {
+            append(entry, chars.get());
+        }
+        chars.clear();
+    }
+
+    private static void append(LogEntry entry, char c) {
+        char e = escape(c);
+        if (e == 0) {
+            entry.append(c);
+        } else {
+            entry.append('\\');
+            entry.append(e);
         }
     }
 
@@ -212,6 +348,12 @@ public class GfLogStore implements LogStore {
         };
     }
 
+    static CharsetDecoder decoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
     private static String formatTimestamp(long timestamp) {
         return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.of("UTC"))
                 .format(DateTimeFormatter.ISO_DATE_TIME);
@@ -220,21 +362,18 @@ public class GfLogStore implements LogStore {
     /**
      * Assembles streaming response into a single one.
      * The assembling process merges chunks of the streaming response one by one using separator: <code>\n*data: *</code>
+     * <p>
+     *     Note. The streaming responses received by {@link com.epam.aidial.core.util.BufferingReadStream} with event parsing
+     *     are assembled while they are forwarded, see {@link StreamingResponseAssembler}.
+     * </p>
      *
      * @param response byte array response to be assembled.
      * @return assembled streaming response
      */
     static String assembleStreamingResponse(Buffer response) {
         try (Scanner scanner = new Scanner(new ByteBufInputStream(response.getByteBuf()))) {
-            StringBuilder content = new StringBuilder();
-            ObjectNode last = null;
-            ObjectNode choice = ProxyUtil.MAPPER.createObjectNode();
-            ObjectNode message = ProxyUtil.MAPPER.createObjectNode();
-            choice.set("message", message);
-            JsonNode usage = null;
-            JsonNode statistics = null;
-            JsonNode systemFingerprint = null;
-            JsonNode model = null;
+            StreamingResponseAssembler assembler = new StreamingResponseAssembler();
+            boolean empty = true;
             // each chunk is separated by one or multiple new lines with the prefix: 'data:'
             scanner.useDelimiter("\n*data: *");
             while (scanner.hasNext()) {
@@ -243,76 +382,15 @@ public class GfLogStore implements LogStore {
                     break;
                 }
                 ObjectNode tree = (ObjectNode) ProxyUtil.MAPPER.readTree(chunk);
-                if (tree.get("usage") != null) {
-                    usage = tree.get("usage");
-                }
-                if (tree.get("statistics") != null) {
-                    statistics = tree.get("statistics");
-                }
-                if (tree.get("system_fingerprint") != null) {
-                    systemFingerprint = tree.get("system_fingerprint");
-                }
-                if (model == null && tree.get("model") != null) {
-                    model = tree.get("model");
-                }
-                last = tree;
-                ArrayNode choices = (ArrayNode) tree.get("choices");
-                if (choices == null) {
-                    // skip error message
-                    continue;
-                }
-                JsonNode curChoice = choices.get(0);
-                choice.set("finish_reason", curChoice.get("finish_reason"));
-                JsonNode delta = curChoice.get("delta");
-                if (delta.get("custom_content") != null) {
-                    message.set("custom_content", delta.get("custom_content"));
-                }
-                if (delta.get("tool_calls") != null) {
-                    message.set("tool_calls", delta.get("tool_calls"));
-                }
-                if (delta.get("function_call") != null) {
-                    message.set("function_call", delta.get("function_call"));
-                }
-                JsonNode contentNode = delta.get("content");
-                if (contentNode != null) {
-                    content.append(contentNode.textValue());
-                }
+                assembler.append(tree);
+                empty = false;
             }
 
-            if (last == null) {
+            if (empty) {
                 log.warn("no chunk is found in streaming response");
-                return "{}";
-            }
-
-            ObjectNode result = ProxyUtil.MAPPER.createObjectNode();
-            result.set("id", last.get("id"));
-            result.put("object", "chat.completion");
-            result.set("created", last.get("created"));
-            result.set("model", model);
-
-            if (usage != null) {
-                result.set("usage", usage);
-            }
-            if (statistics != null) {
-                result.set("statistics", statistics);
             }
-            if (systemFingerprint != null) {
-                result.set("system_fingerprint", systemFingerprint);
-            }
-
-            if (content.isEmpty()) {
-                // error
-                return ProxyUtil.convertToString(result);
-            }
-
-            ArrayNode choices = ProxyUtil.MAPPER.createArrayNode();
-            result.set("choices", choices);
-            choices.add(choice);
-            choice.put("index", 0);
-            message.put("role", "assistant");
-            message.put("content", content.toString());
 
-            return ProxyUtil.convertToString(result);
+            return assembler.assemble();
         } catch (Throwable e) {
             log.warn("Can't assemble streaming response", e);
             return "{}";
@@ -351,4 +429,35 @@ public class GfLogStore implements LogStore {
         }
         return j == dataToken.length();
     }
+
+    public enum Overflow {
+        DROP_BODY, DROP_ENTRY
+    }
+
+    /**
+     * The fields of the request which are written, so the queued item doesn't retain the request context.
+     *
+     * @param body - whether the request and response bodies are written, the bodies are not retained otherwise.
+     */
+    private record Item(String conversationId, String project, String userHash, String title, TokenUsage tokenUsage,
+                        String deployment, boolean responseCached, String sourceDeployment, List<String> executionPath,
+                        String traceId, String spanId, String parentSpanId,
+                        String protocol, String method, String uri, long requestTimestamp, int status, String upstreamUri,
+                        boolean body, Buffer requestBody, Buffer responseBody, StreamingResponseAssembler responseAssembler) {
+
+        static Item of(ProxyContext context, boolean body) {
+            HttpServerRequest request = context.getRequest();
+            UpstreamRoute upstreamRoute = context.getUpstreamRoute();
+            String upstreamUri = (upstreamRoute == null || context.isResponseCached()) ? null : upstreamRoute.get().getEndpoint();
+
+            return new Item(request.getHeader(Proxy.HEADER_CONVERSATION_ID), context.getProject(), context.getUserHash(),
+                    request.getHeader(Proxy.HEADER_JOB_TITLE), context.getTokenUsage(),
+                    context.getDeployment().getName(), context.isResponseCached(), context.getSourceDeployment(), context.getExecutionPath(),
+                    context.getTraceId(), context.getSpanId(), context.getParentSpanId(),
+                    request.version().alpnName().toUpperCase(), request.method().name(), request.uri(), context.getRequestTimestamp(),
+                    context.getResponse().getStatusCode(), upstreamUri,
+                    body, body ? context.getRequestBody() : null, body ? context.getResponseBody() : null,
+                    body ? context.getResponseAssembler() : null);
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package com.epam.aidial.core.security;
+
+import com.epam.aidial.core.config.ApiKeyData;
+import com.epam.aidial.core.data.ResourceEvent;
+import com.epam.aidial.core.service.ResourceService;
+import com.epam.aidial.core.service.ResourceTopic;
+import com.epam.aidial.core.storage.ResourceDescription;
+import com.epam.aidial.core.util.MetricUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Near cache of per request key data stored in Redis.
+ * <p>
+ *     Every cached key is subscribed to the resource events, so the entry is dropped on all instances
+ *     when the key data is updated or deleted. The entry also expires after the given period in case the event is lost.
+ *     The key is subscribed before its data is read, so an update during the read is not missed:
+ *     the data is not cached if the entry has been dropped in the meantime.
+ * </p>
+ */
+@Slf4j
+class ApiKeyCache {
+
+    private final ResourceService resourceService;
+    private final Cache<String, Entry> cache;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer staleness;
+
+    /**
+     * @param maxSize - the max number of cached keys.
+     * @param expiration - the period in milliseconds after which the cached key is read again.
+     */
+    ApiKeyCache(ResourceService resourceService, long maxSize, long expiration) {
+        this.resourceService = resourceService;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expiration, TimeUnit.MILLISECONDS)
+                .removalListener(ApiKeyCache::onRemoval)
+                .build();
+
+        MeterRegistry registry = MetricUtil.registry();
+        hits = Counter.builder("aidial.apikey.cache.hits")
+                .description("Number of per request keys found in the near cache")
+                .register(registry);
+        misses = Counter.builder("aidial.apikey.cache.misses")
+                .description("Number of per request keys read from the storage")
+                .register(registry);
+        Gauge.builder("aidial.apikey.cache.hit.ratio", this, ApiKeyCache::getHitRatio)
+                .description("Ratio of per request keys found in the near cache")
+                .register(registry);
+        Gauge.builder("aidial.apikey.cache.size", cache, Cache::size)
+                .description("Number of per request keys in the near cache")
+                .register(registry);
+        staleness = Timer.builder("aidial.apikey.cache.staleness")
+                .description("Time from the update of a per request key to the invalidation of its cached data")
+                .register(registry);
+    }
+
+    ApiKeyData get(String key) {
+        Entry entry = cache.getIfPresent(key);
+        ApiKeyData data = (entry == null) ? null : entry.data;
+
+        if (data == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return data;
+    }
+
+    /**
+     * Subscribes the key to the resource events. Must be called before the key data is read.
+     */
+    Entry reserve(String key, ResourceDescription resource) {
+        Entry entry = new Entry();
+        cache.put(key, entry);
+        entry.subscription = resourceService.subscribeResources(List.of(resource), event -> onEvent(key, event));
+
+        if (cache.getIfPresent(key) != entry) {
+            entry.close();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Caches the data read after the key is reserved unless the key has been invalidated since then.
+     */
+    void put(String key, Entry entry, ApiKeyData data) {
+        if (data != null && cache.getIfPresent(key) == entry) {
+            entry.data = data;
+        }
+    }
+
+    void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    private void onEvent(String key, ResourceEvent event) {
+        if (event.getAction() == ResourceEvent.Action.CREATE) {
+            return;
+        }
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            staleness.record(Math.max(0, System.currentTimeMillis() - event.getTimestamp()), TimeUnit.MILLISECONDS);
+            cache.invalidate(key);
+        }
+    }
+
+    private double getHitRatio() {
+        double total = hits.count() + misses.count();
+        return (total == 0) ? 0 : hits.count() / total;
+    }
+
+    private static void onRemoval(RemovalNotification<String, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry != null) {
+            entry.close();
+        }
+    }
+
+    static class Entry {
+        volatile ApiKeyData data;
+        volatile ResourceTopic.Subscription subscription;
+
+        void close() {
+            ResourceTopic.Subscription current = subscription;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
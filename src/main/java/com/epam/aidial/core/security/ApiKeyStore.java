@@ -2,8 +2,10 @@ package com.epam.aidial.core.security;
 
 import com.epam.aidial.core.config.ApiKeyData;
 import com.epam.aidial.core.config.Key;
+import com.epam.aidial.core.data.AutoSharedData;
 import com.epam.aidial.core.data.ResourceType;
 import com.epam.aidial.core.service.ResourceService;
+import com.epam.aidial.core.storage.BlobStorageUtil;
 import com.epam.aidial.core.storage.ResourceDescription;
 import com.epam.aidial.core.util.EtagHeader;
 import com.epam.aidial.core.util.HttpException;
@@ -11,11 +13,21 @@ import com.epam.aidial.core.util.HttpStatus;
 import com.epam.aidial.core.util.ProxyUtil;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.redisson.api.RBatch;
+import org.redisson.api.RMap;
+import org.redisson.api.RMapAsync;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 
 import static com.epam.aidial.core.security.ApiKeyGenerator.generateKey;
 import static com.epam.aidial.core.storage.BlobStorageUtil.PATH_SEPARATOR;
@@ -26,6 +38,15 @@ import static com.epam.aidial.core.storage.BlobStorageUtil.PATH_SEPARATOR;
  *     Per request key is assigned during the request and terminated in the end of the request.
  *     Project keys are hosted by external secure storage and might be periodically updated by {@link com.epam.aidial.core.config.FileConfigStore}.
  * </p>
+ * <p>
+ *     If signed keys are enabled, per request key carries its data signed by {@link SignedApiKeyCodec} and expires by itself.
+ *     Only attachments collected from responses are kept in Redis as a small side record with the same expiration.
+ *     Such key can't be revoked before the expiration, so invalidation just leaves it to expire.
+ * </p>
+ * <p>
+ *     If the near cache is enabled, the data of per request keys stored in Redis is cached by {@link ApiKeyCache},
+ *     so the nested calls of deployments with the same key don't read Redis again.
+ * </p>
  */
 @Slf4j
 public class ApiKeyStore {
@@ -33,13 +54,55 @@ public class ApiKeyStore {
     public static final String API_KEY_DATA_BUCKET = "api_key_data";
     public static final String API_KEY_DATA_LOCATION = API_KEY_DATA_BUCKET + PATH_SEPARATOR;
 
+    private static final String ATTACHED_FILE_FIELD = "file:";
+    private static final String ATTACHED_FOLDER_FIELD = "folder:";
+
     private final ResourceService resourceService;
 
     private final Vertx vertx;
 
+    private final RedissonClient redis;
+
+    private final String prefix;
+
+    @Nullable
+    private final SignedApiKeyCodec codec;
+
+    private final long signedKeyTtl;
+
+    @Nullable
+    private final ApiKeyCache cache;
+
     public ApiKeyStore(ResourceService resourceService, Vertx vertx) {
+        this(resourceService, vertx, null, new JsonObject(), null);
+    }
+
+    /**
+     * @param settings - signed per request key settings: <code>signed</code>, <code>secret</code>, <code>ttl</code> and <code>maxSize</code>,
+     *                 near cache settings: <code>cacheSize</code> and <code>cacheExpiration</code>.
+     */
+    public ApiKeyStore(ResourceService resourceService, Vertx vertx, RedissonClient redis, JsonObject settings, @Nullable String prefix) {
         this.resourceService = resourceService;
         this.vertx = vertx;
+        this.redis = redis;
+        this.prefix = prefix;
+        this.signedKeyTtl = settings.getLong("ttl", 3_600_000L);
+
+        if (settings.getBoolean("signed", false)) {
+            String secret = settings.getString("secret");
+            if (StringUtils.isBlank(secret)) {
+                throw new IllegalArgumentException("Secret must be provided for signed per request keys");
+            }
+            Objects.requireNonNull(redis, "Redis is required for signed per request keys");
+            this.codec = new SignedApiKeyCodec(secret, settings.getInteger("maxSize", 4096));
+        } else {
+            this.codec = null;
+        }
+
+        long cacheSize = settings.getLong("cacheSize", 0L);
+        this.cache = (cacheSize > 0)
+                ? new ApiKeyCache(resourceService, cacheSize, settings.getLong("cacheExpiration", 60_000L))
+                : null;
     }
 
     /**
@@ -54,6 +117,14 @@ public class ApiKeyStore {
      * </p>
      */
     public void assignPerRequestApiKey(ApiKeyData data) {
+        if (codec != null) {
+            String signedKey = codec.encode(data, System.currentTimeMillis() + signedKeyTtl);
+            if (signedKey != null) {
+                data.setPerRequestKey(signedKey);
+                return;
+            }
+            // the data is too large to be sent in a header, so it is stored as usual
+        }
         String perRequestKey = generateKey();
         ResourceDescription resource = toResource(perRequestKey);
         data.setPerRequestKey(perRequestKey);
@@ -65,6 +136,12 @@ public class ApiKeyStore {
                     ? new IllegalStateException(String.format("API key %s already exists in the storage", perRequestKey))
                     : exception;
         }
+
+        if (cache != null) {
+            // the copy is cached, since the caller keeps changing its data
+            ApiKeyCache.Entry entry = cache.reserve(perRequestKey, resource);
+            cache.put(perRequestKey, entry, ProxyUtil.convertToObject(json, ApiKeyData.class));
+        }
     }
 
     public Future<Void> updatePerRequestApiKey(String key, Function<String, String> fn) {
@@ -73,9 +150,14 @@ public class ApiKeyStore {
             log.error("Error occurred at updating api key data: per request API key is undefined");
             return Future.failedFuture(error);
         }
+        if (codec != null && SignedApiKeyCodec.isSigned(key)) {
+            return updateSignedApiKey(key, fn);
+        }
         ResourceDescription resource = toResource(key);
         return vertx.executeBlocking(() -> {
             resourceService.computeResource(resource, fn);
+            // the other instances are notified by the resource event
+            invalidateCache(key);
             return null;
         }, false);
     }
@@ -91,8 +173,25 @@ public class ApiKeyStore {
         if (apiKeyData != null) {
             return Future.succeededFuture(apiKeyData);
         }
+        if (codec != null && SignedApiKeyCodec.isSigned(key)) {
+            return getSignedApiKeyData(key);
+        }
         ResourceDescription resource = toResource(key);
-        return vertx.executeBlocking(() -> ProxyUtil.convertToObject(resourceService.getResource(resource), ApiKeyData.class), false);
+        if (cache == null) {
+            return vertx.executeBlocking(() -> ProxyUtil.convertToObject(resourceService.getResource(resource), ApiKeyData.class), false);
+        }
+
+        apiKeyData = cache.get(key);
+        if (apiKeyData != null) {
+            return Future.succeededFuture(apiKeyData);
+        }
+
+        return vertx.executeBlocking(() -> {
+            ApiKeyCache.Entry entry = cache.reserve(key, resource);
+            ApiKeyData data = ProxyUtil.convertToObject(resourceService.getResource(resource), ApiKeyData.class);
+            cache.put(key, entry, data);
+            return data;
+        }, false);
     }
 
     /**
@@ -104,7 +203,12 @@ public class ApiKeyStore {
      */
     public Future<Boolean> invalidatePerRequestApiKey(ApiKeyData apiKeyData) {
         String apiKey = apiKeyData.getPerRequestKey();
+        if (apiKey != null && codec != null && SignedApiKeyCodec.isSigned(apiKey)) {
+            // the key and its side record expire by themselves
+            return Future.succeededFuture(true);
+        }
         if (apiKey != null) {
+            invalidateCache(apiKey);
             ResourceDescription resource = toResource(apiKey);
             return vertx.executeBlocking(() -> resourceService.deleteResource(resource, EtagHeader.ANY), false);
         }
@@ -132,6 +236,77 @@ public class ApiKeyStore {
         keys = apiKeyDataMap;
     }
 
+    private void invalidateCache(String key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    private Future<ApiKeyData> getSignedApiKeyData(String key) {
+        SignedApiKeyCodec.Payload payload = codec.decode(key, System.currentTimeMillis());
+        if (payload == null) {
+            return Future.succeededFuture();
+        }
+        ApiKeyData data = payload.data();
+        return vertx.executeBlocking(() -> {
+            Map<String, String> fields = attachments(key).readAllMap();
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                String field = entry.getKey();
+                AutoSharedData value = ProxyUtil.convertToObject(entry.getValue(), AutoSharedData.class);
+                if (field.startsWith(ATTACHED_FILE_FIELD)) {
+                    data.getAttachedFiles().put(field.substring(ATTACHED_FILE_FIELD.length()), value);
+                } else if (field.startsWith(ATTACHED_FOLDER_FIELD)) {
+                    data.getAttachedFolders().put(field.substring(ATTACHED_FOLDER_FIELD.length()), value);
+                }
+            }
+            return data;
+        }, false);
+    }
+
+    /**
+     * Only attachments are mutable for signed key: the entries added by the function are appended to the side record.
+     */
+    private Future<Void> updateSignedApiKey(String key, Function<String, String> fn) {
+        SignedApiKeyCodec.Payload payload = codec.decode(key, System.currentTimeMillis());
+        if (payload == null) {
+            return Future.failedFuture(new IllegalArgumentException("Per request API key is not found: " + key));
+        }
+        return vertx.executeBlocking(() -> {
+            ApiKeyData original = payload.data();
+            ApiKeyData updated = ProxyUtil.convertToObject(fn.apply(ProxyUtil.convertToString(original)), ApiKeyData.class);
+            Map<String, String> fields = new HashMap<>();
+            collectAddedAttachments(ATTACHED_FILE_FIELD, original.getAttachedFiles(), updated.getAttachedFiles(), fields);
+            collectAddedAttachments(ATTACHED_FOLDER_FIELD, original.getAttachedFolders(), updated.getAttachedFolders(), fields);
+            if (fields.isEmpty()) {
+                return null;
+            }
+
+            RBatch batch = redis.createBatch();
+            RMapAsync<String, String> map = batch.getMap(attachmentsKey(key), StringCodec.INSTANCE);
+            map.putAllAsync(fields);
+            map.expireAsync(Instant.ofEpochMilli(payload.expiresAt()));
+            batch.execute();
+            return null;
+        }, false);
+    }
+
+    private static void collectAddedAttachments(String type, Map<String, AutoSharedData> original,
+                                                Map<String, AutoSharedData> updated, Map<String, String> fields) {
+        for (Map.Entry<String, AutoSharedData> entry : updated.entrySet()) {
+            if (!entry.getValue().equals(original.get(entry.getKey()))) {
+                fields.put(type + entry.getKey(), ProxyUtil.convertToString(entry.getValue()));
+            }
+        }
+    }
+
+    private RMap<String, String> attachments(String key) {
+        return redis.getMap(attachmentsKey(key), StringCodec.INSTANCE);
+    }
+
+    private String attachmentsKey(String key) {
+        return "api_key_attachments:" + BlobStorageUtil.toStoragePath(prefix, SignedApiKeyCodec.id(key));
+    }
+
     private static ResourceDescription toResource(String apiKey) {
         return ResourceDescription.fromDecoded(
                 ResourceType.API_KEY_DATA, API_KEY_DATA_BUCKET, API_KEY_DATA_LOCATION, apiKey);
@@ -0,0 +1,167 @@
+package com.epam.aidial.core.security;
+
+import com.epam.aidial.core.config.ApiKeyData;
+import com.epam.aidial.core.util.ProxyUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encodes {@link ApiKeyData} into a self-contained per request key: <code>prefix + payload + "." + signature</code>.
+ * <p>
+ *     The payload is base64url encoded nonce and JSON with the data and the expiration time encrypted by AES-GCM,
+ *     so the deployment which receives the key can't read the project key or the user claims.
+ *     The signature is HMAC-SHA256 of the payload. The encryption key is derived from the secret, so both keys
+ *     are the same on all instances.
+ * </p>
+ */
+@Slf4j
+class SignedApiKeyCodec {
+
+    static final String PREFIX = "dial-s2.";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final ThreadLocal<Mac> macs;
+    private final ThreadLocal<Cipher> ciphers;
+    private final SecretKeySpec encryptionKey;
+    private final int maxSize;
+
+    SignedApiKeyCodec(String secret, int maxSize) {
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.encryptionKey = new SecretKeySpec(deriveEncryptionKey(secret), "AES");
+        this.ciphers = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(CIPHER);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // fail fast if the key is not acceptable
+        macs.get();
+        ciphers.get();
+        this.maxSize = maxSize;
+    }
+
+    static boolean isSigned(String key) {
+        return key.startsWith(PREFIX);
+    }
+
+    /**
+     * @return the signed key or <code>null</code> if the key exceeds the max size.
+     */
+    @Nullable
+    String encode(ApiKeyData data, long expiresAt) {
+        String json = ProxyUtil.convertToString(new Payload(expiresAt, data));
+        String payload = ENCODER.encodeToString(encrypt(json.getBytes(StandardCharsets.UTF_8)));
+        String signature = ENCODER.encodeToString(sign(payload));
+        String key = PREFIX + payload + "." + signature;
+        return key.length() > maxSize ? null : key;
+    }
+
+    /**
+     * @return the decoded payload or <code>null</code> if the key is malformed, forged or expired.
+     */
+    @Nullable
+    Payload decode(String key, long now) {
+        int delimiter = key.lastIndexOf('.');
+        if (!isSigned(key) || delimiter < PREFIX.length()) {
+            return null;
+        }
+
+        String payload = key.substring(PREFIX.length(), delimiter);
+        try {
+            byte[] signature = DECODER.decode(key.substring(delimiter + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) {
+                log.warn("Signed per request key has invalid signature");
+                return null;
+            }
+
+            String json = new String(decrypt(DECODER.decode(payload)), StandardCharsets.UTF_8);
+            Payload result = ProxyUtil.convertToObject(json, Payload.class);
+            if (result == null || result.data() == null || result.expiresAt() <= now) {
+                return null;
+            }
+
+            result.data().setPerRequestKey(key);
+            return result;
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            log.warn("Signed per request key is malformed: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the part of the key which is unique and short enough to be used as an identifier.
+     */
+    static String id(String key) {
+        return key.substring(key.lastIndexOf('.') + 1);
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the random nonce followed by the cipher text and the tag.
+     */
+    private byte[] encrypt(byte[] plain) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH, nonce));
+            byte[] encrypted = cipher.doFinal(plain);
+            return ByteBuffer.allocate(nonce.length + encrypted.length).put(nonce).put(encrypted).array();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] decrypt(byte[] payload) throws GeneralSecurityException {
+        if (payload.length <= NONCE_LENGTH) {
+            throw new IllegalArgumentException("Payload is too short");
+        }
+
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH, payload, 0, NONCE_LENGTH));
+        return cipher.doFinal(payload, NONCE_LENGTH, payload.length - NONCE_LENGTH);
+    }
+
+    private static byte[] deriveEncryptionKey(String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(("encryption:" + secret).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    record Payload(long expiresAt, ApiKeyData data) {
+    }
+}
@@ -1,148 +1,214 @@
 package com.epam.aidial.core.token;
 
 import com.epam.aidial.core.ProxyContext;
-import com.epam.aidial.core.config.ApiKeyData;
-import com.epam.aidial.core.data.ResourceType;
-import com.epam.aidial.core.service.ResourceService;
-import com.epam.aidial.core.storage.ResourceDescription;
-import com.epam.aidial.core.util.EtagHeader;
-import com.epam.aidial.core.util.ProxyUtil;
+import com.epam.aidial.core.storage.BlobStorageUtil;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
-import lombok.Data;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-
-import java.util.HashMap;
+import org.redisson.api.RMap;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.List;
 import java.util.Map;
-
-import static com.epam.aidial.core.storage.BlobStorageUtil.PATH_SEPARATOR;
-
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Tracks token usage of the spans within a trace.
+ * <p>
+ *     The trace is stored as a Redis hash with a group of fields per span: parent span ID, token counters and costs.
+ *     Model stats are rolled up to the parent spans by Lua script with atomic increments, so no lock is needed.
+ *     The aggregated cost is summed exactly as an integer number of the smallest cost units with the max scale of the summands,
+ *     so it equals the sum of {@link BigDecimal} costs.
+ *     The hash expires in the given time after the last update, so the trace is not removed explicitly.
+ * </p>
+ */
 @Slf4j
-@RequiredArgsConstructor
 public class TokenStatsTracker {
-    public static final String DEPLOYMENT_COST_STATS_BUCKET = "deployment_cost_stats";
-    public static final String DEPLOYMENT_COST_STATS_LOCATION = DEPLOYMENT_COST_STATS_BUCKET + PATH_SEPARATOR;
+
+    private static final String PARENT = ":parent";
+    private static final String COMPLETION_TOKENS = ":completion";
+    private static final String PROMPT_TOKENS = ":prompt";
+    private static final String TOTAL_TOKENS = ":total";
+    private static final String COST = ":cost";
+    private static final String AGG_COST = ":agg_cost";
+    private static final String AGG_COST_SCALE = ":agg_cost_scale";
+    private static final String CACHED_TOKENS = ":cached";
+
+    /**
+     * The number of decimal places of the aggregated cost units, the costs with more places are rounded.
+     */
+    private static final int COST_SCALE = 9;
+
+    private static final String START_SPAN_SCRIPT = """
+            redis.call('hset', KEYS[1], ARGV[1] .. ':parent', ARGV[2])
+            redis.call('pexpire', KEYS[1], ARGV[3])
+            return 1
+            """;
+
+    private static final String UPDATE_STATS_SCRIPT = """
+            local key = KEYS[1]
+            local span = ARGV[1]
+            local completion = ARGV[2]
+            local prompt = ARGV[3]
+            local total = ARGV[4]
+            local cost = ARGV[5]
+            local aggCost = ARGV[6]
+            local aggCostScale = ARGV[7]
+            local cached = ARGV[8]
+
+            local parent = redis.call('hget', key, span .. ':parent')
+            if (not parent) then
+              return 0
+            end
+
+            redis.call('hset', key, span .. ':completion', completion, span .. ':prompt', prompt, span .. ':total', total,
+                span .. ':cached', cached)
+            if (cost ~= '') then
+              redis.call('hset', key, span .. ':cost', cost)
+            end
+            if (aggCost ~= '') then
+              redis.call('hset', key, span .. ':agg_cost', aggCost, span .. ':agg_cost_scale', aggCostScale)
+            end
+
+            while (parent and parent ~= '') do
+              redis.call('hincrby', key, parent .. ':completion', completion)
+              redis.call('hincrby', key, parent .. ':prompt', prompt)
+              redis.call('hincrby', key, parent .. ':total', total)
+              redis.call('hincrby', key, parent .. ':cached', cached)
+              if (aggCost ~= '') then
+                redis.call('hincrby', key, parent .. ':agg_cost', aggCost)
+                local scale = redis.call('hget', key, parent .. ':agg_cost_scale')
+                if (not scale or tonumber(scale) < tonumber(aggCostScale)) then
+                  redis.call('hset', key, parent .. ':agg_cost_scale', aggCostScale)
+                end
+              end
+              parent = redis.call('hget', key, parent .. ':parent')
+            end
+
+            redis.call('pexpire', key, ARGV[9])
+            return 1
+            """;
 
     private final Vertx vertx;
-    private final ResourceService resourceService;
+    private final RedissonClient redis;
+    private final RScript script;
+    @Nullable
+    private final String prefix;
+    private final long ttl;
+
+    /**
+     * @param ttl - time in milliseconds to keep the trace after the last update.
+     */
+    public TokenStatsTracker(Vertx vertx, RedissonClient redis, @Nullable String prefix, long ttl) {
+        this.vertx = vertx;
+        this.redis = redis;
+        this.script = redis.getScript(StringCodec.INSTANCE);
+        this.prefix = prefix;
+        this.ttl = ttl;
+    }
 
     /**
      * Starts current span.
-     * <p>
-     *     Note. The method is blocking and shouldn't be run in the event loop thread.
-     * </p>
      */
     public Future<Void> startSpan(ProxyContext context) {
         return vertx.executeBlocking(() -> {
-            ResourceDescription resource = toResource(context.getTraceId());
-            resourceService.computeResource(resource, json -> {
-                TraceContext traceContext = ProxyUtil.convertToObject(json, TraceContext.class);
-                if (traceContext == null) {
-                    traceContext = new TraceContext();
-                }
-                traceContext.addSpan(context);
-                return ProxyUtil.convertToString(traceContext);
-            });
+            String parentSpanId = context.getParentSpanId();
+            script.eval(RScript.Mode.READ_WRITE, START_SPAN_SCRIPT, RScript.ReturnType.INTEGER,
+                    List.of(key(context.getTraceId())),
+                    context.getSpanId(), parentSpanId == null ? "" : parentSpanId, Long.toString(ttl));
             return null;
         }, false);
     }
 
     public Future<TokenUsage> getTokenStats(ProxyContext context) {
         return vertx.executeBlocking(() -> {
-            ResourceDescription resource = toResource(context.getTraceId());
-            String json = resourceService.getResource(resource);
-            TraceContext traceContext = ProxyUtil.convertToObject(json, TraceContext.class);
-            if (traceContext == null) {
+            String spanId = context.getSpanId();
+            RMap<String, String> trace = redis.getMap(key(context.getTraceId()), StringCodec.INSTANCE);
+            Map<String, String> fields = trace.getAll(Set.of(spanId + PARENT, spanId + COMPLETION_TOKENS,
+                    spanId + PROMPT_TOKENS, spanId + TOTAL_TOKENS, spanId + CACHED_TOKENS, spanId + COST, spanId + AGG_COST,
+                    spanId + AGG_COST_SCALE));
+            if (!fields.containsKey(spanId + PARENT)) {
                 return null;
             }
-            return traceContext.getStats(context);
+
+            TokenUsage tokenUsage = new TokenUsage();
+            tokenUsage.setCompletionTokens(toLong(fields.get(spanId + COMPLETION_TOKENS)));
+            tokenUsage.setPromptTokens(toLong(fields.get(spanId + PROMPT_TOKENS)));
+            tokenUsage.setTotalTokens(toLong(fields.get(spanId + TOTAL_TOKENS)));
+            tokenUsage.setCachedTokens(toLong(fields.get(spanId + CACHED_TOKENS)));
+            tokenUsage.setCost(toBigDecimal(fields.get(spanId + COST)));
+            tokenUsage.setAggCost(toCost(fields.get(spanId + AGG_COST), fields.get(spanId + AGG_COST_SCALE)));
+            return tokenUsage;
         }, false);
     }
 
     /**
      * Ends current span.
+     * <p>
+     *     Note. The trace is not removed explicitly, it expires after the last update.
+     * </p>
      */
     public Future<Void> endSpan(ProxyContext context) {
-        ApiKeyData apiKeyData = context.getApiKeyData();
-        if (apiKeyData.getPerRequestKey() == null) {
-            return vertx.executeBlocking(() -> {
-                ResourceDescription resource = toResource(context.getTraceId());
-                resourceService.deleteResource(resource, EtagHeader.ANY);
-                return null;
-            }, false);
-        } else {
-            // we don't need to remove the span from trace context right now.
-            // we can do it later when the initial span is completed
-            return Future.succeededFuture();
-        }
+        return Future.succeededFuture();
     }
 
     public Future<TokenUsage> updateModelStats(ProxyContext context) {
-        ResourceDescription resource = toResource(context.getTraceId());
+        TokenUsage tokenUsage = context.getTokenUsage();
+        BigDecimal aggCost = tokenUsage.getAggCost();
         return vertx.executeBlocking(() -> {
-            resourceService.computeResource(resource, json -> {
-                TraceContext traceContext = ProxyUtil.convertToObject(json, TraceContext.class);
-                if (traceContext == null) {
-                    return null;
-                }
-                traceContext.updateStats(context.getSpanId(), context.getTokenUsage());
-                return ProxyUtil.convertToString(traceContext);
-            });
-            return context.getTokenUsage();
+            script.eval(RScript.Mode.READ_WRITE, UPDATE_STATS_SCRIPT, RScript.ReturnType.INTEGER,
+                    List.of(key(context.getTraceId())),
+                    context.getSpanId(),
+                    Long.toString(tokenUsage.getCompletionTokens()),
+                    Long.toString(tokenUsage.getPromptTokens()),
+                    Long.toString(tokenUsage.getTotalTokens()),
+                    toString(tokenUsage.getCost()),
+                    toUnits(aggCost),
+                    (aggCost == null) ? "" : Integer.toString(Math.max(0, Math.min(aggCost.scale(), COST_SCALE))),
+                    Long.toString(tokenUsage.getCachedTokens()),
+                    Long.toString(ttl));
+            return tokenUsage;
         }, false);
     }
 
-    @Data
-    public static class TraceContext {
-        Map<String, TokenStats> spans = new HashMap<>();
-
-        void addSpan(ProxyContext context) {
-            String spanId = context.getSpanId();
-            String parentSpanId = context.getParentSpanId();
-            TokenStats tokenStats = new TokenStats(new TokenUsage(), parentSpanId);
-            spans.put(spanId, tokenStats);
-        }
+    private String key(String traceId) {
+        return "token_stats:" + BlobStorageUtil.toStoragePath(prefix, traceId);
+    }
 
-        TokenUsage getStats(ProxyContext context) {
-            TokenStats tokenStats = spans.get(context.getSpanId());
-            if (tokenStats == null) {
-                return null;
-            }
-            return tokenStats.tokenUsage;
-        }
+    private static long toLong(@Nullable String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
 
-        void updateStats(String spanId, TokenUsage tokenUsage) {
-            TokenStats tokenStats = spans.get(spanId);
-            if (tokenStats == null) {
-                return;
-            }
-            tokenStats.tokenUsage = tokenUsage;
-            String parenSpanId = tokenStats.parentSpanId;
-            while (parenSpanId != null) {
-                tokenStats = spans.get(parenSpanId);
-                tokenStats.tokenUsage.increase(tokenUsage);
-                parenSpanId = tokenStats.parentSpanId;
-            }
-        }
+    @Nullable
+    private static BigDecimal toBigDecimal(@Nullable String value) {
+        return value == null ? null : new BigDecimal(value);
     }
 
-    @Data
-    public static class TokenStats {
-        TokenUsage tokenUsage;
-        String parentSpanId;
+    private static String toString(@Nullable BigDecimal value) {
+        return value == null ? "" : value.toPlainString();
+    }
 
-        public TokenStats() {
-        }
+    private static String toUnits(@Nullable BigDecimal value) {
+        return value == null ? "" : value.setScale(COST_SCALE, RoundingMode.HALF_UP).unscaledValue().toString();
+    }
 
-        public TokenStats(TokenUsage tokenUsage, String parentSpanId) {
-            this.tokenUsage = tokenUsage;
-            this.parentSpanId = parentSpanId;
+    /**
+     * @param units - the cost in the smallest units.
+     * @param scale - the max scale of the summed costs, all of them are multiples of its unit, so no rounding is needed.
+     */
+    @Nullable
+    private static BigDecimal toCost(@Nullable String units, @Nullable String scale) {
+        if (units == null) {
+            return null;
         }
-    }
 
-    private static ResourceDescription toResource(String traceId) {
-        return ResourceDescription.fromDecoded(
-                ResourceType.DEPLOYMENT_COST_STATS, DEPLOYMENT_COST_STATS_BUCKET, DEPLOYMENT_COST_STATS_LOCATION, traceId);
+        BigDecimal cost = new BigDecimal(new BigInteger(units), COST_SCALE);
+        return (scale == null) ? cost : cost.setScale(Integer.parseInt(scale), RoundingMode.UNNECESSARY);
     }
 }
@@ -9,6 +9,8 @@ public class TokenUsage {
     private long completionTokens;
     private long promptTokens;
     private long totalTokens;
+    // tokens of the responses served from the response cache, they are included in the other counters, but cost nothing
+    private long cachedTokens;
     private BigDecimal cost;
     private BigDecimal aggCost;
 
@@ -19,6 +21,7 @@ public class TokenUsage {
         completionTokens += other.completionTokens;
         promptTokens += other.promptTokens;
         totalTokens += other.totalTokens;
+        cachedTokens += other.cachedTokens;
         aggCost(other.aggCost);
     }
 
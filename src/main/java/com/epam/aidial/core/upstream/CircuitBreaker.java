@@ -0,0 +1,153 @@
+package com.epam.aidial.core.upstream;
+
+import io.micrometer.core.instrument.Counter;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Ejects the upstream after consecutive failures or when the error rate within the window is too high.
+ * The ejected upstream is skipped during the cool-down period, then a single probe request is let through:
+ * the upstream is returned to the rotation if the probe succeeds and ejected again otherwise.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Settings settings;
+    private final LongSupplier clock;
+    private final Counter ejections;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long windowStart;
+    private int windowRequests;
+    private int windowFailures;
+    private long openTime;
+    private boolean probing;
+
+    CircuitBreaker(Settings settings, LongSupplier clock, Counter ejections) {
+        this.settings = settings;
+        this.clock = clock;
+        this.ejections = ejections;
+        this.windowStart = clock.getAsLong();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the upstream is in the rotation or can be probed.
+     */
+    synchronized boolean isAvailable() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> clock.getAsLong() - openTime >= settings.cooldown;
+            case HALF_OPEN -> !probing;
+        };
+    }
+
+    /**
+     * Called when the request is sent to the upstream. The request becomes the probe once the cool-down is over.
+     *
+     * @return true if the request is the probe.
+     */
+    synchronized boolean acquire() {
+        if (state == State.OPEN && clock.getAsLong() - openTime >= settings.cooldown) {
+            state = State.HALF_OPEN;
+        }
+
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Called when the probe request completed with or without the outcome, so another probe can be sent if needed.
+     */
+    synchronized void release() {
+        probing = false;
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        count(false);
+
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            resetWindow();
+        }
+    }
+
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        count(true);
+
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED && settings.enabled && isTripped()) {
+            open();
+        }
+    }
+
+    private boolean isTripped() {
+        if (consecutiveFailures >= settings.consecutiveFailures) {
+            return true;
+        }
+
+        return windowRequests >= settings.minRequests
+                && windowFailures >= settings.errorRate * windowRequests;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openTime = clock.getAsLong();
+        probing = false;
+        ejections.increment();
+    }
+
+    private void count(boolean failure) {
+        long now = clock.getAsLong();
+        if (now - windowStart >= settings.window) {
+            windowStart = now;
+            windowRequests = 0;
+            windowFailures = 0;
+        }
+
+        windowRequests++;
+        if (failure) {
+            windowFailures++;
+        }
+    }
+
+    private void resetWindow() {
+        windowStart = clock.getAsLong();
+        windowRequests = 0;
+        windowFailures = 0;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * @param window - the error rate window in nanoseconds.
+     * @param cooldown - the ejection period in nanoseconds.
+     */
+    record Settings(boolean enabled, int consecutiveFailures, double errorRate, int minRequests, long window, long cooldown) {
+
+        static Settings from(JsonObject settings) {
+            return new Settings(
+                    settings.getBoolean("enabled", false),
+                    settings.getInteger("consecutiveFailures", 5),
+                    settings.getDouble("errorRate", 0.5),
+                    settings.getInteger("minRequests", 20),
+                    TimeUnit.MILLISECONDS.toNanos(settings.getLong("window", 10000L)),
+                    TimeUnit.MILLISECONDS.toNanos(settings.getLong("cooldown", 30000L)));
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.epam.aidial.core.upstream;
 
+import com.epam.aidial.core.config.BalancingStrategy;
 import com.epam.aidial.core.config.Deployment;
 import com.epam.aidial.core.config.Model;
 import com.epam.aidial.core.config.Upstream;
 
 import java.util.List;
 
-public record DeploymentUpstreamProvider(Deployment deployment) implements UpstreamProvider {
+public record DeploymentUpstreamProvider(Deployment deployment, String affinityKey) implements UpstreamProvider {
+
+    public DeploymentUpstreamProvider(Deployment deployment) {
+        this(deployment, null);
+    }
 
     @Override
     public String getName() {
@@ -24,4 +29,18 @@ public record DeploymentUpstreamProvider(Deployment deployment) implements Upstr
         upstream.setKey("whatever");
         return List.of(upstream);
     }
+
+    @Override
+    public BalancingStrategy getBalancingStrategy() {
+        if (deployment instanceof Model model && model.getBalancingStrategy() != null) {
+            return model.getBalancingStrategy();
+        }
+
+        return BalancingStrategy.ROUND_ROBIN;
+    }
+
+    @Override
+    public String getAffinityKey() {
+        return affinityKey;
+    }
 }
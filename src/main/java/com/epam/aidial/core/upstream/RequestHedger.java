@@ -0,0 +1,162 @@
+package com.epam.aidial.core.upstream;
+
+import com.epam.aidial.core.util.MetricUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the duplicate of an idempotent request is sent to the next upstream of the deployment
+ * if the first upstream has not responded with the headers yet.
+ * <p>
+ *     The delay is the percentile of the time to the response headers over the recent requests to the deployment,
+ *     so only the slowest requests are hedged. The hedges are limited by the budget: each request adds the budget
+ *     to the credit of the deployment and each hedge takes one from it, so at most that ratio of requests are hedged.
+ *     The state and the metrics of the deployment are removed after it is not requested for a while.
+ * </p>
+ */
+public class RequestHedger {
+
+    private static final long ENTRY_EXPIRATION = TimeUnit.MINUTES.toMillis(10);
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .expireAfterAccess(ENTRY_EXPIRATION, TimeUnit.MILLISECONDS)
+            .removalListener(RequestHedger::onRemoval)
+            .build();
+    private final Settings settings;
+
+    public RequestHedger(JsonObject settings) {
+        this.settings = Settings.from(settings);
+    }
+
+    public boolean isEnabled() {
+        return settings.enabled;
+    }
+
+    /**
+     * Counts the request to the deployment in the budget.
+     *
+     * @return the delay in milliseconds before the request is hedged or -1 if the latency is not known yet.
+     */
+    public long onRequest(String deployment) {
+        Entry entry = entry(deployment);
+        synchronized (entry) {
+            entry.credit = Math.min(entry.credit + settings.budget, Math.max(1.0, settings.budget * settings.window));
+            return entry.delay;
+        }
+    }
+
+    /**
+     * @param latency - the time in milliseconds from sending the request to receiving the response headers.
+     */
+    public void onResponse(String deployment, long latency) {
+        Entry entry = entry(deployment);
+        synchronized (entry) {
+            entry.samples[(int) (entry.count++ % settings.window)] = latency;
+
+            // the percentile is computed once per tenth of the window
+            if (entry.count >= settings.window && entry.count % Math.max(1, settings.window / 10) == 0) {
+                long[] samples = entry.samples.clone();
+                Arrays.sort(samples);
+                int index = Math.min(samples.length - 1, (int) Math.ceil(settings.percentile * samples.length) - 1);
+                entry.delay = Math.max(settings.minDelay, samples[Math.max(0, index)]);
+            }
+        }
+    }
+
+    /**
+     * @return true if the hedge can be sent within the budget of the deployment.
+     */
+    public boolean tryHedge(String deployment) {
+        Entry entry = entry(deployment);
+        synchronized (entry) {
+            if (entry.credit < 1) {
+                return false;
+            }
+
+            entry.credit--;
+        }
+
+        entry.fired.increment();
+        return true;
+    }
+
+    /**
+     * Called when the hedge responded before the first request.
+     */
+    public void onWin(String deployment) {
+        entry(deployment).won.increment();
+    }
+
+    private Entry entry(String deployment) {
+        try {
+            return entries.get(deployment, () -> createEntry(deployment));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void onRemoval(RemovalNotification<String, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry != null) {
+            MeterRegistry registry = MetricUtil.registry();
+            registry.remove(entry.fired);
+            registry.remove(entry.won);
+        }
+    }
+
+    private Entry createEntry(String deployment) {
+        String name = String.valueOf(deployment);
+        MeterRegistry registry = MetricUtil.registry();
+        Counter fired = Counter.builder("aidial.deployment.hedges.fired")
+                .description("Number of duplicate requests sent to the next upstream of the deployment")
+                .tag("deployment", name)
+                .register(registry);
+        Counter won = Counter.builder("aidial.deployment.hedges.won")
+                .description("Number of duplicate requests which responded before the first request")
+                .tag("deployment", name)
+                .register(registry);
+
+        return new Entry(new long[settings.window], fired, won);
+    }
+
+    private static class Entry {
+        final long[] samples;
+        final Counter fired;
+        final Counter won;
+        long count;
+        long delay = -1;
+        double credit;
+
+        Entry(long[] samples, Counter fired, Counter won) {
+            this.samples = samples;
+            this.fired = fired;
+            this.won = won;
+        }
+    }
+
+    /**
+     * @param percentile - the percentile of the time to the response headers which is waited before the hedge is sent.
+     * @param minDelay - the min time in milliseconds waited before the hedge is sent.
+     * @param budget - the max ratio of the hedged requests.
+     * @param window - the number of recent requests the percentile is computed over.
+     */
+    record Settings(boolean enabled, double percentile, long minDelay, double budget, int window) {
+
+        static Settings from(JsonObject settings) {
+            return new Settings(
+                    settings.getBoolean("enabled", false),
+                    settings.getDouble("percentile", 0.95),
+                    settings.getLong("minDelay", 10L),
+                    settings.getDouble("budget", 0.1),
+                    Math.max(1, settings.getInteger("window", 100)));
+        }
+    }
+}
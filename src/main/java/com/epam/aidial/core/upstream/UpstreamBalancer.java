@@ -1,28 +1,328 @@
 package com.epam.aidial.core.upstream;
 
+import com.epam.aidial.core.config.BalancingStrategy;
 import com.epam.aidial.core.config.Upstream;
+import com.epam.aidial.core.util.MetricUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.json.JsonObject;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
 public class UpstreamBalancer {
 
     private static final int CONNECTION_ERROR_RETRIES = 2;
+    /**
+     * The max ratio of the load of the upstream selected by the affinity key to its weighted share of the tier load.
+     */
+    private static final double AFFINITY_LOAD_FACTOR = 1.25;
+    private static final long STATE_EXPIRATION = TimeUnit.MINUTES.toNanos(10);
 
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(); // no eviction yet
+    // the state and the metrics of the upstream are removed after it is not requested for a while
+    private final Cache<String, StateEntry> states;
+    private final Cache<String, Counter> tierCounters;
+    private final CircuitBreaker.Settings breakerSettings;
+    private final LongSupplier clock;
 
+    public UpstreamBalancer() {
+        this(new JsonObject());
+    }
+
+    /**
+     * @param breakerSettings - the settings of the circuit breaker per upstream.
+     */
+    public UpstreamBalancer(JsonObject breakerSettings) {
+        this(breakerSettings, System::nanoTime);
+    }
+
+    UpstreamBalancer(JsonObject breakerSettings, LongSupplier clock) {
+        this.breakerSettings = CircuitBreaker.Settings.from(breakerSettings);
+        this.clock = clock;
+        this.states = CacheBuilder.newBuilder()
+                .expireAfterAccess(STATE_EXPIRATION, TimeUnit.NANOSECONDS)
+                .ticker(ticker(clock))
+                .removalListener(UpstreamBalancer::onRemoval)
+                .build();
+        this.tierCounters = CacheBuilder.newBuilder()
+                .expireAfterAccess(STATE_EXPIRATION, TimeUnit.NANOSECONDS)
+                .ticker(ticker(clock))
+                .removalListener(UpstreamBalancer::onTierRemoval)
+                .build();
+    }
+
+    /**
+     * Orders the upstreams by tier, the upstreams of the same tier are balanced by the strategy according to their weights.
+     * The upstream selected by the affinity key goes first if it is available.
+     */
     public UpstreamRoute balance(UpstreamProvider provider) {
         String name = provider.getName();
+        String affinityKey = provider.getAffinityKey();
         List<Upstream> upstreams = provider.getUpstreams();
-        int offset = 0;
+        Map<Integer, List<Upstream>> tiers = upstreams.stream()
+                .collect(Collectors.groupingBy(Upstream::getTier, TreeMap::new, Collectors.toList()));
+
+        List<Upstream> routeUpstreams = new ArrayList<>(upstreams.size());
+        List<UpstreamState> routeStates = new ArrayList<>(upstreams.size());
+        List<Counter> routeRequests = new ArrayList<>(upstreams.size());
+
+        for (Map.Entry<Integer, List<Upstream>> tier : tiers.entrySet()) {
+            String tierKey = name + "\n" + tier.getKey();
+            List<Upstream> tierUpstreams = tier.getValue();
+            List<UpstreamState> tierStates = new ArrayList<>(tierUpstreams.size());
+            Counter requests = tierCounter(tierKey, name, tier.getKey());
+
+            for (Upstream upstream : tierUpstreams) {
+                String key = name + "\n" + upstream.getEndpoint();
+                tierStates.add(state(key, name, upstream.getEndpoint()));
+            }
+
+            int size = tierUpstreams.size();
+            int offset = (size > 1 && affinityKey != null) ? affinity(affinityKey, tierUpstreams, tierStates) : -1;
+
+            // no affinity or no upstream of the key is available
+
+            if (offset < 0 && size > 1) {
+                BalancingStrategy strategy = provider.getBalancingStrategy();
+                offset = switch (strategy) {
+                    case ROUND_ROBIN -> roundRobin(tierKey, tierUpstreams);
+                    case LEAST_OUTSTANDING -> leastOutstanding(tierKey, tierUpstreams, tierStates);
+                    case POWER_OF_TWO_CHOICES -> powerOfTwoChoices(tierUpstreams, tierStates);
+                };
+            } else if (offset < 0) {
+                offset = 0;
+            }
+
+            for (int i = 0; i < size; i++) {
+                int index = (offset + i) % size;
+                routeUpstreams.add(tierUpstreams.get(index));
+                routeStates.add(tierStates.get(index));
+                routeRequests.add(requests);
+            }
+        }
+
+        return new UpstreamRoute(routeUpstreams, routeStates, routeRequests, CONNECTION_ERROR_RETRIES, clock);
+    }
+
+    @VisibleForTesting
+    CircuitBreaker.State getBreakerState(String name, String endpoint) {
+        StateEntry entry = states.getIfPresent(name + "\n" + endpoint);
+        return (entry == null) ? null : entry.state().getBreaker().getState();
+    }
+
+    @VisibleForTesting
+    void cleanUp() {
+        states.cleanUp();
+        tierCounters.cleanUp();
+    }
+
+    private UpstreamState state(String key, String deployment, String upstream) {
+        try {
+            return states.get(key, () -> createState(deployment, upstream)).state();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void onRemoval(RemovalNotification<String, StateEntry> notification) {
+        StateEntry entry = notification.getValue();
+        if (entry != null) {
+            MeterRegistry registry = MetricUtil.registry();
+            entry.meters().forEach(registry::remove);
+        }
+    }
+
+    private StateEntry createState(String deployment, String upstream) {
+        String name = String.valueOf(deployment);
+        String endpoint = String.valueOf(upstream);
+        MeterRegistry registry = MetricUtil.registry();
+        Counter ejections = Counter.builder("aidial.upstream.ejections")
+                .description("Number of times the upstream was ejected by the circuit breaker")
+                .tag("deployment", name)
+                .tag("endpoint", endpoint)
+                .register(registry);
+
+        UpstreamState state = new UpstreamState(new CircuitBreaker(breakerSettings, clock, ejections));
+        Gauge breakerState = Gauge.builder("aidial.upstream.breaker.state", state, value -> value.getBreaker().getState().ordinal())
+                .description("State of the circuit breaker: 0 - closed, 1 - open, 2 - half-open")
+                .tag("deployment", name)
+                .tag("endpoint", endpoint)
+                .register(registry);
+        Gauge throttled = Gauge.builder("aidial.upstream.throttled", state, value -> value.isThrottled(clock.getAsLong()) ? 1 : 0)
+                .description("Whether the upstream is skipped as asked by its rate limit headers: 0 - no, 1 - yes")
+                .tag("deployment", name)
+                .tag("endpoint", endpoint)
+                .register(registry);
+        Gauge active = Gauge.builder("aidial.upstream.requests.active", state, UpstreamState::getInFlight)
+                .description("Number of in-flight requests to the upstream")
+                .tag("deployment", name)
+                .tag("endpoint", endpoint)
+                .register(registry);
+
+        return new StateEntry(state, List.of(ejections, breakerState, throttled, active));
+    }
+
+    private Counter tierCounter(String key, String deployment, int tier) {
+        try {
+            return tierCounters.get(key, () -> createTierCounter(deployment, tier));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void onTierRemoval(RemovalNotification<String, Counter> notification) {
+        Counter counter = notification.getValue();
+        if (counter != null) {
+            MetricUtil.registry().remove(counter);
+        }
+    }
+
+    private Counter createTierCounter(String deployment, int tier) {
+        return Counter.builder("aidial.upstream.tier.requests")
+                .description("Number of requests sent to the upstreams of the tier including retries")
+                .tag("deployment", String.valueOf(deployment))
+                .tag("tier", Integer.toString(tier))
+                .register(MetricUtil.registry());
+    }
+
+    /**
+     * Selects the upstreams in turn, each one as many times in a row as its weight.
+     */
+    private int roundRobin(String key, List<Upstream> upstreams) {
+        long total = 0;
+        for (Upstream upstream : upstreams) {
+            total += weight(upstream);
+        }
+
+        AtomicLong counter = counters.computeIfAbsent(key, ignore -> new AtomicLong());
+        long position = counter.getAndIncrement() % total;
+
+        for (int i = 0; i < upstreams.size(); i++) {
+            position -= weight(upstreams.get(i));
+            if (position < 0) {
+                return i;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Scans upstreams starting from the round-robin offset, so the upstreams with the same load per weight take turns.
+     */
+    private int leastOutstanding(String key, List<Upstream> upstreams, List<UpstreamState> states) {
+        int size = states.size();
+        int start = roundRobin(key, upstreams);
+        int best = start;
+
+        for (int i = 1; i < size; i++) {
+            int index = (start + i) % size;
+            UpstreamState candidate = states.get(index);
+            UpstreamState current = states.get(best);
+            long candidateLoad = (long) candidate.getInFlight() * weight(upstreams.get(best));
+            long currentLoad = (long) current.getInFlight() * weight(upstreams.get(index));
+
+            if (candidateLoad < currentLoad
+                    || (candidateLoad == currentLoad && candidate.getLatency() < current.getLatency())) {
+                best = index;
+            }
+        }
+
+        return best;
+    }
 
-        if (upstreams.size() > 1) {
-            AtomicLong counter = counters.computeIfAbsent(name, (key) -> new AtomicLong());
-            offset = (int) (counter.getAndIncrement() % upstreams.size());
+    private static int powerOfTwoChoices(List<Upstream> upstreams, List<UpstreamState> states) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(states.size());
+        int second = random.nextInt(states.size() - 1);
+
+        if (second >= first) {
+            second++;
         }
 
-        return new UpstreamRoute(upstreams, offset, CONNECTION_ERROR_RETRIES);
+        double firstCost = states.get(first).getCost() / weight(upstreams.get(first));
+        double secondCost = states.get(second).getCost() / weight(upstreams.get(second));
+        return (secondCost < firstCost) ? second : first;
+    }
+
+    /**
+     * Ranks the upstreams by weighted rendezvous hashing of the key, so the key keeps its upstream when the other upstreams
+     * are added or removed. The load of the upstream is bounded by its weighted share of the requests in flight to the tier,
+     * so a hot key spills to the next upstream in the rank instead of overloading its upstream.
+     *
+     * @return the index of the highest ranked upstream which is available and not overloaded or -1 if there is no such one.
+     */
+    private int affinity(String key, List<Upstream> upstreams, List<UpstreamState> states) {
+        int size = upstreams.size();
+        double[] scores = new double[size];
+        long inFlight = 0;
+        long totalWeight = 0;
+
+        for (int i = 0; i < size; i++) {
+            Upstream upstream = upstreams.get(i);
+            long hash = Hashing.murmur3_128().hashString(key + "\n" + upstream.getEndpoint(), StandardCharsets.UTF_8).asLong();
+            double uniform = ((hash >>> 11) + 0.5) / (1L << 53);
+            scores[i] = -weight(upstream) / Math.log(uniform);
+            inFlight += states.get(i).getInFlight();
+            totalWeight += weight(upstream);
+        }
+
+        Integer[] ranks = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            ranks[i] = i;
+        }
+        Arrays.sort(ranks, (left, right) -> Double.compare(scores[right], scores[left]));
+
+        long now = clock.getAsLong();
+        for (int index : ranks) {
+            UpstreamState state = states.get(index);
+            double capacity = Math.ceil(AFFINITY_LOAD_FACTOR * (inFlight + 1) * weight(upstreams.get(index)) / totalWeight);
+
+            if (state.getBreaker().isAvailable() && !state.isThrottled(now) && state.getInFlight() < capacity) {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int weight(Upstream upstream) {
+        return Math.max(1, upstream.getWeight());
+    }
+
+    private static Ticker ticker(LongSupplier clock) {
+        return new Ticker() {
+            @Override
+            public long read() {
+                return clock.getAsLong();
+            }
+        };
+    }
+
+    /**
+     * @param meters - the metrics of the upstream which are removed along with the state.
+     */
+    private record StateEntry(UpstreamState state, List<Meter> meters) {
     }
 }
@@ -0,0 +1,153 @@
+package com.epam.aidial.core.upstream;
+
+import com.epam.aidial.core.config.Deployment;
+import com.epam.aidial.core.config.UpstreamProtocol;
+import com.epam.aidial.core.util.MetricUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests to the endpoints of the deployments with the client matching the protocol of the deployment.
+ * HTTP/1.1 endpoints share the default client, HTTP/2 endpoints share a client per protocol and stream limit,
+ * so many streaming requests are multiplexed over a few connections instead of exhausting the pool.
+ * The meters of the endpoint host are removed once the host is not requested for a while,
+ * since the endpoints of the custom applications are not bounded by the config.
+ */
+@Slf4j
+public class UpstreamClients {
+
+    private static final long METERS_EXPIRATION = TimeUnit.MINUTES.toMillis(10);
+
+    private final Vertx vertx;
+    private final HttpClient client;
+    private final JsonObject settings;
+    private final ConcurrentMap<ClientKey, HttpClient> clients = new ConcurrentHashMap<>();
+    private final Cache<String, Meters> meters = CacheBuilder.newBuilder()
+            .expireAfterAccess(METERS_EXPIRATION, TimeUnit.MILLISECONDS)
+            .removalListener(UpstreamClients::onRemoval)
+            .build();
+
+    /**
+     * @param client - the default client used for HTTP/1.1 endpoints.
+     * @param settings - the client settings the HTTP/2 clients are created with.
+     */
+    public UpstreamClients(Vertx vertx, HttpClient client, JsonObject settings) {
+        this.vertx = vertx;
+        this.client = client;
+        this.settings = settings;
+    }
+
+    /**
+     * Obtains the stream to the endpoint of the deployment with the client of its protocol.
+     */
+    public Future<HttpClientRequest> request(Deployment deployment, RequestOptions options) {
+        return request(client(deployment), options);
+    }
+
+    /**
+     * Obtains the stream to the endpoint over HTTP/1.1.
+     */
+    public Future<HttpClientRequest> request(RequestOptions options) {
+        return request(client, options);
+    }
+
+    /**
+     * Obtains the stream and records the time waited for it and the number of active streams per endpoint host.
+     * The stream is considered active until the response is ended or the request is failed.
+     */
+    private Future<HttpClientRequest> request(HttpClient selected, RequestOptions options) {
+        Meters meter = meters(options.getHost() + ":" + options.getPort());
+        long start = System.nanoTime();
+
+        return selected.request(options).onSuccess(request -> {
+            meter.poolWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            meter.activeStreams.incrementAndGet();
+            request.response()
+                    .compose(HttpClientResponse::end)
+                    .onComplete(ignore -> meter.activeStreams.decrementAndGet());
+        });
+    }
+
+    public Future<Void> close() {
+        return Future.join(clients.values().stream().map(HttpClient::close).toList()).mapEmpty();
+    }
+
+    private HttpClient client(Deployment deployment) {
+        UpstreamProtocol protocol = deployment.getProtocol();
+        if (protocol == null || protocol == UpstreamProtocol.HTTP_1_1) {
+            return client;
+        }
+
+        Integer maxConcurrentStreams = deployment.getMaxConcurrentStreams();
+        ClientKey key = new ClientKey(protocol, (maxConcurrentStreams == null) ? -1 : maxConcurrentStreams);
+        return clients.computeIfAbsent(key, this::createClient);
+    }
+
+    private HttpClient createClient(ClientKey key) {
+        HttpClientOptions options = new HttpClientOptions(settings)
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setUseAlpn(key.protocol == UpstreamProtocol.H2)
+                .setHttp2ClearTextUpgrade(key.protocol == UpstreamProtocol.H2)
+                .setHttp2MultiplexingLimit(key.maxConcurrentStreams);
+
+        log.info("Created HTTP/2 client. Protocol: {}. Max concurrent streams: {}", key.protocol, key.maxConcurrentStreams);
+        return vertx.createHttpClient(options);
+    }
+
+    private Meters meters(String host) {
+        try {
+            return meters.get(host, () -> new Meters(host));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void onRemoval(RemovalNotification<String, Meters> notification) {
+        Meters meter = notification.getValue();
+        if (meter != null) {
+            MeterRegistry registry = MetricUtil.registry();
+            registry.remove(meter.poolWait);
+            registry.remove(meter.activeStreamsGauge);
+        }
+    }
+
+    private record ClientKey(UpstreamProtocol protocol, int maxConcurrentStreams) {
+    }
+
+    private static class Meters {
+        final Timer poolWait;
+        final AtomicInteger activeStreams = new AtomicInteger();
+        final Gauge activeStreamsGauge;
+
+        Meters(String host) {
+            poolWait = Timer.builder("aidial.upstream.pool.wait")
+                    .description("Time to obtain a stream to the endpoint host including the connection establishment")
+                    .tag("host", host)
+                    .register(MetricUtil.registry());
+            activeStreamsGauge = Gauge.builder("aidial.upstream.streams.active", activeStreams, AtomicInteger::get)
+                    .description("Number of requests to the endpoint host awaiting or receiving the response")
+                    .tag("host", host)
+                    .register(MetricUtil.registry());
+        }
+    }
+}
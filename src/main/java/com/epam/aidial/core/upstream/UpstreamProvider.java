@@ -1,5 +1,6 @@
 package com.epam.aidial.core.upstream;
 
+import com.epam.aidial.core.config.BalancingStrategy;
 import com.epam.aidial.core.config.Upstream;
 
 import java.util.List;
@@ -8,4 +9,15 @@ public interface UpstreamProvider {
     String getName();
 
     List<Upstream> getUpstreams();
+
+    default BalancingStrategy getBalancingStrategy() {
+        return BalancingStrategy.ROUND_ROBIN;
+    }
+
+    /**
+     * @return the key of the conversation the requests of which are routed to the same upstream or null if there is no affinity.
+     */
+    default String getAffinityKey() {
+        return null;
+    }
 }
@@ -1,24 +1,49 @@
 package com.epam.aidial.core.upstream;
 
 import com.epam.aidial.core.config.Upstream;
+import io.micrometer.core.instrument.Counter;
+import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
-@RequiredArgsConstructor
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
 public class UpstreamRoute implements Iterator<Upstream> {
 
+    private static final int TOO_MANY_REQUESTS = 429;
+    /**
+     * The upper bound of the time the upstream is skipped, so the misconfigured upstream doesn't drop out for long.
+     */
+    private static final long MAX_THROTTLE = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * The upstreams in the order to try: by tier, then starting from the one selected by the balancing strategy.
+     */
     private final List<Upstream> upstreams;
-    private final int offset;
+    private final List<UpstreamState> states;
+    /**
+     * The counters of requests to the tier of each upstream.
+     */
+    private final List<Counter> tierRequests;
     /**
      * The maximum number of retries for all upstreams.
      */
     private final int maxRetries;
+    private final LongSupplier clock;
 
     private Upstream upstream;
+    /**
+     * The state of the current upstream while the request to it is in-flight.
+     */
+    private UpstreamState state;
+    private boolean probe;
+    private long startTime;
     private int retries;
+    private int used;
     private int next;
     private int prev;
 
@@ -26,7 +51,7 @@ public class UpstreamRoute implements Iterator<Upstream> {
      * @return the number of upstreams which returned any http response.
      */
     public int used() {
-        return next;
+        return used;
     }
 
     /**
@@ -38,7 +63,7 @@ public class UpstreamRoute implements Iterator<Upstream> {
 
     @Override
     public boolean hasNext() {
-        return next < upstreams.size() && retries <= maxRetries;
+        return retries <= maxRetries && find() < upstreams.size();
     }
 
     /**
@@ -46,16 +71,106 @@ public class UpstreamRoute implements Iterator<Upstream> {
      */
     @Override
     public Upstream next() {
-        if (hasNext()) {
-            prev = next++;
-            int index = (offset + prev) % upstreams.size();
-            upstream = upstreams.get(index);
+        release();
+
+        int position = find();
+        if (retries <= maxRetries && position < upstreams.size()) {
+            prev = position;
+            next = position + 1;
+            used++;
+            upstream = upstreams.get(position);
+            state = states.get(position);
+            tierRequests.get(position).increment();
+            probe = state.acquire();
+            startTime = clock.getAsLong();
             return upstream;
         }
 
         return null;
     }
 
+    /**
+     * Records the time to first byte and the outcome of the current endpoint once it responded with the headers.
+     * The server errors count as failures of the endpoint. The rate limit error is neither a failure nor a success,
+     * the endpoint is throttled for it instead.
+     */
+    public void responded(int status) {
+        if (state != null) {
+            state.updateLatency(clock.getAsLong() - startTime);
+            if (status >= 500) {
+                state.getBreaker().onFailure();
+            } else if (status != TOO_MANY_REQUESTS) {
+                state.getBreaker().onSuccess();
+            }
+        }
+    }
+
+    /**
+     * Records the failure of the current endpoint which did not respond due to connection error.
+     */
+    public void failed() {
+        if (state != null) {
+            state.getBreaker().onFailure();
+        }
+    }
+
+    /**
+     * Takes the next endpoint to send the duplicate of the current request to, so this route doesn't try it anymore.
+     *
+     * @return the route to the next endpoint without retries or null if there is no other endpoint.
+     */
+    public UpstreamRoute hedge() {
+        int position = find();
+        if (state == null || position >= upstreams.size()) {
+            return null;
+        }
+
+        next = position + 1;
+        return new UpstreamRoute(List.of(upstreams.get(position)), List.of(states.get(position)),
+                List.of(tierRequests.get(position)), 0, clock);
+    }
+
+    /**
+     * Skips the current endpoint for the time it asked to wait in the rate limit headers.
+     *
+     * @param backoff - the time in milliseconds.
+     */
+    public void throttle(long backoff) {
+        if (state != null && backoff > 0) {
+            state.throttle(clock.getAsLong() + Math.min(TimeUnit.MILLISECONDS.toNanos(backoff), MAX_THROTTLE));
+        }
+    }
+
+    /**
+     * @return the time in milliseconds until the first endpoint is no longer throttled
+     *     or 0 if some endpoint is not throttled.
+     */
+    public long getRetryAfter() {
+        long now = clock.getAsLong();
+        long wait = Long.MAX_VALUE;
+
+        for (UpstreamState candidate : states) {
+            if (!candidate.isThrottled(now)) {
+                return 0;
+            }
+
+            wait = Math.min(wait, candidate.getThrottledUntil() - now);
+        }
+
+        return (wait == Long.MAX_VALUE) ? 0 : TimeUnit.NANOSECONDS.toMillis(wait - 1) + 1;
+    }
+
+    /**
+     * Completes the request to the current endpoint, so it is no longer counted as in-flight. Can be called many times.
+     */
+    public void release() {
+        if (state != null) {
+            state.release(probe);
+            state = null;
+            probe = false;
+        }
+    }
+
     /**
      * @return current endpoint to route to.
      */
@@ -70,7 +185,44 @@ public class UpstreamRoute implements Iterator<Upstream> {
     public void retry() {
         if (prev < next && retries <= maxRetries) {
             retries++;
+            used--;
             next = prev;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the position of the next endpoint to route to skipping the throttled and ejected ones
+     *     or the next position not throttled if all endpoints are ejected, so the request is not failed without trying.
+     *     No position if all endpoints are throttled.
+     */
+    private int find() {
+        long now = clock.getAsLong();
+        boolean throttled = true;
+        boolean ejected = true;
+
+        for (UpstreamState candidate : states) {
+            if (!candidate.isThrottled(now)) {
+                throttled = false;
+                if (candidate.getBreaker().isAvailable()) {
+                    ejected = false;
+                    break;
+                }
+            }
+        }
+
+        if (throttled) {
+            return upstreams.size();
+        }
+
+        int position = next;
+        while (position < upstreams.size() && !isAvailable(states.get(position), now, ejected)) {
+            position++;
+        }
+
+        return position;
+    }
+
+    private static boolean isAvailable(UpstreamState state, long now, boolean ejected) {
+        return !state.isThrottled(now) && (ejected || state.getBreaker().isAvailable());
+    }
+}
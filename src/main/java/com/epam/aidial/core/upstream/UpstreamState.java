@@ -0,0 +1,83 @@
+package com.epam.aidial.core.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load and health of the upstream shared by all requests: the number of in-flight requests,
+ * the exponentially weighted moving average of the time to first byte and the circuit breaker.
+ */
+class UpstreamState {
+
+    /**
+     * The weight of the latest sample in the moving average.
+     */
+    private static final double ALPHA = 0.2;
+
+    private final CircuitBreaker breaker;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * The average time to first byte in nanoseconds or 0 if the upstream has not responded yet.
+     */
+    private volatile double latency;
+    /**
+     * The time in nanoseconds until the upstream asked not to send requests due to its rate limit.
+     */
+    private volatile long throttledUntil;
+
+    UpstreamState(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    double getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the expected time to wait for the upstream, 0 if unknown, so the upstream is tried sooner.
+     */
+    double getCost() {
+        return latency * (inFlight.get() + 1);
+    }
+
+    boolean isThrottled(long now) {
+        return throttledUntil - now > 0;
+    }
+
+    long getThrottledUntil() {
+        return throttledUntil;
+    }
+
+    synchronized void throttle(long until) {
+        if (!isThrottled(until)) {
+            throttledUntil = until;
+        }
+    }
+
+    /**
+     * @return true if the request is the probe of the ejected upstream.
+     */
+    boolean acquire() {
+        inFlight.incrementAndGet();
+        return breaker.acquire();
+    }
+
+    void release(boolean probe) {
+        inFlight.decrementAndGet();
+        if (probe) {
+            breaker.release();
+        }
+    }
+
+    synchronized void updateLatency(long nanos) {
+        double average = latency;
+        latency = (average == 0) ? nanos : average + ALPHA * (nanos - average);
+    }
+}
@@ -1,6 +1,9 @@
 package com.epam.aidial.core.util;
 
 import com.epam.aidial.core.function.BaseResponseFunction;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
@@ -11,12 +14,34 @@ import io.vertx.core.streams.impl.PipeImpl;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the stream for the post-processing while forwarding it.
+ * <p>
+ *     The facts needed after the end of the event stream are extracted from the events by {@link StreamingResponseAssembler} while they are forwarded.
+ *     By default, the whole stream is retained. In the bounded mode, only the tail window of the stream is retained.
+ *     The retained tail may take up to twice the window size, so that the content is not copied on every chunk.
+ * </p>
+ */
 @Slf4j
 @Getter
 public class BufferingReadStream implements ReadStream<Buffer> {
 
+    // bytes retained by the streams which are being received
+    private static final AtomicLong RETAINED_BYTES = new AtomicLong();
+
     private final ReadStream<Buffer> stream;
-    private final Buffer content;
+    // tail of the stream which starts at the position: dropped
+    private Buffer content;
+    // negative value means that the whole stream is retained
+    private final int windowSize;
+    private long dropped;
+    // position up to which the stream is forwarded
+    private long forwarded;
+    private long retained;
+    private long maxRetained;
+    private boolean released;
 
     private Handler<Buffer> chunkHandler;
     private Handler<Void> endHandler;
@@ -26,8 +51,9 @@ public class BufferingReadStream implements ReadStream<Buffer> {
     private boolean ended;
     private boolean reset;
     // set the position to unset by default
-    private int lastChunkPos = -1;
+    private long lastChunkPos = -1;
     private final EventStreamParser eventStreamParser;
+    private final StreamingResponseAssembler assembler;
     private Future<Boolean> streamHandlerFuture;
 
     public BufferingReadStream(ReadStream<Buffer> stream) {
@@ -39,14 +65,36 @@ public class BufferingReadStream implements ReadStream<Buffer> {
     }
 
     public BufferingReadStream(ReadStream<Buffer> stream, int initialSize, BaseResponseFunction streamHandler) {
+        this(stream, initialSize, streamHandler, -1);
+    }
+
+    /**
+     * @param windowSize - the size of the retained tail of the stream. Negative value means that the whole stream is retained.
+     */
+    public BufferingReadStream(ReadStream<Buffer> stream, int initialSize, BaseResponseFunction streamHandler, int windowSize) {
         this.stream = stream;
-        this.content = Buffer.buffer(initialSize);
+        this.windowSize = windowSize;
+        this.content = Buffer.buffer(windowSize < 0 ? initialSize : Math.min(initialSize, windowSize));
         if (streamHandler == null) {
             this.eventStreamParser = null;
+            this.assembler = null;
         } else {
-            this.eventStreamParser = new EventStreamParser(512, streamHandler);
+            StreamingResponseAssembler responseAssembler = new StreamingResponseAssembler();
+            this.assembler = responseAssembler;
+            this.eventStreamParser = new EventStreamParser(512, new BaseResponseFunction(null, null) {
+                @Override
+                public Future<Void> apply(ObjectNode tree) {
+                    responseAssembler.append(tree);
+                    return streamHandler.apply(tree);
+                }
+            });
         }
 
+        Gauge.builder("aidial.response.buffer.retained", RETAINED_BYTES, AtomicLong::get)
+                .description("Bytes retained by the responses being received from origin")
+                .baseUnit("bytes")
+                .register(MetricUtil.registry());
+
         stream.handler(this::handleChunk);
         stream.endHandler(this::handleEnd);
         stream.exceptionHandler(this::handleException);
@@ -125,9 +173,16 @@ public class BufferingReadStream implements ReadStream<Buffer> {
         return this;
     }
 
+    /**
+     * @return <code>true</code> if the head of the stream is not retained.
+     */
+    public synchronized boolean isTruncated() {
+        return dropped > 0;
+    }
+
     public synchronized void end(HttpServerResponse response) {
         if (lastChunkPos != -1) {
-            Buffer lastChunk = content.slice(lastChunkPos, content.length());
+            Buffer lastChunk = content.slice((int) (lastChunkPos - dropped), content.length());
             response.end(lastChunk);
         } else {
             response.end();
@@ -135,8 +190,9 @@ public class BufferingReadStream implements ReadStream<Buffer> {
     }
 
     private synchronized void handleChunk(Buffer chunk) {
-        int pos = content.length();
+        long pos = dropped + content.length();
         content.appendBuffer(chunk);
+        retain();
         if (lastChunkPos != -1) {
             // stop streaming
             return;
@@ -150,15 +206,63 @@ public class BufferingReadStream implements ReadStream<Buffer> {
             }
         } else {
             notifyOnChunk(chunk);
+            forward(pos + chunk.length());
+        }
+    }
+
+    private void forward(long position) {
+        forwarded = position;
+        trim();
+        retain();
+    }
+
+    /**
+     * Drops the forwarded head of the content when it reaches twice the window size.
+     * The content is not trimmed until it is replayed to the pipe and after the last chunk is found, since it is sent on end.
+     */
+    private void trim() {
+        if (windowSize < 0 || reset || lastChunkPos != -1 || content.length() <= 2L * windowSize) {
+            return;
+        }
+
+        int excess = (int) Math.min(content.length() - windowSize, forwarded - dropped);
+        if (excess > 0) {
+            content = content.getBuffer(excess, content.length());
+            dropped += excess;
+        }
+    }
+
+    private void retain() {
+        if (released) {
+            return;
         }
+
+        RETAINED_BYTES.addAndGet(content.length() - retained);
+        retained = content.length();
+        maxRetained = Math.max(maxRetained, retained);
+    }
+
+    private void release() {
+        if (released) {
+            return;
+        }
+
+        released = true;
+        RETAINED_BYTES.addAndGet(-retained);
+        DistributionSummary.builder("aidial.response.buffer.size")
+                .description("Max bytes retained by a response received from origin")
+                .baseUnit("bytes")
+                .tag("bounded", Boolean.toString(windowSize >= 0))
+                .register(MetricUtil.registry())
+                .record(maxRetained);
     }
 
-    private synchronized Future<Boolean> parseChunk(Buffer chunk, int pos) {
+    private synchronized Future<Boolean> parseChunk(Buffer chunk, long pos) {
         return eventStreamParser.parse(chunk)
                 .andThen(result -> handleStreamEvent(chunk, result.result() == Boolean.TRUE, pos));
     }
 
-    private synchronized void handleStreamEvent(Buffer chunk, boolean isLastChunk, int pos) {
+    private synchronized void handleStreamEvent(Buffer chunk, boolean isLastChunk, long pos) {
         if (isLastChunk) {
             if (lastChunkPos == -1) {
                 lastChunkPos = pos;
@@ -167,10 +271,12 @@ public class BufferingReadStream implements ReadStream<Buffer> {
             return;
         }
         notifyOnChunk(chunk);
+        forward(pos + chunk.length());
     }
 
     private synchronized void handleEnd(Void ignored) {
         ended = true;
+        release();
         if (streamHandlerFuture == null) {
             notifyOnEnd(ignored);
         } else {
@@ -181,6 +287,7 @@ public class BufferingReadStream implements ReadStream<Buffer> {
     private synchronized void handleException(Throwable exception) {
         error = exception;
         ended = true;
+        release();
         notifyOnException(exception);
     }
 
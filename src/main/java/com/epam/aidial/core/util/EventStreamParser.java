@@ -3,7 +3,7 @@ package com.epam.aidial.core.util;
 import com.epam.aidial.core.function.BaseResponseFunction;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import jodd.io.CharBufferReader;
@@ -50,7 +50,8 @@ public class EventStreamParser {
 
     public EventStreamParser(int initialSizeHint, BaseResponseFunction handler) {
         this.handler = handler == null ? DEFAULT_HANDLER : handler;
-        buffer = ByteBufAllocator.DEFAULT.heapBuffer(initialSizeHint, Integer.MAX_VALUE);
+        // unpooled, since the parser is not released explicitly
+        buffer = Unpooled.buffer(initialSizeHint, Integer.MAX_VALUE);
     }
 
     public synchronized Future<Boolean> parse(Buffer chunk) {
@@ -0,0 +1,19 @@
+package com.epam.aidial.core.util;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.vertx.micrometer.backends.BackendRegistries;
+import lombok.experimental.UtilityClass;
+
+@UtilityClass
+public class MetricUtil {
+
+    /**
+     * Returns the registry backing Vert.x metrics, so the custom meters are exported along with them.
+     * Falls back to the global registry which discards meters unless something is attached to it.
+     */
+    public MeterRegistry registry() {
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        return registry == null ? Metrics.globalRegistry : registry;
+    }
+}
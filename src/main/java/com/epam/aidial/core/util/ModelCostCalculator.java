@@ -33,10 +33,16 @@ public class ModelCostCalculator {
             return null;
         }
 
+        // the response served from the response cache is not charged by origin
+        if (context.isResponseCached()) {
+            return BigDecimal.ZERO;
+        }
+
         return switch (pricing.getUnit()) {
             case "token" -> calculate(context.getTokenUsage(), pricing.getPrompt(), pricing.getCompletion());
             case "char_without_whitespace" ->
-                    calculate(model.getType(), context.getRequestBody(), context.getResponseBody(), pricing.getPrompt(), pricing.getCompletion());
+                    calculate(model.getType(), context.getRequestContentLength(), context.isStreamingRequest(), context.getResponseBody(),
+                            context.getResponseAssembler(), pricing.getPrompt(), pricing.getCompletion());
             default -> null;
         };
     }
@@ -60,12 +66,18 @@ public class ModelCostCalculator {
         return cost;
     }
 
-    private static BigDecimal calculate(ModelType modelType, Buffer requestBody, Buffer responseBody, String promptRate, String completionRate) {
-        RequestLengthResult requestLengthResult = getRequestContentLength(modelType, requestBody);
-        int responseLength = getResponseContentLength(modelType, responseBody, requestLengthResult.stream());
+    private static BigDecimal calculate(ModelType modelType, int requestLength, boolean isStreamingRequest, Buffer responseBody,
+                                        StreamingResponseAssembler responseAssembler, String promptRate, String completionRate) {
+        if (requestLength < 0) {
+            // the request content was not counted
+            return null;
+        }
+        int responseLength = (responseAssembler == null)
+                ? getResponseContentLength(modelType, responseBody, isStreamingRequest && modelType == ModelType.CHAT)
+                : responseAssembler.getContentLength();
         BigDecimal cost = null;
         if (promptRate != null) {
-            cost = new BigDecimal(requestLengthResult.length()).multiply(new BigDecimal(promptRate));
+            cost = new BigDecimal(requestLength).multiply(new BigDecimal(promptRate));
         }
         if (completionRate != null) {
             BigDecimal completionCost = new BigDecimal(responseLength).multiply(new BigDecimal(completionRate));
@@ -122,10 +134,12 @@ public class ModelCostCalculator {
         }
     }
 
-    private static RequestLengthResult getRequestContentLength(ModelType modelType, Buffer requestBody) {
-        try (InputStream stream = new ByteBufInputStream(requestBody.getByteBuf())) {
+    /**
+     * @return the number of characters without whitespaces of the chat messages or the embeddings input.
+     */
+    public static int getRequestContentLength(ModelType modelType, ObjectNode tree) {
+        try {
             int len;
-            ObjectNode tree = (ObjectNode) ProxyUtil.MAPPER.readTree(stream);
             if (modelType == ModelType.CHAT) {
                 ArrayNode messages = (ArrayNode) tree.get("messages");
                 len = 0;
@@ -133,7 +147,6 @@ public class ModelCostCalculator {
                     JsonNode message = messages.get(i);
                     len += getLengthWithoutWhitespace(message.get("content").textValue());
                 }
-                return new RequestLengthResult(len, tree.get("stream").asBoolean(false));
             } else {
                 JsonNode input = tree.get("input");
                 if (input instanceof ArrayNode array) {
@@ -145,13 +158,13 @@ public class ModelCostCalculator {
                     len = getLengthWithoutWhitespace(input.textValue());
                 }
             }
-            return new RequestLengthResult(len, false);
+            return len;
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static int getLengthWithoutWhitespace(String s) {
+    static int getLengthWithoutWhitespace(String s) {
         if (s == null) {
             return 0;
         }
@@ -164,8 +177,4 @@ public class ModelCostCalculator {
         return len;
     }
 
-    private record RequestLengthResult(int length, boolean stream) {
-
-    }
-
 }
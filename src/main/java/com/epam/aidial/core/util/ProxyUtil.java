@@ -44,6 +44,7 @@ public class ProxyUtil {
     private static final MultiMap HOP_BY_HOP_HEADERS = MultiMap.caseInsensitiveMultiMap()
             .add(HttpHeaders.CONNECTION, "whatever")
             .add(HttpHeaders.KEEP_ALIVE, "whatever")
+            .add("proxy-connection", "whatever")
             .add(HttpHeaders.HOST, "whatever")
             .add(HttpHeaders.PROXY_AUTHENTICATE, "whatever")
             .add(HttpHeaders.PROXY_AUTHORIZATION, "whatever")
@@ -60,17 +61,36 @@ public class ProxyUtil {
         copyHeaders(from, to, MultiMap.caseInsensitiveMultiMap());
     }
 
+    /**
+     * Copies end-to-end headers. Skips HTTP/2 pseudo-headers, hop-by-hop headers
+     * and the headers listed in the Connection header, since they are not valid for the other connection.
+     */
     public static void copyHeaders(MultiMap from, MultiMap to, MultiMap excludeHeaders) {
+        List<String> connectionHeaders = from.getAll(HttpHeaders.CONNECTION);
+
         for (Map.Entry<String, String> entry : from.entries()) {
             String key = entry.getKey();
             String value = entry.getValue();
 
-            if (!HOP_BY_HOP_HEADERS.contains(key) && !excludeHeaders.contains(key)) {
+            if (!key.startsWith(":") && !HOP_BY_HOP_HEADERS.contains(key) && !excludeHeaders.contains(key)
+                    && !isConnectionHeader(connectionHeaders, key)) {
                 to.add(key, value);
             }
         }
     }
 
+    private static boolean isConnectionHeader(List<String> connectionHeaders, String key) {
+        for (String connectionHeader : connectionHeaders) {
+            for (String option : connectionHeader.split(",")) {
+                if (option.trim().equalsIgnoreCase(key)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     public static int contentLength(HttpServerRequest request, int defaultValue) {
         return contentLength(request.headers(), defaultValue);
     }
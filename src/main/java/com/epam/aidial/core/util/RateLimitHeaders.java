@@ -0,0 +1,108 @@
+package com.epam.aidial.core.util;
+
+import io.vertx.core.MultiMap;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the time the upstream asks to wait before sending the next request from its rate limit headers:
+ * <ul>
+ *     <li><code>Retry-After</code> - seconds or HTTP date.</li>
+ *     <li><code>retry-after-ms</code> - milliseconds.</li>
+ *     <li><code>x-ratelimit-remaining-requests</code> and <code>x-ratelimit-remaining-tokens</code> - if zero,
+ *     the time from <code>x-ratelimit-reset-requests</code> and <code>x-ratelimit-reset-tokens</code>, e.g. <code>6m0s</code>.</li>
+ * </ul>
+ */
+@Slf4j
+@UtilityClass
+public class RateLimitHeaders {
+
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final String RETRY_AFTER_MS = "retry-after-ms";
+    public static final String REMAINING_REQUESTS = "x-ratelimit-remaining-requests";
+    public static final String REMAINING_TOKENS = "x-ratelimit-remaining-tokens";
+    public static final String RESET_REQUESTS = "x-ratelimit-reset-requests";
+    public static final String RESET_TOKENS = "x-ratelimit-reset-tokens";
+
+    /**
+     * The wait if the limit is exhausted, but the reset time is not provided.
+     */
+    private static final long DEFAULT_RESET = 1000;
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    /**
+     * @param now - the current time in milliseconds since epoch to resolve <code>Retry-After</code> date.
+     * @return the time in milliseconds to wait or 0 if the upstream is not throttled.
+     */
+    public static long getBackoff(MultiMap headers, long now) {
+        long backoff = Math.max(parseRetryAfter(headers.get(RETRY_AFTER), now), parseNumber(headers.get(RETRY_AFTER_MS)));
+        backoff = Math.max(backoff, parseReset(headers.get(REMAINING_REQUESTS), headers.get(RESET_REQUESTS)));
+        backoff = Math.max(backoff, parseReset(headers.get(REMAINING_TOKENS), headers.get(RESET_TOKENS)));
+        return backoff;
+    }
+
+    static long parseRetryAfter(String value, long now) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+
+        value = value.trim();
+        if (Character.isDigit(value.charAt(0))) {
+            return parseNumber(value) * 1000;
+        }
+
+        try {
+            long time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, time - now);
+        } catch (Throwable e) {
+            log.warn("Invalid {} header: {}", RETRY_AFTER, value);
+            return 0;
+        }
+    }
+
+    /**
+     * @param value - the duration like <code>1s</code>, <code>20ms</code>, <code>1.5s</code> or <code>6m0s</code>.
+     */
+    static long parseDuration(String value) {
+        Matcher matcher = DURATION.matcher(value);
+        double duration = 0;
+
+        while (matcher.find()) {
+            double amount = Double.parseDouble(matcher.group(1));
+            duration += switch (matcher.group(2)) {
+                case "ms" -> amount;
+                case "s" -> amount * 1000;
+                case "m" -> amount * 60_000;
+                default -> amount * 3_600_000;
+            };
+        }
+
+        return (long) Math.ceil(duration);
+    }
+
+    private static long parseReset(String remaining, String reset) {
+        if (remaining == null || !remaining.trim().matches("0+")) {
+            return 0;
+        }
+
+        long duration = (reset == null) ? 0 : parseDuration(reset);
+        return (duration > 0) ? duration : DEFAULT_RESET;
+    }
+
+    private static long parseNumber(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, (long) Math.ceil(Double.parseDouble(value.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.epam.aidial.core.util;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the sequence of bytes in the stream which is received chunk by chunk, so the sequence may span the chunks.
+ * The stream is not retained, only the length of the matched prefix of the sequence is kept between the chunks.
+ */
+public class SequenceScanner {
+
+    private final byte[] sequence;
+    // fallbacks[i] is the length of the longest proper prefix of the sequence which is also a suffix of sequence[0..i]
+    private final int[] fallbacks;
+    private int matched;
+    private boolean found;
+
+    public SequenceScanner(String sequence) {
+        this.sequence = sequence.getBytes(StandardCharsets.UTF_8);
+        this.fallbacks = fallbacks(this.sequence);
+    }
+
+    /**
+     * Scans the next chunk of the stream.
+     *
+     * @return true if the sequence is found in the stream so far
+     */
+    public boolean scan(Buffer chunk) {
+        for (int i = 0; i < chunk.length() && !found; i++) {
+            byte value = chunk.getByte(i);
+            while (matched > 0 && sequence[matched] != value) {
+                matched = fallbacks[matched - 1];
+            }
+
+            if (sequence[matched] == value) {
+                matched++;
+            }
+
+            found = matched == sequence.length;
+        }
+
+        return found;
+    }
+
+    private static int[] fallbacks(byte[] sequence) {
+        int[] fallbacks = new int[sequence.length];
+        for (int i = 1, length = 0; i < sequence.length; i++) {
+            while (length > 0 && sequence[i] != sequence[length]) {
+                length = fallbacks[length - 1];
+            }
+
+            if (sequence[i] == sequence[length]) {
+                length++;
+            }
+
+            fallbacks[i] = length;
+        }
+        return fallbacks;
+    }
+}
@@ -0,0 +1,128 @@
+package com.epam.aidial.core.util;
+
+import com.epam.aidial.core.token.TokenUsage;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Getter;
+
+/**
+ * Collects the facts of a streaming response chunk by chunk, so that the response body is not needed once the chunk is forwarded:
+ * token usage, content length without whitespaces and the response assembled into a single one.
+ */
+public class StreamingResponseAssembler {
+
+    private final StringBuilder content = new StringBuilder();
+    private final ObjectNode choice = ProxyUtil.MAPPER.createObjectNode();
+    private final ObjectNode message = ProxyUtil.MAPPER.createObjectNode();
+    private ObjectNode last;
+    private JsonNode usage;
+    private JsonNode statistics;
+    private JsonNode systemFingerprint;
+    private JsonNode model;
+    /**
+     * The length of the assembled content without whitespaces.
+     */
+    @Getter
+    private int contentLength;
+
+    public StreamingResponseAssembler() {
+        choice.set("message", message);
+    }
+
+    public synchronized void append(ObjectNode tree) {
+        if (tree.get("usage") != null) {
+            usage = tree.get("usage");
+        }
+        if (tree.get("statistics") != null) {
+            statistics = tree.get("statistics");
+        }
+        if (tree.get("system_fingerprint") != null) {
+            systemFingerprint = tree.get("system_fingerprint");
+        }
+        if (model == null && tree.get("model") != null) {
+            model = tree.get("model");
+        }
+        last = tree;
+        ArrayNode choices = (ArrayNode) tree.get("choices");
+        if (choices == null || choices.isEmpty()) {
+            // skip error message
+            return;
+        }
+        JsonNode curChoice = choices.get(0);
+        choice.set("finish_reason", curChoice.get("finish_reason"));
+        JsonNode delta = curChoice.get("delta");
+        if (delta == null) {
+            return;
+        }
+        if (delta.get("custom_content") != null) {
+            message.set("custom_content", delta.get("custom_content"));
+        }
+        if (delta.get("tool_calls") != null) {
+            message.set("tool_calls", delta.get("tool_calls"));
+        }
+        if (delta.get("function_call") != null) {
+            message.set("function_call", delta.get("function_call"));
+        }
+        JsonNode contentNode = delta.get("content");
+        if (contentNode != null && contentNode.textValue() != null) {
+            content.append(contentNode.textValue());
+            contentLength += ModelCostCalculator.getLengthWithoutWhitespace(contentNode.textValue());
+        }
+    }
+
+    /**
+     * @return the token usage reported by the last chunk with usage or <code>null</code> if no chunk has it.
+     */
+    public synchronized TokenUsage getTokenUsage() {
+        if (usage == null || !usage.isObject()) {
+            return null;
+        }
+        TokenUsage tokenUsage = new TokenUsage();
+        tokenUsage.setCompletionTokens(usage.path("completion_tokens").asLong());
+        tokenUsage.setPromptTokens(usage.path("prompt_tokens").asLong());
+        tokenUsage.setTotalTokens(usage.path("total_tokens").asLong());
+        return tokenUsage;
+    }
+
+    /**
+     * Assembles the chunks appended so far into a single response.
+     */
+    public synchronized String assemble() {
+        if (last == null) {
+            return "{}";
+        }
+
+        ObjectNode result = ProxyUtil.MAPPER.createObjectNode();
+        result.set("id", last.get("id"));
+        result.put("object", "chat.completion");
+        result.set("created", last.get("created"));
+        result.set("model", model);
+
+        if (usage != null) {
+            result.set("usage", usage);
+        }
+        if (statistics != null) {
+            result.set("statistics", statistics);
+        }
+        if (systemFingerprint != null) {
+            result.set("system_fingerprint", systemFingerprint);
+        }
+
+        if (content.isEmpty()) {
+            // error
+            return ProxyUtil.convertToString(result);
+        }
+
+        ArrayNode choices = ProxyUtil.MAPPER.createArrayNode();
+        result.set("choices", choices);
+        ObjectNode resultChoice = choice.deepCopy();
+        choices.add(resultChoice);
+        resultChoice.put("index", 0);
+        ObjectNode resultMessage = (ObjectNode) resultChoice.get("message");
+        resultMessage.put("role", "assistant");
+        resultMessage.put("content", content.toString());
+
+        return ProxyUtil.convertToString(result);
+    }
+}
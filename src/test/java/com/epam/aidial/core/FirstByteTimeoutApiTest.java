@@ -0,0 +1,87 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class FirstByteTimeoutApiTest extends ResourceBaseTest {
+
+    private static final String REQUEST = "{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}],\"stream\":true}";
+
+    @Test
+    void testFailover(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+
+        // the first upstream which receives the request hangs, the next one responds
+        Handler<HttpServerRequest> handler = request -> request.body().onSuccess(body -> {
+            if (upstreamRequests.incrementAndGet() > 1) {
+                request.response()
+                        .setChunked(true)
+                        .putHeader("content-type", "text/event-stream")
+                        .write("data: {\"id\":\"1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Hi\"}}]}\n\n")
+                        .compose(ignore -> request.response().end("data: [DONE]\n\n"));
+            }
+        });
+
+        Future.all(createUpstream(vertx, 7001, handler), createUpstream(vertx, 7002, handler))
+                .compose(ignore -> sendRequest(client))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertEquals("2", response.getHeader("X-UPSTREAM-ATTEMPTS"));
+                        assertEquals(2, upstreamRequests.get());
+                        assertTrue(body.toString().contains("\"content\":\"Hi\""));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    @Test
+    void testAllUpstreamsTimedOut(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+        Handler<HttpServerRequest> handler = request -> request.body().onSuccess(body -> upstreamRequests.incrementAndGet());
+
+        Future.all(createUpstream(vertx, 7001, handler), createUpstream(vertx, 7002, handler))
+                .compose(ignore -> sendRequest(client))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(504, response.statusCode());
+                        assertEquals(2, upstreamRequests.get());
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    private static Future<HttpServer> createUpstream(Vertx vertx, int port, Handler<HttpServerRequest> handler) {
+        return vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(port))
+                .requestHandler(handler)
+                .listen();
+    }
+
+    private Future<HttpClientResponse> sendRequest(HttpClient client) {
+        return client.request(HttpMethod.POST, serverPort, "localhost", "/openai/deployments/chat-first-byte/chat/completions")
+                .compose(request -> request.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(REQUEST));
+    }
+}
@@ -0,0 +1,101 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class Http2ApiTest extends ResourceBaseTest {
+
+    @Test
+    void testPriorKnowledge(Vertx vertx, VertxTestContext context) {
+        HttpClient http2Client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false));
+
+        checkBucket(http2Client, context);
+    }
+
+    @Test
+    void testUpgrade(Vertx vertx, VertxTestContext context) {
+        HttpClient http2Client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(true));
+
+        checkBucket(http2Client, context);
+    }
+
+    @Test
+    void testStreaming(Vertx vertx, VertxTestContext context) {
+        AtomicReference<MultiMap> upstreamHeaders = new AtomicReference<>();
+        HttpServerOptions options = new HttpServerOptions()
+                .setHost("localhost")
+                .setPort(7001);
+
+        HttpClient http2Client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false));
+
+        vertx.createHttpServer(options)
+                .requestHandler(request -> {
+                    upstreamHeaders.set(MultiMap.caseInsensitiveMultiMap().addAll(request.headers()));
+                    request.body().onSuccess(body -> request.response()
+                            .setChunked(true)
+                            .putHeader("content-type", "text/event-stream")
+                            .putHeader("connection", "keep-alive, x-hop")
+                            .putHeader("x-hop", "hop")
+                            .putHeader("x-end-to-end", "value")
+                            .write("data: {\"id\":\"1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Hi\"}}]}\n\n")
+                            .compose(ignore -> request.response().end("data: [DONE]\n\n")));
+                })
+                .listen()
+                .compose(server -> http2Client.request(HttpMethod.POST, serverPort, "localhost",
+                        "/openai/deployments/chat-gpt-35-turbo/chat/completions"))
+                .compose(request -> request.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send("{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}],\"stream\":true}"))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertEquals(HttpVersion.HTTP_2, response.version());
+                        assertEquals("value", response.getHeader("x-end-to-end"));
+                        assertNull(response.getHeader("x-hop"));
+                        assertTrue(body.toString().contains("\"content\":\"Hi\""));
+                        assertTrue(body.toString().endsWith("data: [DONE]\n\n"));
+                        assertFalse(upstreamHeaders.get().names().stream().anyMatch(name -> name.startsWith(":")));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    private void checkBucket(HttpClient http2Client, VertxTestContext context) {
+        http2Client.request(HttpMethod.GET, serverPort, "localhost", "/v1/bucket")
+                .compose(request -> request.putHeader("api-key", "proxyKey1").send())
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertEquals(HttpVersion.HTTP_2, response.version());
+                        assertEquals(bucket, new JsonObject(body).getString("bucket"));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+}
@@ -0,0 +1,145 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class PassthroughApiTest extends ResourceBaseTest {
+
+    @Test
+    void testLargeRequest(Vertx vertx, VertxTestContext context) {
+        Buffer request = largeRequest(false);
+        AtomicReference<Buffer> upstreamBody = new AtomicReference<>();
+        AtomicReference<MultiMap> upstreamHeaders = new AtomicReference<>();
+
+        HttpClient client = vertx.createHttpClient();
+        vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(7001))
+                .requestHandler(upstreamRequest -> {
+                    upstreamHeaders.set(MultiMap.caseInsensitiveMultiMap().addAll(upstreamRequest.headers()));
+                    upstreamRequest.body().onSuccess(body -> {
+                        upstreamBody.set(body);
+                        upstreamRequest.response()
+                                .putHeader("content-type", "application/json")
+                                .end("{\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"Hi\"}}],"
+                                        + "\"usage\":{\"completion_tokens\":1,\"prompt_tokens\":100000,\"total_tokens\":100001}}");
+                    });
+                })
+                .listen()
+                .compose(server -> client.request(HttpMethod.POST, serverPort, "localhost",
+                        "/openai/deployments/test-model-v1/chat/completions"))
+                .compose(proxyRequest -> proxyRequest.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(request))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertTrue(body.toString().contains("\"content\":\"Hi\""));
+                        assertEquals(request, upstreamBody.get());
+                        assertEquals(Integer.toString(request.length()), upstreamHeaders.get().get("content-length"));
+                        assertNotNull(upstreamHeaders.get().get("api-key"));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    @Test
+    void testLargeStreamingRequest(Vertx vertx, VertxTestContext context) {
+        Buffer request = largeRequest(true);
+
+        HttpClient client = vertx.createHttpClient();
+        vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(7001))
+                .requestHandler(upstreamRequest -> upstreamRequest.body().onSuccess(body -> upstreamRequest.response()
+                        .setChunked(true)
+                        .putHeader("content-type", "text/event-stream")
+                        .write("data: {\"id\":\"1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Hi\"}}]}\n\n")
+                        .compose(ignore -> upstreamRequest.response().end("data: [DONE]\n\n"))))
+                .listen()
+                .compose(server -> client.request(HttpMethod.POST, serverPort, "localhost",
+                        "/openai/deployments/test-model-v1/chat/completions"))
+                .compose(proxyRequest -> proxyRequest.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(request))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertTrue(body.toString().contains("\"content\":\"Hi\""));
+                        assertTrue(body.toString().endsWith("data: [DONE]\n\n"));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    @Test
+    void testAttachmentsInHead(Vertx vertx, VertxTestContext context) {
+        testAttachments(vertx, context, 0, 403);
+    }
+
+    @Test
+    void testAttachmentsAfterHead(Vertx vertx, VertxTestContext context) {
+        testAttachments(vertx, context, 99, 400);
+    }
+
+    private void testAttachments(Vertx vertx, VertxTestContext context, int message, int status) {
+        Response bucketResponse = send(HttpMethod.GET, "/v1/bucket", null, "", "api-key", "proxyKey2");
+        assertEquals(200, bucketResponse.status());
+        String foreignBucket = new JsonObject(bucketResponse.body()).getString("bucket");
+
+        JsonObject request = largeRequest(false).toJsonObject();
+        request.getJsonArray("messages").getJsonObject(message).put("custom_content", new JsonObject()
+                .put("attachments", new JsonArray().add(new JsonObject().put("url", "files/" + foreignBucket + "/secret.txt"))));
+        AtomicBoolean upstreamResponded = new AtomicBoolean();
+
+        HttpClient client = vertx.createHttpClient();
+        vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(7001))
+                .requestHandler(upstreamRequest -> upstreamRequest.body().onSuccess(body -> {
+                    upstreamResponded.set(true);
+                    upstreamRequest.response().end();
+                }))
+                .listen()
+                .compose(server -> client.request(HttpMethod.POST, serverPort, "localhost",
+                        "/openai/deployments/test-model-v1/chat/completions"))
+                .compose(proxyRequest -> proxyRequest.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(request.toBuffer()))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(status, response.statusCode());
+                        assertFalse(upstreamResponded.get());
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    private static Buffer largeRequest(boolean stream) {
+        JsonArray messages = new JsonArray();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new JsonObject().put("role", "user").put("content", "a".repeat(1024)));
+        }
+
+        return new JsonObject()
+                .put("messages", messages)
+                .put("stream", stream)
+                .toBuffer();
+    }
+}
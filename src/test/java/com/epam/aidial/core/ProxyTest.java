@@ -103,6 +103,16 @@ public class ProxyTest {
         verify(response).setStatusCode(HTTP_VERSION_NOT_SUPPORTED.getCode());
     }
 
+    @Test
+    public void testHandle_Http2() {
+        when(request.version()).thenReturn(HttpVersion.HTTP_2);
+        when(request.method()).thenReturn(HttpMethod.PATCH);
+
+        proxy.handle(request);
+
+        verify(response).setStatusCode(METHOD_NOT_ALLOWED.getCode());
+    }
+
     @Test
     public void testHandle_HttpMethodNotAllowed() {
         when(request.version()).thenReturn(HttpVersion.HTTP_1_1);
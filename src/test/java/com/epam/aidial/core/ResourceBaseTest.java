@@ -153,7 +153,8 @@ public class ResourceBaseTest {
                     """.formatted(Json.encode(testDir.toString()));
 
             JsonObject settings = AiDial.settings()
-                    .mergeIn(new JsonObject(overrides), true);
+                    .mergeIn(new JsonObject(overrides), true)
+                    .mergeIn(overrideSettings(), true);
 
             Mockito.when(validator.extractClaims(Mockito.any()))
                     .thenAnswer(invocation -> {
@@ -209,6 +210,13 @@ public class ResourceBaseTest {
         }
     }
 
+    /**
+     * @return the settings the test overrides in addition to the common overrides.
+     */
+    protected JsonObject overrideSettings() {
+        return new JsonObject();
+    }
+
     protected String generate() {
         return "0" + id++;
     }
@@ -0,0 +1,139 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+public class ResponseCacheApiTest extends ResourceBaseTest {
+
+    private static final String EMBEDDINGS = "/openai/deployments/embedding-cached/embeddings";
+    private static final String CHAT = "/openai/deployments/chat-cached/chat/completions";
+    private static final String RESPONSE = """
+            {"object":"list","data":[{"object":"embedding","index":0,"embedding":[0.1,0.2]}],"usage":{"prompt_tokens":2,"total_tokens":2}}""";
+    private static final List<String> EVENTS = List.of(
+            "data: {\"id\":\"1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Hi\"}}]}\n\n",
+            "data: {\"id\":\"1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\" there\"}}],"
+                    + "\"usage\":{\"completion_tokens\":2,\"prompt_tokens\":1,\"total_tokens\":3}}\n\n",
+            "data: [DONE]\n\n");
+
+    @Test
+    void testIdenticalRequests(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+
+        createUpstream(vertx, upstreamRequests, ResponseCacheApiTest::respondJson)
+                .compose(ignore -> sendRequest(client, EMBEDDINGS, "{\"input\":[\"a\",\"b\"],\"user\":\"test\"}"))
+                .compose(ignore -> sendRequest(client, EMBEDDINGS, "{ \"user\": \"test\", \"input\": [\"a\", \"b\"] }"))
+                .compose(body -> {
+                    context.verify(() -> {
+                        assertEquals(RESPONSE, body.toString());
+                        assertEquals(1, upstreamRequests.get());
+                    });
+                    return sendRequest(client, EMBEDDINGS, "{\"input\":[\"b\",\"a\"],\"user\":\"test\"}");
+                })
+                .onComplete(context.succeeding(body -> context.verify(() -> {
+                    assertEquals(2, upstreamRequests.get());
+                    context.completeNow();
+                })));
+    }
+
+    @Test
+    void testSharedCache(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+        String request = "{\"input\":\"shared\"}";
+
+        createUpstream(vertx, upstreamRequests, ResponseCacheApiTest::respondJson)
+                .compose(ignore -> sendRequest(client, EMBEDDINGS, request))
+                // the response is stored in Redis in the background
+                .compose(ignore -> Future.future(promise -> vertx.setTimer(500, timer -> promise.complete())))
+                .compose(ignore -> {
+                    dial.getProxy().getResponseCache().invalidateLocal();
+                    return sendRequest(client, EMBEDDINGS, request);
+                })
+                .onComplete(context.succeeding(body -> context.verify(() -> {
+                    assertEquals(RESPONSE, body.toString());
+                    assertEquals(1, upstreamRequests.get());
+                    context.completeNow();
+                })));
+    }
+
+    @Test
+    void testStreamingReplay(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+        String request = "{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}],\"temperature\":0,\"stream\":true}";
+
+        createUpstream(vertx, upstreamRequests, ResponseCacheApiTest::respondEvents)
+                .compose(ignore -> sendRequest(client, CHAT, request))
+                .compose(ignore -> sendRequest(client, CHAT, request))
+                .onComplete(context.succeeding(body -> context.verify(() -> {
+                    assertEquals(String.join("", EVENTS), body.toString());
+                    assertEquals(1, upstreamRequests.get());
+                    context.completeNow();
+                })));
+    }
+
+    @Test
+    void testNonDeterministicRequest(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+        String request = "{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}],\"temperature\":0.7,\"stream\":true}";
+
+        createUpstream(vertx, upstreamRequests, ResponseCacheApiTest::respondEvents)
+                .compose(ignore -> sendRequest(client, CHAT, request))
+                .compose(ignore -> sendRequest(client, CHAT, request))
+                .onComplete(context.succeeding(body -> context.verify(() -> {
+                    assertEquals(String.join("", EVENTS), body.toString());
+                    assertEquals(2, upstreamRequests.get());
+                    context.completeNow();
+                })));
+    }
+
+    private static Future<HttpServer> createUpstream(Vertx vertx, AtomicInteger upstreamRequests,
+                                                     Handler<HttpServerResponse> handler) {
+        return vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(7001))
+                .requestHandler(request -> request.body().onSuccess(body -> {
+                    upstreamRequests.incrementAndGet();
+                    handler.handle(request.response());
+                }))
+                .listen();
+    }
+
+    private static void respondJson(HttpServerResponse response) {
+        response.putHeader("content-type", "application/json").end(RESPONSE);
+    }
+
+    private static void respondEvents(HttpServerResponse response) {
+        response.setChunked(true).putHeader("content-type", "text/event-stream");
+        EVENTS.forEach(response::write);
+        response.end();
+    }
+
+    private Future<Buffer> sendRequest(HttpClient client, String path, String body) {
+        return client.request(HttpMethod.POST, serverPort, "localhost", path)
+                .compose(request -> request.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(body))
+                .compose(response -> {
+                    assertEquals(200, response.statusCode());
+                    return response.body();
+                });
+    }
+}
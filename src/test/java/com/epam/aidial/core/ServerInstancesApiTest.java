@@ -0,0 +1,71 @@
+package com.epam.aidial.core;
+
+import com.epam.aidial.core.util.MetricUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ServerInstancesApiTest extends ResourceBaseTest {
+
+    private static final int INSTANCES = 2;
+    private static final int REQUESTS = 8;
+
+    // the metrics are disabled in the test settings, so the counters are recorded only if the global registry has a child
+    private static final SimpleMeterRegistry REGISTRY = new SimpleMeterRegistry();
+
+    @BeforeAll
+    static void addRegistry() {
+        Metrics.addRegistry(REGISTRY);
+    }
+
+    @AfterAll
+    static void removeRegistry() {
+        Metrics.removeRegistry(REGISTRY);
+        REGISTRY.close();
+    }
+
+    @Override
+    protected JsonObject overrideSettings() {
+        return new JsonObject().put("server", new JsonObject().put("instances", INSTANCES));
+    }
+
+    @Test
+    void testRequestsAreServedByAllInstances() {
+        Map<String, Double> before = countRequests();
+
+        // every request opens a new connection, so the connections are balanced among the instances
+        for (int i = 0; i < REQUESTS; i++) {
+            Response response = send(HttpMethod.GET, "/v1/bucket", null, "", "Connection", "close");
+            assertEquals(200, response.status());
+        }
+
+        Map<String, Double> served = new HashMap<>();
+        countRequests().forEach((eventLoop, count) -> {
+            double delta = count - before.getOrDefault(eventLoop, 0.0);
+            if (delta > 0) {
+                served.put(eventLoop, delta);
+            }
+        });
+
+        assertEquals(INSTANCES, served.size(), "Requests per event loop: " + served);
+        assertEquals(REQUESTS, served.values().stream().mapToDouble(Double::doubleValue).sum());
+    }
+
+    private static Map<String, Double> countRequests() {
+        Map<String, Double> counts = new HashMap<>();
+        for (Counter counter : MetricUtil.registry().find("aidial.server.requests").counters()) {
+            counts.merge(counter.getId().getTag("event_loop"), counter.count(), Double::sum);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,112 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends concurrent chat completion requests to compare HTTP/1.1 with cleartext HTTP/2.
+ * Reports the number of opened connections and the latency percentiles.
+ * <p>
+ *     Run TestServerStatus200 (or a real adapter) and the proxy, then:
+ *     <code>TestLoadClient http://localhost:8080/openai/deployments/chat-gpt-35-turbo/chat/completions h2c 256 10000 src/test/resources/request.txt</code>
+ * </p>
+ */
+public class TestLoadClient {
+
+    public static void main(String[] args) throws Exception {
+        String url = args[0];
+        boolean http2 = args[1].equals("h2c");
+        int concurrency = Integer.parseInt(args[2]);
+        int requests = Integer.parseInt(args[3]);
+        Buffer body = Buffer.buffer(Files.readAllBytes(Path.of(args[4])));
+
+        Vertx vertx = Vertx.vertx();
+        AtomicInteger connections = new AtomicInteger();
+        HttpClientOptions options = new HttpClientOptions()
+                .setProtocolVersion(http2 ? HttpVersion.HTTP_2 : HttpVersion.HTTP_1_1)
+                .setHttp2ClearTextUpgrade(false)
+                .setMaxPoolSize(concurrency)
+                .setHttp2MaxPoolSize(1)
+                .setKeepAlive(true);
+
+        HttpClient client = vertx.createHttpClient(options)
+                .connectionHandler(connection -> connections.incrementAndGet());
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>(requests));
+        AtomicInteger remaining = new AtomicInteger(requests);
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < concurrency; i++) {
+            vertx.runOnContext(ignore -> send(client, url, body, remaining, latencies, errors, done));
+        }
+
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+
+        System.out.printf("Protocol: %s. Requests: %d. Errors: %d. Connections: %d. Throughput: %.1f rps%n",
+                http2 ? "h2c" : "http/1.1", sorted.size(), errors.get(), connections.get(),
+                sorted.size() * 1e9 / elapsed);
+        System.out.printf("Latency ms: p50=%.1f, p90=%.1f, p99=%.1f, max=%.1f%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    private static void send(HttpClient client, String url, Buffer body, AtomicInteger remaining,
+                             List<Long> latencies, AtomicInteger errors, CountDownLatch done) {
+        if (remaining.getAndDecrement() <= 0) {
+            done.countDown();
+            return;
+        }
+
+        long start = System.nanoTime();
+        RequestOptions options = new RequestOptions()
+                .setAbsoluteURI(url)
+                .setMethod(HttpMethod.POST)
+                .putHeader("api-key", "proxyKey1")
+                .putHeader("content-type", "application/json");
+
+        client.request(options)
+                .compose(request -> request.send(body))
+                .compose(response -> response.body().compose(ignore -> response.statusCode() == 200
+                        ? Future.succeededFuture()
+                        : Future.failedFuture("Status: " + response.statusCode())))
+                .onComplete(result -> {
+                    if (result.succeeded()) {
+                        latencies.add(System.nanoTime() - start);
+                    } else {
+                        errors.incrementAndGet();
+                    }
+
+                    send(client, url, body, remaining, latencies, errors, done);
+                });
+    }
+
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+}
@@ -0,0 +1,82 @@
+package com.epam.aidial.core;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class UpstreamThrottlingApiTest extends ResourceBaseTest {
+
+    private static final String REQUEST = "{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}]}";
+
+    @Test
+    void testThrottledUpstreams(Vertx vertx, VertxTestContext context) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        HttpClient client = vertx.createHttpClient();
+
+        // every upstream of the deployment is rate limited and tells how long to wait in its own way
+        createUpstream(vertx, upstreamRequests, Map.of(
+                        "http://localhost:7001", Map.of("Retry-After", "20"),
+                        "http://localhost:7002", Map.of("retry-after-ms", "30000"),
+                        "http://localhost:7003", Map.of("x-ratelimit-remaining-requests", "0", "x-ratelimit-reset-requests", "10s")))
+                .compose(ignore -> sendRequest(client))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(429, response.statusCode());
+                        assertEquals(3, upstreamRequests.get());
+                    });
+                    return body;
+                }))
+                // the next request is not sent to the throttled upstreams
+                .compose(ignore -> sendRequest(client))
+                .compose(response -> response.body().map(body -> {
+                    context.verify(() -> {
+                        assertEquals(429, response.statusCode());
+                        assertEquals(3, upstreamRequests.get());
+                        long retryAfter = Long.parseLong(response.getHeader("Retry-After"));
+                        // the least wait of the upstreams
+                        assertEquals(10, retryAfter);
+                        assertTrue(body.toString().contains("All upstreams are rate limited"));
+                    });
+                    return body;
+                }))
+                .onComplete(context.succeedingThenComplete());
+    }
+
+    /**
+     * Core always connects to the deployment endpoint and passes the upstream to the adapter in the header,
+     * so the only server answers for all upstreams.
+     */
+    private static Future<HttpServer> createUpstream(Vertx vertx, AtomicInteger requests, Map<String, Map<String, String>> headers) {
+        return vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(7001))
+                .requestHandler(request -> request.body().onSuccess(body -> {
+                    requests.incrementAndGet();
+                    HttpServerResponse response = request.response().setStatusCode(429);
+                    headers.getOrDefault(request.getHeader(Proxy.HEADER_UPSTREAM_ENDPOINT), Map.of()).forEach(response::putHeader);
+                    response.end("{\"error\":{\"message\":\"Rate limit is exceeded\"}}");
+                }))
+                .listen();
+    }
+
+    private Future<HttpClientResponse> sendRequest(HttpClient client) {
+        return client.request(HttpMethod.POST, serverPort, "localhost", "/openai/deployments/chat-gpt-35-turbo/chat/completions")
+                .compose(request -> request.putHeader("api-key", "proxyKey1")
+                        .putHeader("content-type", "application/json")
+                        .send(REQUEST));
+    }
+}
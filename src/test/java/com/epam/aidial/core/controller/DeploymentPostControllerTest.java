@@ -6,12 +6,14 @@ import com.epam.aidial.core.config.ApiKeyData;
 import com.epam.aidial.core.config.Application;
 import com.epam.aidial.core.config.Config;
 import com.epam.aidial.core.config.Model;
+import com.epam.aidial.core.limiter.ConcurrencyLimiter;
 import com.epam.aidial.core.limiter.RateLimiter;
 import com.epam.aidial.core.log.LogStore;
 import com.epam.aidial.core.security.ApiKeyStore;
 import com.epam.aidial.core.token.TokenStatsTracker;
 import com.epam.aidial.core.token.TokenUsage;
 import com.epam.aidial.core.upstream.UpstreamBalancer;
+import com.epam.aidial.core.upstream.UpstreamClients;
 import com.epam.aidial.core.upstream.UpstreamProvider;
 import com.epam.aidial.core.upstream.UpstreamRoute;
 import com.epam.aidial.core.util.BufferingReadStream;
@@ -22,12 +24,12 @@ import io.vertx.core.Future;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.impl.headers.HeadersMultiMap;
+import io.vertx.core.json.JsonObject;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Answers;
@@ -51,6 +53,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
@@ -146,6 +149,7 @@ public class DeploymentPostControllerTest {
         application.setName("app1");
         config.getApplications().put("app1", application);
         when(context.getConfig()).thenReturn(config);
+        when(proxy.getConcurrencyLimiter()).thenReturn(new ConcurrencyLimiter(vertx, new JsonObject()));
         UpstreamBalancer balancer = mock(UpstreamBalancer.class);
         when(proxy.getUpstreamBalancer()).thenReturn(balancer);
         UpstreamRoute endpointRoute = mock(UpstreamRoute.class);
@@ -173,6 +177,7 @@ public class DeploymentPostControllerTest {
         application.setName("app1");
         config.getApplications().put("app1", application);
         when(context.getConfig()).thenReturn(config);
+        when(proxy.getConcurrencyLimiter()).thenReturn(new ConcurrencyLimiter(vertx, new JsonObject()));
         UpstreamBalancer balancer = mock(UpstreamBalancer.class);
         when(proxy.getUpstreamBalancer()).thenReturn(balancer);
         UpstreamRoute endpointRoute = mock(UpstreamRoute.class);
@@ -231,7 +236,7 @@ public class DeploymentPostControllerTest {
         when(context.getUpstreamRoute()).thenReturn(upstreamRoute);
         HttpServerRequest request = mock(HttpServerRequest.class, RETURNS_DEEP_STUBS);
         when(context.getRequest()).thenReturn(request);
-        when(proxy.getClient()).thenReturn(mock(HttpClient.class, RETURNS_DEEP_STUBS));
+        when(proxy.getUpstreamClients()).thenReturn(mock(UpstreamClients.class, RETURNS_DEEP_STUBS));
         when(proxy.getApiKeyStore()).thenReturn(mock(ApiKeyStore.class));
 
         Model model = new Model();
@@ -249,6 +254,8 @@ public class DeploymentPostControllerTest {
         Buffer requestBody = Buffer.buffer(body);
         when(context.getRequestBody()).thenCallRealMethod();
         doCallRealMethod().when(context).setRequestBody(any());
+        when(context.isRequestTreeModified()).thenCallRealMethod();
+        doCallRealMethod().when(context).setRequestTreeModified(anyBoolean());
 
         controller.handleRequestBody(requestBody);
 
@@ -269,7 +276,7 @@ public class DeploymentPostControllerTest {
         when(context.getUpstreamRoute()).thenReturn(upstreamRoute);
         HttpServerRequest request = mock(HttpServerRequest.class, RETURNS_DEEP_STUBS);
         when(context.getRequest()).thenReturn(request);
-        when(proxy.getClient()).thenReturn(mock(HttpClient.class, RETURNS_DEEP_STUBS));
+        when(proxy.getUpstreamClients()).thenReturn(mock(UpstreamClients.class, RETURNS_DEEP_STUBS));
         when(proxy.getApiKeyStore()).thenReturn(mock(ApiKeyStore.class));
 
         Model model = new Model();
@@ -394,6 +401,7 @@ public class DeploymentPostControllerTest {
         application.setName("applications/bucket/app1");
         when(proxy.getVertx()).thenReturn(vertx);
         when(vertx.executeBlocking(any(Callable.class), eq(false))).thenReturn(Future.succeededFuture(application));
+        when(proxy.getConcurrencyLimiter()).thenReturn(new ConcurrencyLimiter(vertx, new JsonObject()));
         UpstreamBalancer balancer = mock(UpstreamBalancer.class);
         when(proxy.getUpstreamBalancer()).thenReturn(balancer);
         UpstreamRoute endpointRoute = mock(UpstreamRoute.class);
@@ -0,0 +1,78 @@
+package com.epam.aidial.core.controller;
+
+import io.vertx.core.http.HttpMethod;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PathDispatcherTest {
+
+    private final PathDispatcher<String> dispatcher = new PathDispatcher<String>()
+            .add(HttpMethod.GET, "/+openai/deployments/{id}", "deployment")
+            .add(HttpMethod.GET, "/+openai/deployments", "deployments")
+            .add(HttpMethod.POST, "/+openai/deployments/{id+}/completions", "completions")
+            .add(HttpMethod.POST, "/+openai/deployments/{id+}/chat/completions", "chat")
+            .add(HttpMethod.GET, "/v1/files/{bucket:[a-zA-Z0-9]+}/{path*}", "file")
+            .add(HttpMethod.POST, "/+v1/{id+}/rate", "rate")
+            .add(HttpMethod.POST, "/v1/{type:conversations|prompts}/{bucket:[a-zA-Z0-9]+}/{path*}", "resource")
+            .add(HttpMethod.GET, "/v1/bucket", "bucket");
+
+    @Test
+    public void testLiteral() {
+        assertMatch("deployments", Map.of(), HttpMethod.GET, "/openai/deployments");
+        assertMatch("bucket", Map.of(), HttpMethod.GET, "/v1/bucket");
+        assertMatch("deployments", Map.of(), HttpMethod.GET, "///openai/deployments");
+        assertNull(dispatcher.match(HttpMethod.GET, "//v1/bucket"));
+        assertNull(dispatcher.match(HttpMethod.GET, "/v1/bucket/"));
+        assertNull(dispatcher.match(HttpMethod.POST, "/v1/bucket"));
+        assertNull(dispatcher.match(HttpMethod.GET, "v1/bucket"));
+    }
+
+    @Test
+    public void testParam() {
+        assertMatch("deployment", Map.of("id", "gpt%2F4"), HttpMethod.GET, "/openai/deployments/gpt%2F4");
+        assertNull(dispatcher.match(HttpMethod.GET, "/openai/deployments/"));
+        assertNull(dispatcher.match(HttpMethod.GET, "/openai/deployments/gpt/4"));
+    }
+
+    @Test
+    public void testTail() {
+        assertMatch("completions", Map.of("id", "app"), HttpMethod.POST, "/openai/deployments/app/completions");
+        assertMatch("chat", Map.of("id", "applications/bucket/app"), HttpMethod.POST,
+                "/openai/deployments/applications/bucket/app/chat/completions");
+        assertMatch("completions", Map.of("id", "chat"), HttpMethod.POST, "/openai/deployments/chat/completions");
+        assertNull(dispatcher.match(HttpMethod.POST, "/openai/deployments/completions"));
+        assertNull(dispatcher.match(HttpMethod.POST, "/openai/deployments//completions"));
+    }
+
+    @Test
+    public void testRest() {
+        assertMatch("file", Map.of("bucket", "b1", "path", "a/b.txt"), HttpMethod.GET, "/v1/files/b1/a/b.txt");
+        assertMatch("file", Map.of("bucket", "b1", "path", ""), HttpMethod.GET, "/v1/files/b1/");
+        assertNull(dispatcher.match(HttpMethod.GET, "/v1/files/b1"));
+        assertNull(dispatcher.match(HttpMethod.GET, "/v1/files/b-1/a.txt"));
+    }
+
+    @Test
+    public void testBacktracking() {
+        assertMatch("resource", Map.of("type", "prompts", "bucket", "b1", "path", "p1"), HttpMethod.POST, "/v1/prompts/b1/p1");
+        assertMatch("rate", Map.of("id", "prompts/b-1/p1"), HttpMethod.POST, "/v1/prompts/b-1/p1/rate");
+        assertMatch("rate", Map.of("id", "app"), HttpMethod.POST, "//v1/app/rate");
+    }
+
+    @Test
+    public void testDuplicate() {
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.add(HttpMethod.GET, "/v1/bucket", "bucket"));
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.add(HttpMethod.GET, "/v1/{path*}/rate", "rate"));
+    }
+
+    private void assertMatch(String expectedValue, Map<String, String> expectedParams, HttpMethod method, String path) {
+        PathDispatcher.Match<String> match = dispatcher.match(method, path);
+        assertEquals(expectedValue, match == null ? null : match.value());
+        assertEquals(expectedParams, match.params());
+    }
+}
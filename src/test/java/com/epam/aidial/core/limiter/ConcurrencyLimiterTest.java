@@ -0,0 +1,228 @@
+package com.epam.aidial.core.limiter;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class ConcurrencyLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void testShedding(Vertx vertx) {
+        ConcurrencyLimiter limiter = createLimiter(vertx, true, 2);
+
+        ConcurrencyLimiter.Permit permit1 = acquire(limiter, "shed");
+        ConcurrencyLimiter.Permit permit2 = acquire(limiter, "shed");
+        assertNotNull(permit1);
+        assertNotNull(permit2);
+        assertNull(acquire(limiter, "shed"));
+
+        // the other deployments are not affected
+        assertNotNull(acquire(limiter, "other"));
+
+        permit1.release();
+        permit1.release();
+        assertNotNull(acquire(limiter, "shed"));
+        assertNull(acquire(limiter, "shed"));
+    }
+
+    @Test
+    void testDisabled(Vertx vertx) {
+        ConcurrencyLimiter limiter = createLimiter(vertx, false, 2);
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(acquire(limiter, "disabled"));
+        }
+    }
+
+    @Test
+    void testAdaptation(Vertx vertx) {
+        ConcurrencyLimiter limiter = createLimiter(vertx, true, 10);
+
+        send(limiter, "adaptive", 100, 50);
+        int grown = limiter.getLimit("adaptive");
+        assertTrue(grown > 10, "Limit: " + grown);
+
+        send(limiter, "adaptive", 1000, 30);
+        int shrunk = limiter.getLimit("adaptive");
+        assertTrue(shrunk < grown / 2, "Limit: " + shrunk);
+    }
+
+    @Test
+    void testBackoff(Vertx vertx) {
+        ConcurrencyLimiter limiter = createLimiter(vertx, true, 10);
+
+        ConcurrencyLimiter.Permit permit = acquire(limiter, "backoff");
+        permit.onResponse(503);
+        assertEquals(9, limiter.getLimit("backoff"));
+
+        // only the first outcome is counted
+        permit.onFailure();
+        assertEquals(9, limiter.getLimit("backoff"));
+
+        acquire(limiter, "backoff").onFailure();
+        assertEquals(8, limiter.getLimit("backoff"));
+    }
+
+    @Test
+    void testRetryAfter(Vertx vertx) {
+        ConcurrencyLimiter limiter = createLimiter(vertx, true, 10);
+        assertEquals(1, limiter.getRetryAfter("retry"));
+
+        send(limiter, "retry", 2500, 1);
+        assertEquals(3, limiter.getRetryAfter("retry"));
+    }
+
+    @Test
+    void testWeightedOrder(Vertx vertx, VertxTestContext context) {
+        ConcurrencyLimiter limiter = createQueuedLimiter(vertx, 1, 100, 10000);
+        ConcurrencyLimiter.Permit permit = acquire(limiter, "weighted");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            futures.add(queue(limiter, "weighted", "batch", 1.0, order));
+            futures.add(queue(limiter, "weighted", "interactive", 3.0, order));
+        }
+
+        permit.release();
+        Future.all(futures).onComplete(context.succeeding(ignore -> context.verify(() -> {
+            assertEquals(16, order.size());
+            assertEquals(6, Collections.frequency(order.subList(0, 8), "interactive"), "Order: " + order);
+            context.completeNow();
+        })));
+    }
+
+    @Test
+    void testQueueBounds(Vertx vertx, VertxTestContext context) {
+        ConcurrencyLimiter limiter = createQueuedLimiter(vertx, 1, 1, 100);
+        ConcurrencyLimiter.Permit permit = acquire(limiter, "bounded");
+        assertNotNull(permit);
+
+        Future<ConcurrencyLimiter.Permit> queued = limiter.acquire("bounded", "flow", 1.0);
+        assertNull(acquire(limiter, "bounded"));
+
+        queued.onComplete(context.succeeding(expired -> context.verify(() -> {
+            assertNull(expired);
+            context.completeNow();
+        })));
+    }
+
+    /**
+     * The batch client sends many requests at once to the slow upstream, then the interactive client sends a few.
+     * The interactive requests are admitted in turn with the batch ones instead of waiting for the whole batch.
+     */
+    @Test
+    void testFairnessWithSlowUpstream(Vertx vertx, VertxTestContext context) {
+        ConcurrencyLimiter limiter = createQueuedLimiter(vertx, 2, 100, 30000);
+        HttpClient client = vertx.createHttpClient();
+        List<String> completions = Collections.synchronizedList(new ArrayList<>());
+
+        vertx.createHttpServer()
+                .requestHandler(request -> vertx.setTimer(20, ignore -> request.response().end()))
+                .listen(0, "localhost")
+                .compose(server -> {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int i = 0; i < 40; i++) {
+                        futures.add(call(limiter, client, server, "key:batch", 1.0, completions));
+                    }
+                    for (int i = 0; i < 5; i++) {
+                        futures.add(call(limiter, client, server, "user:interactive", 1.0, completions));
+                    }
+                    return Future.all(futures);
+                })
+                .onComplete(context.succeeding(ignore -> context.verify(() -> {
+                    assertEquals(45, completions.size());
+                    int last = completions.lastIndexOf("user:interactive");
+                    assertTrue(last < 15, "Completions: " + completions);
+                    context.completeNow();
+                })));
+    }
+
+    private ConcurrencyLimiter createLimiter(Vertx vertx, boolean enabled, int initialLimit) {
+        JsonObject settings = new JsonObject()
+                .put("enabled", enabled)
+                .put("initialLimit", initialLimit);
+        return new ConcurrencyLimiter(vertx, settings, clock::get);
+    }
+
+    private static ConcurrencyLimiter createQueuedLimiter(Vertx vertx, int limit, int queueSize, long maxWait) {
+        JsonObject settings = new JsonObject()
+                .put("enabled", true)
+                .put("initialLimit", limit)
+                .put("minLimit", limit)
+                .put("maxLimit", limit)
+                .put("queue", new JsonObject().put("size", queueSize).put("maxWait", maxWait));
+        return new ConcurrencyLimiter(vertx, settings);
+    }
+
+    private static ConcurrencyLimiter.Permit acquire(ConcurrencyLimiter limiter, String deployment) {
+        Future<ConcurrencyLimiter.Permit> future = limiter.acquire(deployment, "flow", 1.0);
+        assertTrue(future.isComplete());
+        return future.result();
+    }
+
+    private static Future<?> queue(ConcurrencyLimiter limiter, String deployment, String flow, double weight, List<String> order) {
+        return limiter.acquire(deployment, flow, weight).onSuccess(permit -> {
+            order.add(flow);
+            permit.release();
+        });
+    }
+
+    private static Future<?> call(ConcurrencyLimiter limiter, HttpClient client, HttpServer server,
+                                  String flow, double weight, List<String> completions) {
+        return limiter.acquire("slow", flow, weight)
+                .compose(permit -> client.request(HttpMethod.GET, server.actualPort(), "localhost", "/")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .onComplete(ignore -> {
+                            completions.add(flow);
+                            permit.release();
+                        }));
+    }
+
+    /**
+     * Sends the requests one by one while the limit is used up by the other requests in flight.
+     * The requests in flight follow the limit, so there is always room for the next request.
+     */
+    private void send(ConcurrencyLimiter limiter, String deployment, long latency, int requests) {
+        List<ConcurrencyLimiter.Permit> inflight = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            while (inflight.size() >= limiter.getLimit(deployment)) {
+                inflight.remove(inflight.size() - 1).release();
+            }
+            while (inflight.size() < limiter.getLimit(deployment) - 1) {
+                inflight.add(acquire(limiter, deployment));
+            }
+
+            ConcurrencyLimiter.Permit permit = acquire(limiter, deployment);
+            assertNotNull(permit);
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(latency));
+            permit.onResponse(200);
+            permit.release();
+        }
+
+        inflight.forEach(ConcurrencyLimiter.Permit::release);
+    }
+}
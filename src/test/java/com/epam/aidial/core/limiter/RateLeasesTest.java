@@ -0,0 +1,247 @@
+package com.epam.aidial.core.limiter;
+
+import com.epam.aidial.core.ProxyContext;
+import com.epam.aidial.core.config.ApiKeyData;
+import com.epam.aidial.core.config.Config;
+import com.epam.aidial.core.config.Limit;
+import com.epam.aidial.core.config.Model;
+import com.epam.aidial.core.config.Role;
+import com.epam.aidial.core.data.LimitStats;
+import com.epam.aidial.core.security.ExtractedClaims;
+import com.epam.aidial.core.service.LockService;
+import com.epam.aidial.core.service.ResourceService;
+import com.epam.aidial.core.storage.BlobStorage;
+import com.epam.aidial.core.token.TokenUsage;
+import com.epam.aidial.core.util.HttpStatus;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.redisson.Redisson;
+import org.redisson.api.RKeys;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.redisnode.RedisNode;
+import org.redisson.api.redisnode.RedisNodes;
+import org.redisson.config.ConfigSupport;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulates several Core instances sharing the same Redis, each with its own rate limiter and leases.
+ */
+@ExtendWith(MockitoExtension.class)
+public class RateLeasesTest {
+
+    private static final int NODES = 4;
+    private static final int LEASE_REQUESTS = 10;
+
+    private static RedisServer redisServer;
+
+    private static RedissonClient redissonClient;
+
+    @Mock
+    private Vertx vertx;
+
+    @Mock
+    private BlobStorage blobStorage;
+
+    @Mock
+    private HttpServerRequest request;
+
+    private ResourceService resourceService;
+
+    @BeforeAll
+    public static void beforeAll() throws IOException {
+        redisServer = RedisServer.newRedisServer()
+                .port(16370)
+                .bind("127.0.0.1")
+                .setting("maxmemory 16M")
+                .setting("maxmemory-policy volatile-lfu")
+                .build();
+        redisServer.start();
+        ConfigSupport configSupport = new ConfigSupport();
+        org.redisson.config.Config redisClientConfig = configSupport.fromJSON("""
+                {
+                  "singleServerConfig": {
+                     "address": "redis://localhost:16370"
+                  }
+                }
+                """, org.redisson.config.Config.class);
+
+        redissonClient = Redisson.create(redisClientConfig);
+    }
+
+    @AfterAll
+    public static void afterAll() throws IOException {
+        if (redissonClient != null) {
+            redissonClient.shutdown();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @BeforeEach
+    public void beforeEach() {
+        RKeys keys = redissonClient.getKeys();
+        for (String key : keys.getKeys()) {
+            keys.delete(key);
+        }
+        LockService lockService = new LockService(redissonClient, null);
+        String resourceConfig = """
+                  {
+                    "maxSize" : 1048576,
+                    "syncPeriod": 60000,
+                    "syncDelay": 120000,
+                    "syncBatch": 4096,
+                    "cacheExpiration": 300000,
+                    "compressionMinSize": 256
+                  }
+                """;
+        resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable<?> callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+    }
+
+    @Test
+    public void testRequestLimitAccuracy() {
+        Limit limit = new Limit();
+        limit.setRequestHour(100);
+        ProxyContext context = createContext(limit);
+
+        List<RateLeases> leases = createLeases();
+        long leasedAdmitted = sendRequests(createLimiters(leases), context, 300, 0);
+
+        assertTrue(leasedAdmitted >= 100, "Admitted: " + leasedAdmitted);
+        assertTrue(leasedAdmitted <= 100 + NODES * (LEASE_REQUESTS - 1), "Admitted: " + leasedAdmitted);
+
+        leases.forEach(RateLeases::close);
+        redissonClient.getKeys().flushdb();
+
+        long directAdmitted = sendRequests(createLimiters(null), context, 300, 0);
+        assertEquals(100, directAdmitted);
+    }
+
+    @Test
+    public void testRedisCommands() {
+        Limit limit = new Limit();
+        limit.setRequestHour(10000);
+        ProxyContext context = createContext(limit);
+
+        // the rejected requests go to Redis anyway, so the requests are sent within the limit
+        List<RateLeases> leases = createLeases();
+        List<RateLimiter> leased = createLimiters(leases);
+        long before = totalRedisCommands();
+        assertEquals(300, sendRequests(leased, context, 300, 0));
+        long leasedCommands = totalRedisCommands() - before;
+
+        leases.forEach(RateLeases::close);
+        redissonClient.getKeys().flushdb();
+
+        List<RateLimiter> direct = createLimiters(null);
+        before = totalRedisCommands();
+        assertEquals(300, sendRequests(direct, context, 300, 0));
+        long directCommands = totalRedisCommands() - before;
+
+        assertTrue(leasedCommands * 3 < directCommands, "Leased: " + leasedCommands + ", direct: " + directCommands);
+    }
+
+    @Test
+    public void testTokenLimitAccuracy() {
+        Limit limit = new Limit();
+        limit.setMinute(1000);
+        ProxyContext context = createContext(limit);
+
+        List<RateLeases> leases = createLeases();
+        List<RateLimiter> limiters = createLimiters(leases);
+        long admitted = sendRequests(limiters, context, 200, 50);
+
+        // tokens used on other nodes are seen when their leases are renewed
+        assertTrue(admitted * 50 >= 1000, "Admitted: " + admitted);
+        assertTrue(admitted * 50 <= 1000 + NODES * LEASE_REQUESTS * 50, "Admitted: " + admitted);
+
+        // the pending tokens are flushed when the leases are closed
+        leases.forEach(RateLeases::close);
+        LimitStats stats = limiters.get(0).getLimitStats("model", context).result();
+        assertEquals(admitted * 50, stats.getMinuteTokenStats().getUsed());
+    }
+
+    private List<RateLeases> createLeases() {
+        RedisRateBuckets buckets = new RedisRateBuckets(redissonClient, null);
+        JsonObject settings = new JsonObject().put("requests", LEASE_REQUESTS).put("duration", 60000);
+        List<RateLeases> leases = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            leases.add(new RateLeases(vertx, buckets, settings));
+        }
+        return leases;
+    }
+
+    private List<RateLimiter> createLimiters(List<RateLeases> leases) {
+        List<RateLimiter> limiters = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            RedisRateBuckets buckets = new RedisRateBuckets(redissonClient, null);
+            limiters.add(new RateLimiter(vertx, resourceService, buckets, (leases == null) ? null : leases.get(i)));
+        }
+        return limiters;
+    }
+
+    private ProxyContext createContext(Limit limit) {
+        Config config = new Config();
+        Role role = new Role();
+        role.setLimits(Map.of("model", limit));
+        config.getRoles().put("role1", role);
+
+        ProxyContext context = new ProxyContext(config, request, new ApiKeyData(),
+                new ExtractedClaims("sub", List.of("role1"), "user-hash", Map.of()), "trace-id", "span-id");
+        Model model = new Model();
+        model.setName("model");
+        context.setDeployment(model);
+        return context;
+    }
+
+    /**
+     * Sends the requests to the nodes in turn.
+     *
+     * @return the number of admitted requests.
+     */
+    private static long sendRequests(List<RateLimiter> limiters, ProxyContext context, int requests, long tokens) {
+        TokenUsage usage = new TokenUsage();
+        usage.setTotalTokens(tokens);
+        context.setTokenUsage(usage);
+
+        long admitted = 0;
+        for (int i = 0; i < requests; i++) {
+            RateLimiter limiter = limiters.get(i % limiters.size());
+            if (limiter.limit(context).result().status() == HttpStatus.OK) {
+                admitted++;
+                limiter.increase(context);
+            }
+        }
+        return admitted;
+    }
+
+    private static long totalRedisCommands() {
+        Map<String, String> stats = redissonClient.getRedisNodes(RedisNodes.SINGLE).getInstance().info(RedisNode.InfoSection.STATS);
+        return Long.parseLong(stats.get("total_commands_processed"));
+    }
+}
@@ -59,6 +59,8 @@ public class RateLimiterTest {
     @Mock
     private HttpServerRequest request;
 
+    private ResourceService resourceService;
+
     private RateLimiter rateLimiter;
 
     @BeforeAll
@@ -109,7 +111,7 @@ public class RateLimiterTest {
                     "compressionMinSize": 256
                   }
                 """;
-        ResourceService resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
+        resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
         rateLimiter = new RateLimiter(vertx, resourceService);
     }
 
@@ -480,4 +482,93 @@ public class RateLimiterTest {
 
     }
 
+    @Test
+    public void testLimit_RedisEngine_TokenLimit() {
+        rateLimiter = new RateLimiter(vertx, resourceService, new RedisRateBuckets(redissonClient, null));
+        Key key = new Key();
+        key.setRole("role");
+        key.setKey("key");
+        key.setProject("api-key");
+        Config config = new Config();
+        Role role = new Role();
+        Limit limit = new Limit();
+        limit.setDay(10000);
+        limit.setMinute(100);
+        role.setLimits(Map.of("model", limit));
+        config.setRoles(Map.of("role", role));
+        ApiKeyData apiKeyData = new ApiKeyData();
+        apiKeyData.setOriginalKey(key);
+        ProxyContext proxyContext = new ProxyContext(config, request, apiKeyData, null, "trace-id", "span-id");
+        Model model = new Model();
+        model.setName("model");
+        proxyContext.setDeployment(model);
+
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable<?> callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+
+        TokenUsage tokenUsage = new TokenUsage();
+        tokenUsage.setTotalTokens(90);
+        proxyContext.setTokenUsage(tokenUsage);
+
+        Future<Void> increaseLimitFuture = rateLimiter.increase(proxyContext);
+        assertNotNull(increaseLimitFuture);
+        assertNull(increaseLimitFuture.cause());
+
+        Future<RateLimitResult> checkLimitFuture = rateLimiter.limit(proxyContext);
+
+        assertNotNull(checkLimitFuture);
+        assertNotNull(checkLimitFuture.result());
+        assertEquals(HttpStatus.OK, checkLimitFuture.result().status());
+
+        increaseLimitFuture = rateLimiter.increase(proxyContext);
+        assertNotNull(increaseLimitFuture);
+        assertNull(increaseLimitFuture.cause());
+
+        checkLimitFuture = rateLimiter.limit(proxyContext);
+
+        assertNotNull(checkLimitFuture);
+        assertNotNull(checkLimitFuture.result());
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, checkLimitFuture.result().status());
+
+        LimitStats limitStats = rateLimiter.getLimitStats(model.getName(), proxyContext).result();
+        assertNotNull(limitStats);
+        assertEquals(180, limitStats.getDayTokenStats().getUsed());
+        assertEquals(180, limitStats.getMinuteTokenStats().getUsed());
+        assertEquals(1, limitStats.getDayRequestStats().getUsed());
+        assertEquals(1, limitStats.getHourRequestStats().getUsed());
+    }
+
+    @Test
+    public void testLimit_RedisEngine_RequestLimit() {
+        rateLimiter = new RateLimiter(vertx, resourceService, new RedisRateBuckets(redissonClient, null));
+        Config config = new Config();
+
+        Role role = new Role();
+        Limit limit = new Limit();
+        limit.setRequestDay(10);
+        limit.setRequestHour(2);
+        role.setLimits(Map.of("model", limit));
+        config.getRoles().put("role1", role);
+
+        ApiKeyData apiKeyData = new ApiKeyData();
+        ProxyContext proxyContext = new ProxyContext(config, request, apiKeyData,
+                new ExtractedClaims("sub", List.of("role1"), "user-hash", Map.of()), "trace-id", "span-id");
+        Model model = new Model();
+        model.setName("model");
+        proxyContext.setDeployment(model);
+
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable<?> callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+
+        assertEquals(HttpStatus.OK, rateLimiter.limit(proxyContext).result().status());
+        assertEquals(HttpStatus.OK, rateLimiter.limit(proxyContext).result().status());
+
+        RateLimitResult result = rateLimiter.limit(proxyContext).result();
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, result.status());
+        assertEquals("Hit request rate limit. Hour limit: 2 / 2 requests. Day limit: 2 / 10 requests.", result.errorMessage());
+    }
 }
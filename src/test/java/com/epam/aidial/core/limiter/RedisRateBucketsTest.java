@@ -0,0 +1,164 @@
+package com.epam.aidial.core.limiter;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.Redisson;
+import org.redisson.api.RKeys;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.ConfigSupport;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisRateBucketsTest {
+
+    private static RedisServer redisServer;
+
+    private static RedissonClient redissonClient;
+
+    private RedisRateBuckets buckets;
+
+    private RateWindow window;
+
+    @BeforeAll
+    static void beforeAll() throws IOException {
+        redisServer = RedisServer.newRedisServer()
+                .port(16370)
+                .bind("127.0.0.1")
+                .setting("maxmemory 16M")
+                .setting("maxmemory-policy volatile-lfu")
+                .build();
+        redisServer.start();
+        ConfigSupport configSupport = new ConfigSupport();
+        org.redisson.config.Config redisClientConfig = configSupport.fromJSON("""
+                {
+                  "singleServerConfig": {
+                     "address": "redis://localhost:16370"
+                  }
+                }
+                """, org.redisson.config.Config.class);
+
+        redissonClient = Redisson.create(redisClientConfig);
+    }
+
+    @AfterAll
+    static void afterAll() throws IOException {
+        if (redissonClient != null) {
+            redissonClient.shutdown();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        RKeys keys = redissonClient.getKeys();
+        for (String key : keys.getKeys()) {
+            keys.delete(key);
+        }
+        buckets = new RedisRateBuckets(redissonClient, "prefix");
+    }
+
+    @Test
+    void testMinuteBucket() {
+        window = RateWindow.MINUTE;
+
+        update(0, 0);
+        add(0, 10, 10);
+        add(0, 20, 30);
+        update(0, 30);
+
+        add(1, 30, 60);
+        add(59, 40, 100);
+        update(59, 100);
+
+        add(60, 10, 80);
+        update(60, 80);
+
+        add(61, 5, 55);
+        update(61, 55);
+
+        update(121, 0);
+    }
+
+    @Test
+    void testDayBucket() {
+        window = RateWindow.DAY;
+
+        update(0, 0);
+        add(0, 10, 10);
+        add(0, 20, 30);
+        update(0, 30);
+
+        add(1, 30, 60);
+        add(23, 40, 100);
+        update(23, 100);
+
+        add(24, 10, 80);
+        update(24, 80);
+
+        add(25, 5, 55);
+        update(25, 55);
+
+        update(49, 0);
+    }
+
+    @Test
+    void testCheckAndAdd() {
+        String hour = buckets.key("Users/user/", "model", "requests", RateWindow.HOUR);
+        String day = buckets.key("Users/user/", "model", "requests", RateWindow.DAY);
+        long timestamp = RateWindow.DAY.window();
+
+        List<RedisRateBuckets.Operation> operations = List.of(
+                RedisRateBuckets.Operation.checkAndAdd(hour, RateWindow.HOUR, 2, 1),
+                RedisRateBuckets.Operation.checkAndAdd(day, RateWindow.DAY, 10, 1));
+
+        RedisRateBuckets.Result result = buckets.apply(timestamp, operations);
+        assertTrue(result.accepted());
+        assertArrayEquals(new long[] {1, 1}, result.sums());
+
+        result = buckets.apply(timestamp, operations);
+        assertTrue(result.accepted());
+        assertArrayEquals(new long[] {2, 2}, result.sums());
+
+        // the hour limit is hit, so nothing is added to the day bucket
+        result = buckets.apply(timestamp, operations);
+        assertFalse(result.accepted());
+        assertArrayEquals(new long[] {2, 2}, result.sums());
+
+        // the next hour
+        result = buckets.apply(timestamp + RateWindow.HOUR.window(), operations);
+        assertTrue(result.accepted());
+        assertArrayEquals(new long[] {1, 3}, result.sums());
+    }
+
+    private void add(long interval, long count, long expected) {
+        long timestamp = timestamp(interval);
+        String key = buckets.key("Users/user/", "model", "tokens", window);
+        long actual = buckets.apply(timestamp, List.of(RedisRateBuckets.Operation.add(key, window, count))).sums()[0];
+        Assertions.assertEquals(expected, actual);
+    }
+
+    private void update(long interval, long expected) {
+        long timestamp = timestamp(interval);
+        String key = buckets.key("Users/user/", "model", "tokens", window);
+        long actual = buckets.apply(timestamp, List.of(RedisRateBuckets.Operation.read(key, window))).sums()[0];
+        Assertions.assertEquals(expected, actual);
+    }
+
+    private long timestamp(long interval) {
+        long whole = interval * window.interval();
+        long fraction = ThreadLocalRandom.current().nextLong(0, window.interval());
+        return window.window() + whole + fraction;
+    }
+}
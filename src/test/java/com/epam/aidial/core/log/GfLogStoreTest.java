@@ -1,16 +1,26 @@
 package com.epam.aidial.core.log;
 
+import com.epam.deltix.gflog.api.LogEntry;
 import io.vertx.core.buffer.Buffer;
 import org.junit.jupiter.api.Test;
 
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyChar;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 @SuppressWarnings("checkstyle:LineLength")
 public class GfLogStoreTest {
 
+    private static final char REPLACEMENT_CHAR = 0xFFFD;
+
     @Test
     public void testIsStreamingResponse() {
         String batchResponse = """
@@ -169,4 +179,46 @@ public class GfLogStoreTest {
                 {"id":"1d84aa54-e476-405d-9713-386bdfc85993","object":"chat.completion","created":"1687222196","model":"gpt-35-turbo","usage":{"junk_string":"junk","junk_integer":1,"junk_float":1.0,"junk_null":null,"junk_true":true,"junk_false":false,"completion_tokens":10,"prompt_tokens":20,"total_tokens":30},"statistics":{"usage_per_model":[{"index":0,"name":"text-embedding-ada-002","prompt_tokens":23,"total_tokens":23},{"index":1,"name":"gpt-4","prompt_tokens":123,"completion_tokens":17,"total_tokens":140}]},"choices":[{"message":{"role":"assistant","content":"As an AI language model, I don't have emotions, but I'm functioning perfectly well. How can I assist you today?"},"finish_reason":"stop","index":0}]}""";
         assertEquals(expected, res);
     }
+
+    @Test
+    public void testAppendBuffer() {
+        StringBuilder result = new StringBuilder();
+        LogEntry entry = mock(LogEntry.class);
+        doAnswer(invocation -> {
+            result.append(invocation.<Character>getArgument(0));
+            return entry;
+        }).when(entry).append(anyChar());
+
+        CharsetDecoder decoder = GfLogStore.decoder();
+        // smaller than the text, so the text is decoded chunk by chunk
+        CharBuffer chars = CharBuffer.allocate(8);
+
+        String text = "{\"text\": \"line\n\ttab / 你好 😀\"}";
+        GfLogStore.append(entry, Buffer.buffer(text.getBytes(StandardCharsets.UTF_8)), decoder, chars);
+        assertEquals("{\\\"text\\\": \\\"line\\n\\ttab \\/ 你好 😀\\\"}", result.toString());
+
+        result.setLength(0);
+        // truncated sequence of 你
+        GfLogStore.append(entry, Buffer.buffer(new byte[] {'a', (byte) 0xE4, (byte) 0xBD}), decoder, chars);
+        assertEquals("a" + REPLACEMENT_CHAR, result.toString());
+
+        result.setLength(0);
+        // encoded surrogate
+        GfLogStore.append(entry, Buffer.buffer(new byte[] {(byte) 0xED, (byte) 0xA0, (byte) 0x80, 'a'}), decoder, chars);
+        assertEquals(-1, result.indexOf(Character.toString(0xD800)));
+        assertTrue(result.toString().startsWith(Character.toString(REPLACEMENT_CHAR)));
+        assertTrue(result.toString().endsWith("a"));
+
+        result.setLength(0);
+        // overlong encoding of '/'
+        GfLogStore.append(entry, Buffer.buffer(new byte[] {(byte) 0xC0, (byte) 0xAF}), decoder, chars);
+        assertEquals(-1, result.indexOf("/"));
+        assertTrue(result.toString().startsWith(Character.toString(REPLACEMENT_CHAR)));
+
+        result.setLength(0);
+        // code point above U+10FFFF
+        GfLogStore.append(entry, Buffer.buffer(new byte[] {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80}), decoder, chars);
+        assertFalse(result.isEmpty());
+        assertTrue(result.chars().allMatch(c -> c == REPLACEMENT_CHAR));
+    }
 }
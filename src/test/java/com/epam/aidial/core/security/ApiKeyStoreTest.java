@@ -22,16 +22,23 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.redisson.Redisson;
 import org.redisson.api.RKeys;
 import org.redisson.api.RedissonClient;
+import org.redisson.api.redisnode.RedisNode;
+import org.redisson.api.redisnode.RedisNodes;
 import org.redisson.config.ConfigSupport;
 import redis.embedded.RedisServer;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
@@ -49,6 +56,8 @@ public class ApiKeyStoreTest {
     @Mock
     private BlobStorage blobStorage;
 
+    private ResourceService resourceService;
+
     private ApiKeyStore store;
 
     @BeforeAll
@@ -99,7 +108,7 @@ public class ApiKeyStoreTest {
                     "compressionMinSize": 256
                   }
                 """;
-        ResourceService resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
+        resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
         store = new ApiKeyStore(resourceService, vertx);
     }
 
@@ -199,4 +208,172 @@ public class ApiKeyStoreTest {
         assertNotNull(res1);
         assertEquals(ref.getValue(), res1.result());
     }
+
+    @Test
+    public void testSignedApiKey() {
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+        ApiKeyStore signedStore = createSignedStore("secret");
+
+        ApiKeyData apiKeyData = new ApiKeyData();
+        apiKeyData.setTraceId("trace");
+        apiKeyData.getAttachedFiles().put("a/b/file.txt", new AutoSharedData(ResourceAccessType.READ_ONLY));
+        signedStore.assignPerRequestApiKey(apiKeyData);
+
+        String perRequestKey = apiKeyData.getPerRequestKey();
+        assertNotNull(perRequestKey);
+        // nothing is written to Redis
+        assertEquals(0, redissonClient.getKeys().count());
+
+        assertEquals(apiKeyData, signedStore.getApiKeyData(perRequestKey).result());
+
+        signedStore.updatePerRequestApiKey(perRequestKey, json -> {
+            ApiKeyData current = ProxyUtil.convertToObject(json, ApiKeyData.class);
+            current.getAttachedFolders().put("a/c/", new AutoSharedData(ResourceAccessType.ALL));
+            return ProxyUtil.convertToString(current);
+        });
+
+        ApiKeyData result = signedStore.getApiKeyData(perRequestKey).result();
+        assertEquals(Map.of("a/b/file.txt", new AutoSharedData(ResourceAccessType.READ_ONLY)), result.getAttachedFiles());
+        assertEquals(Map.of("a/c/", new AutoSharedData(ResourceAccessType.ALL)), result.getAttachedFolders());
+
+        // the key signed with another secret is unknown
+        assertNull(createSignedStore("other").getApiKeyData(perRequestKey).result());
+        // the key with modified payload is unknown
+        int position = SignedApiKeyCodec.PREFIX.length();
+        char forged = (perRequestKey.charAt(position) == 'A') ? 'B' : 'A';
+        String forgedKey = perRequestKey.substring(0, position) + forged + perRequestKey.substring(position + 1);
+        assertNull(signedStore.getApiKeyData(forgedKey).result());
+    }
+
+    @Test
+    public void testSignedApiKeyIsEncrypted() {
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+        ApiKeyStore signedStore = createSignedStore("secret");
+
+        Key originalKey = new Key();
+        originalKey.setKey("project-root-key");
+        originalKey.setProject("project");
+        ApiKeyData apiKeyData = new ApiKeyData();
+        apiKeyData.setOriginalKey(originalKey);
+        apiKeyData.setExtractedClaims(new ExtractedClaims("user-sub", List.of("admin"), "user-hash", Map.of()));
+        signedStore.assignPerRequestApiKey(apiKeyData);
+
+        String perRequestKey = apiKeyData.getPerRequestKey();
+        String payload = perRequestKey.substring(SignedApiKeyCodec.PREFIX.length(), perRequestKey.lastIndexOf('.'));
+        String decoded = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.ISO_8859_1);
+        for (String secret : List.of("project-root-key", "user-sub", "user-hash")) {
+            assertFalse(perRequestKey.contains(secret), secret);
+            assertFalse(decoded.contains(secret), secret);
+        }
+
+        ApiKeyData result = signedStore.getApiKeyData(perRequestKey).result();
+        assertEquals("project-root-key", result.getOriginalKey().getKey());
+        assertEquals("user-sub", result.getExtractedClaims().sub());
+    }
+
+    @Test
+    public void testSignedApiKeyExpiration() {
+        ApiKeyStore signedStore = new ApiKeyStore(resourceService, vertx, redissonClient,
+                new JsonObject().put("signed", true).put("secret", "secret").put("ttl", -1), null);
+
+        ApiKeyData apiKeyData = new ApiKeyData();
+        signedStore.assignPerRequestApiKey(apiKeyData);
+
+        assertNull(signedStore.getApiKeyData(apiKeyData.getPerRequestKey()).result());
+    }
+
+    @Test
+    public void testSignedApiKeyFallback() {
+        ApiKeyStore signedStore = new ApiKeyStore(resourceService, vertx, redissonClient,
+                new JsonObject().put("signed", true).put("secret", "secret").put("maxSize", 16), null);
+
+        ApiKeyData apiKeyData = new ApiKeyData();
+        signedStore.assignPerRequestApiKey(apiKeyData);
+
+        // the key is too large, so the data is stored in Redis
+        assertFalse(apiKeyData.getPerRequestKey().startsWith(SignedApiKeyCodec.PREFIX));
+        assertTrue(redissonClient.getKeys().count() > 0);
+    }
+
+    /**
+     * Compares the number of Redis commands for the per request key lifecycle: assign, get, update attachments and invalidate.
+     */
+    @Test
+    public void testSignedApiKeyRoundTrips() {
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+
+        long stored = countRedisCommands(() -> runApiKeyLifecycle(store));
+        long signed = countRedisCommands(() -> runApiKeyLifecycle(createSignedStore("secret")));
+
+        assertTrue(signed < stored, "Signed: " + signed + ", stored: " + stored);
+    }
+
+    @Test
+    public void testCachedApiKeyData() {
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+
+        ApiKeyStore cachedStore = new ApiKeyStore(resourceService, vertx, redissonClient,
+                new JsonObject().put("cacheSize", 16).put("cacheExpiration", 60000), null);
+
+        ApiKeyData apiKeyData = new ApiKeyData();
+        apiKeyData.setSourceDeployment("app");
+        cachedStore.assignPerRequestApiKey(apiKeyData);
+        String key = apiKeyData.getPerRequestKey();
+
+        long commands = countRedisCommands(() -> assertEquals("app", cachedStore.getApiKeyData(key).result().getSourceDeployment()));
+        assertEquals(0, commands);
+
+        cachedStore.updatePerRequestApiKey(key, json -> {
+            ApiKeyData current = ProxyUtil.convertToObject(json, ApiKeyData.class);
+            current.getAttachedFiles().put("a/b/file.txt", new AutoSharedData(ResourceAccessType.ALL));
+            return ProxyUtil.convertToString(current);
+        });
+
+        ApiKeyData updated = cachedStore.getApiKeyData(key).result();
+        assertTrue(updated.getAttachedFiles().containsKey("a/b/file.txt"));
+
+        cachedStore.invalidatePerRequestApiKey(apiKeyData);
+        assertNull(cachedStore.getApiKeyData(key).result());
+    }
+
+    private static void runApiKeyLifecycle(ApiKeyStore store) {
+        ApiKeyData apiKeyData = new ApiKeyData();
+        store.assignPerRequestApiKey(apiKeyData);
+        assertNotNull(store.getApiKeyData(apiKeyData.getPerRequestKey()).result());
+        store.updatePerRequestApiKey(apiKeyData.getPerRequestKey(), json -> {
+            ApiKeyData current = ProxyUtil.convertToObject(json, ApiKeyData.class);
+            current.getAttachedFiles().put("a/b/file.txt", new AutoSharedData(ResourceAccessType.ALL));
+            return ProxyUtil.convertToString(current);
+        });
+        store.invalidatePerRequestApiKey(apiKeyData);
+    }
+
+    private static long countRedisCommands(Runnable runnable) {
+        long before = totalRedisCommands();
+        runnable.run();
+        // the command which reads the stats is counted as well
+        return totalRedisCommands() - before - 1;
+    }
+
+    private static long totalRedisCommands() {
+        Map<String, String> stats = redissonClient.getRedisNodes(RedisNodes.SINGLE).getInstance().info(RedisNode.InfoSection.STATS);
+        return Long.parseLong(stats.get("total_commands_processed"));
+    }
+
+    private ApiKeyStore createSignedStore(String secret) {
+        return new ApiKeyStore(resourceService, vertx, redissonClient,
+                new JsonObject().put("signed", true).put("secret", secret), null);
+    }
 }
@@ -1,19 +1,13 @@
 package com.epam.aidial.core.token;
 
 import com.epam.aidial.core.ProxyContext;
-import com.epam.aidial.core.config.ApiKeyData;
-import com.epam.aidial.core.service.LockService;
-import com.epam.aidial.core.service.ResourceService;
-import com.epam.aidial.core.storage.BlobStorage;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
-import io.vertx.core.json.JsonObject;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.redisson.Redisson;
@@ -29,6 +23,7 @@ import java.util.concurrent.Callable;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
@@ -44,10 +39,6 @@ public class TokenStatsTrackerTest {
     @Mock
     private Vertx vertx;
 
-    @Mock
-    private BlobStorage blobStorage;
-
-    @InjectMocks
     private TokenStatsTracker tracker;
 
     @BeforeAll
@@ -87,19 +78,7 @@ public class TokenStatsTrackerTest {
         for (String key : keys.getKeys()) {
             keys.delete(key);
         }
-        LockService lockService = new LockService(redissonClient, null);
-        String resourceConfig = """
-                  {
-                    "maxSize" : 1048576,
-                    "syncPeriod": 60000,
-                    "syncDelay": 120000,
-                    "syncBatch": 4096,
-                    "cacheExpiration": 300000,
-                    "compressionMinSize": 256
-                  }
-                """;
-        ResourceService resourceService = new ResourceService(vertx, redissonClient, blobStorage, lockService, new JsonObject(resourceConfig), null);
-        tracker = new TokenStatsTracker(vertx, resourceService);
+        tracker = new TokenStatsTracker(vertx, redissonClient, null, 60_000);
     }
 
     /**
@@ -116,7 +95,6 @@ public class TokenStatsTrackerTest {
         ProxyContext chatBackend = mock(ProxyContext.class);
         when(chatBackend.getSpanId()).thenReturn("chat");
         when(chatBackend.getTraceId()).thenReturn(traceId);
-        when(chatBackend.getApiKeyData()).thenReturn(new ApiKeyData());
 
         // chat calls app -> core starts span
         tracker.startSpan(chatBackend);
@@ -126,9 +104,6 @@ public class TokenStatsTrackerTest {
         when(app.getSpanId()).thenReturn("app");
         when(app.getTraceId()).thenReturn(traceId);
         when(app.getParentSpanId()).thenReturn("chat");
-        ApiKeyData apiKeyData = new ApiKeyData();
-        apiKeyData.setPerRequestKey("key");
-        when(app.getApiKeyData()).thenReturn(apiKeyData);
 
         // app calls model -> core starts span
         tracker.startSpan(app);
@@ -158,9 +133,47 @@ public class TokenStatsTrackerTest {
         assertEquals(new BigDecimal("10.0"), tokenUsage.getAggCost());
         assertNull(tokenUsage.getCost());
 
-        // core ends span for request to app
+        // core ends span for request to app, the trace expires by itself
         tracker.endSpan(chatBackend);
-        assertNull(tracker.getTokenStats(chatBackend).result());
+        long ttl = redissonClient.getKeys().remainTimeToLive("token_stats:" + traceId);
+        assertTrue(ttl > 0 && ttl <= 60_000);
+
+        // unknown span
+        ProxyContext unknown = mock(ProxyContext.class);
+        when(unknown.getSpanId()).thenReturn("unknown");
+        when(unknown.getTraceId()).thenReturn(traceId);
+        assertNull(tracker.getTokenStats(unknown).result());
+    }
+
+    @Test
+    public void testAggCostIsExact() {
+        when(vertx.executeBlocking(any(Callable.class), eq(false))).thenAnswer(invocation -> {
+            Callable<?> callable = invocation.getArgument(0);
+            return Future.succeededFuture(callable.call());
+        });
+
+        final String traceId = "trace-id";
+        ProxyContext app = mock(ProxyContext.class);
+        when(app.getSpanId()).thenReturn("app");
+        when(app.getTraceId()).thenReturn(traceId);
+        tracker.startSpan(app);
+
+        // the app calls the models three times, the sum of the costs is not exact in binary floating point
+        for (String cost : new String[] {"0.1", "0.2", "0.0000015"}) {
+            ProxyContext model = mock(ProxyContext.class);
+            when(model.getSpanId()).thenReturn("model-" + cost);
+            when(model.getTraceId()).thenReturn(traceId);
+            when(model.getParentSpanId()).thenReturn("app");
+            tracker.startSpan(model);
+
+            TokenUsage modelTokenUsage = new TokenUsage();
+            modelTokenUsage.setCost(new BigDecimal(cost));
+            modelTokenUsage.setAggCost(new BigDecimal(cost));
+            when(model.getTokenUsage()).thenReturn(modelTokenUsage);
+            tracker.updateModelStats(model);
+        }
+
+        assertEquals(new BigDecimal("0.3000015"), tracker.getTokenStats(app).result().getAggCost());
     }
 
 }
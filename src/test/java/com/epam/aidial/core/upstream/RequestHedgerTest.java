@@ -0,0 +1,55 @@
+package com.epam.aidial.core.upstream;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class RequestHedgerTest {
+
+    private final RequestHedger hedger = new RequestHedger(new JsonObject()
+            .put("enabled", true)
+            .put("percentile", 0.9)
+            .put("minDelay", 5)
+            .put("budget", 0.25)
+            .put("window", 10));
+
+    @Test
+    void testDelay() {
+        // no hedges until the window is filled
+        for (int i = 1; i < 10; i++) {
+            Assertions.assertEquals(-1, hedger.onRequest("delay"));
+            hedger.onResponse("delay", i * 10);
+        }
+
+        hedger.onResponse("delay", 100);
+        Assertions.assertEquals(90, hedger.onRequest("delay"));
+
+        for (int i = 0; i < 10; i++) {
+            hedger.onResponse("delay", 1);
+        }
+
+        Assertions.assertEquals(5, hedger.onRequest("delay"));
+    }
+
+    @Test
+    void testBudget() {
+        Assertions.assertFalse(hedger.tryHedge("budget"));
+
+        // every fourth request can be hedged
+        for (int i = 0; i < 4; i++) {
+            hedger.onRequest("budget");
+        }
+
+        Assertions.assertTrue(hedger.tryHedge("budget"));
+        Assertions.assertFalse(hedger.tryHedge("budget"));
+
+        // the unused budget is accumulated up to the quarter of the window
+        for (int i = 0; i < 100; i++) {
+            hedger.onRequest("budget");
+        }
+
+        Assertions.assertTrue(hedger.tryHedge("budget"));
+        Assertions.assertTrue(hedger.tryHedge("budget"));
+        Assertions.assertFalse(hedger.tryHedge("budget"));
+    }
+}
@@ -1,15 +1,28 @@
 package com.epam.aidial.core.upstream;
 
+import com.epam.aidial.core.config.BalancingStrategy;
 import com.epam.aidial.core.config.Model;
 import com.epam.aidial.core.config.Upstream;
+import com.epam.aidial.core.util.MetricUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.json.JsonObject;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 class UpstreamBalancerTest {
 
+    private static final List<String> UPSTREAM_METERS = List.of("aidial.upstream.ejections", "aidial.upstream.breaker.state",
+            "aidial.upstream.throttled", "aidial.upstream.requests.active", "aidial.upstream.tier.requests");
+
     @Test
     void testBalancing() {
         Upstream upstream1 = new Upstream();
@@ -101,4 +114,584 @@ class UpstreamBalancerTest {
         Assertions.assertEquals(2, route.retries());
     }
 
+    @Test
+    void testLeastOutstanding() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Model model = new Model();
+        model.setName("chat");
+        model.setUpstreams(List.of(upstream1, upstream2));
+        model.setBalancingStrategy(BalancingStrategy.LEAST_OUTSTANDING);
+
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer();
+
+        // upstream1 is stuck with a long request
+        UpstreamRoute stuck = balancer.balance(provider);
+        Upstream busy = stuck.next();
+
+        for (int i = 0; i < 10; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            Assertions.assertNotEquals(busy, route.next());
+            route.release();
+        }
+
+        stuck.release();
+        stuck.release(); // misuse, ignored
+
+        UpstreamRoute route1 = balancer.balance(provider);
+        UpstreamRoute route2 = balancer.balance(provider);
+        Assertions.assertNotEquals(route1.next(), route2.next());
+    }
+
+    @Test
+    void testPowerOfTwoChoices() {
+        Upstream slow = new Upstream();
+        slow.setEndpoint("slow");
+
+        Upstream fast = new Upstream();
+        fast.setEndpoint("fast");
+
+        Map<Upstream, Long> delays = Map.of(slow, TimeUnit.MILLISECONDS.toNanos(500), fast, TimeUnit.MILLISECONDS.toNanos(10));
+
+        Model model = new Model();
+        model.setName("chat");
+        model.setUpstreams(List.of(slow, fast));
+        model.setBalancingStrategy(BalancingStrategy.POWER_OF_TWO_CHOICES);
+
+        AtomicLong clock = new AtomicLong();
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(new JsonObject(), clock::get);
+        Map<Upstream, Integer> hits = new HashMap<>();
+
+        for (int i = 0; i < 100; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            Upstream upstream = route.next();
+            clock.addAndGet(delays.get(upstream));
+            route.responded(200);
+            route.release();
+            hits.merge(upstream, 1, Integer::sum);
+        }
+
+        // each upstream is tried once before the latency is known
+        Assertions.assertEquals(1, hits.get(slow));
+        Assertions.assertEquals(99, hits.get(fast));
+    }
+
+    @Test
+    void testPowerOfTwoChoicesInFlight() {
+        Upstream slow = new Upstream();
+        slow.setEndpoint("slow");
+
+        Upstream fast = new Upstream();
+        fast.setEndpoint("fast");
+
+        Model model = new Model();
+        model.setName("chat");
+        model.setUpstreams(List.of(slow, fast));
+        model.setBalancingStrategy(BalancingStrategy.POWER_OF_TWO_CHOICES);
+
+        AtomicLong clock = new AtomicLong();
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(new JsonObject(), clock::get);
+
+        // each upstream is tried once before the latency is known
+        for (int i = 0; i < 2; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            Upstream upstream = route.next();
+            clock.addAndGet(upstream == slow ? 350 : 100);
+            route.responded(200);
+            route.release();
+        }
+
+        // fast is preferred until it has 3 in-flight requests
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(fast, balancer.balance(provider).next());
+        }
+
+        Assertions.assertEquals(slow, balancer.balance(provider).next());
+    }
+
+    @Test
+    void testEjection() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Model model = new Model();
+        model.setName("ejection");
+        model.setUpstreams(List.of(upstream1, upstream2));
+
+        AtomicLong clock = new AtomicLong();
+        JsonObject settings = new JsonObject().put("enabled", true).put("consecutiveFailures", 3).put("cooldown", 1000);
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings, clock::get);
+        Set<Upstream> failing = new HashSet<>(Set.of(upstream1));
+
+        // upstream1 fails the first attempt of every other request until it is ejected
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertEquals(upstream2, send(balancer.balance(provider), failing));
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream1));
+        for (int i = 0; i < 4; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            Assertions.assertEquals(upstream2, route.next());
+            Assertions.assertNull(route.next());
+            route.release();
+        }
+
+        // the probe fails and upstream1 is ejected again
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        UpstreamRoute probe = balancer.balance(provider);
+        Assertions.assertEquals(upstream1, probe.next());
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, state(balancer, model.getName(), upstream1));
+
+        // only one probe at a time
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertEquals(upstream2, route.next());
+        route.release();
+
+        probe.responded(503);
+        Assertions.assertEquals(upstream2, probe.next());
+        probe.release();
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream1));
+
+        // the probe succeeds and upstream1 is back to rotation
+        failing.clear();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        Set<Upstream> used = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            used.add(send(balancer.balance(provider), failing));
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, state(balancer, model.getName(), upstream1));
+        Assertions.assertEquals(Set.of(upstream1, upstream2), used);
+    }
+
+    @Test
+    void testErrorRate() {
+        Upstream upstream = new Upstream();
+        upstream.setEndpoint("upstream");
+
+        Model model = new Model();
+        model.setName("error-rate");
+        model.setUpstreams(List.of(upstream));
+
+        AtomicLong clock = new AtomicLong();
+        JsonObject settings = new JsonObject().put("enabled", true).put("errorRate", 0.5).put("minRequests", 10).put("window", 1000);
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings, clock::get);
+
+        // every other request fails, the window is over before min requests are collected
+        for (int i = 0; i < 8; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            route.next();
+            route.responded(i % 2 == 0 ? 500 : 200);
+            route.release();
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, state(balancer, model.getName(), upstream));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        for (int i = 0; i < 10; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            route.next();
+            route.responded(i % 2 == 1 ? 500 : 200);
+            route.release();
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream));
+
+        // the only upstream is tried even if it is ejected
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertEquals(upstream, route.next());
+        route.release();
+    }
+
+    @Test
+    void testDisabledBreaker() {
+        Upstream upstream = new Upstream();
+        upstream.setEndpoint("upstream");
+
+        Model model = new Model();
+        model.setName("disabled");
+        model.setUpstreams(List.of(upstream));
+
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(new JsonObject().put("enabled", false));
+
+        for (int i = 0; i < 10; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            route.next();
+            route.failed();
+            route.release();
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, state(balancer, model.getName(), upstream));
+    }
+
+    @Test
+    void testRateLimitIsNeutral() {
+        Upstream upstream = new Upstream();
+        upstream.setEndpoint("upstream");
+
+        Model model = new Model();
+        model.setName("rate-limit");
+        model.setUpstreams(List.of(upstream));
+
+        JsonObject settings = new JsonObject().put("enabled", true).put("consecutiveFailures", 3);
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings);
+
+        // the rate limit errors don't reset the consecutive failures
+        for (int status : new int[] {503, 429, 503, 429, 503}) {
+            UpstreamRoute route = balancer.balance(provider);
+            route.next();
+            route.responded(status);
+            route.release();
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream));
+    }
+
+    @Test
+    void testTiers() {
+        Upstream reserved1 = new Upstream();
+        reserved1.setEndpoint("reserved1");
+
+        Upstream reserved2 = new Upstream();
+        reserved2.setEndpoint("reserved2");
+
+        Upstream overflow = new Upstream();
+        overflow.setEndpoint("overflow");
+        overflow.setTier(1);
+
+        Model model = new Model();
+        model.setName("tiers");
+        model.setUpstreams(List.of(overflow, reserved1, reserved2));
+
+        AtomicLong clock = new AtomicLong();
+        JsonObject settings = new JsonObject().put("enabled", true).put("consecutiveFailures", 2).put("cooldown", 1000);
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings, clock::get);
+
+        // the overflow upstream is tried after the reserved ones only
+        for (int i = 0; i < 4; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            Set<Upstream> reserved = new HashSet<>(List.of(route.next(), route.next()));
+            Assertions.assertEquals(Set.of(reserved1, reserved2), reserved);
+            Assertions.assertEquals(overflow, route.next());
+            Assertions.assertNull(route.next());
+            route.release();
+        }
+
+        // the reserved upstreams are rate limited, the requests spill to the overflow one
+        Set<Upstream> failing = new HashSet<>(Set.of(reserved1, reserved2));
+        for (int i = 0; i < 2; i++) {
+            Assertions.assertEquals(overflow, send(balancer.balance(provider), failing));
+        }
+
+        // the reserved upstreams are ejected, so the overflow one is tried first
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertEquals(overflow, route.next());
+        route.release();
+    }
+
+    @Test
+    void testWeights() {
+        Upstream heavy = new Upstream();
+        heavy.setEndpoint("heavy");
+        heavy.setWeight(3);
+
+        Upstream light = new Upstream();
+        light.setEndpoint("light");
+
+        Model model = new Model();
+        model.setName("weights");
+        model.setUpstreams(List.of(heavy, light));
+
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer();
+        Map<Upstream, Integer> hits = new HashMap<>();
+
+        for (int i = 0; i < 100; i++) {
+            UpstreamRoute route = balancer.balance(provider);
+            hits.merge(route.next(), 1, Integer::sum);
+            route.release();
+        }
+
+        Assertions.assertEquals(75, hits.get(heavy));
+        Assertions.assertEquals(25, hits.get(light));
+    }
+
+    @Test
+    void testWeightedLeastOutstanding() {
+        Upstream heavy = new Upstream();
+        heavy.setEndpoint("heavy");
+        heavy.setWeight(2);
+
+        Upstream light = new Upstream();
+        light.setEndpoint("light");
+
+        Model model = new Model();
+        model.setName("weighted-least-outstanding");
+        model.setUpstreams(List.of(heavy, light));
+        model.setBalancingStrategy(BalancingStrategy.LEAST_OUTSTANDING);
+
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer();
+        Map<Upstream, Integer> hits = new HashMap<>();
+
+        // the requests are kept in flight, so the load per weight is balanced
+        for (int i = 0; i < 30; i++) {
+            hits.merge(balancer.balance(provider).next(), 1, Integer::sum);
+        }
+
+        Assertions.assertEquals(20, hits.get(heavy));
+        Assertions.assertEquals(10, hits.get(light));
+    }
+
+    @Test
+    void testThrottling() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Model model = new Model();
+        model.setName("throttling");
+        model.setUpstreams(List.of(upstream1, upstream2));
+
+        AtomicLong clock = new AtomicLong();
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(new JsonObject(), clock::get);
+
+        // upstream1 asks to wait 2 seconds, the request goes to upstream2
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertEquals(upstream1, route.next());
+        route.responded(429);
+        route.throttle(2000);
+        Assertions.assertEquals(upstream2, route.next());
+        route.responded(200);
+        route.release();
+
+        for (int i = 0; i < 4; i++) {
+            route = balancer.balance(provider);
+            Assertions.assertEquals(0, route.getRetryAfter());
+            Assertions.assertEquals(upstream2, route.next());
+            Assertions.assertNull(route.next());
+            route.release();
+        }
+
+        // upstream2 asks to wait 5 seconds, no upstream is left
+        route = balancer.balance(provider);
+        Assertions.assertEquals(upstream2, route.next());
+        route.responded(429);
+        route.throttle(5000);
+        Assertions.assertFalse(route.hasNext());
+        route.release();
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        route = balancer.balance(provider);
+        Assertions.assertFalse(route.hasNext());
+        Assertions.assertEquals(1500, route.getRetryAfter());
+
+        // upstream1 is back once the window expires
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+        route = balancer.balance(provider);
+        Assertions.assertEquals(0, route.getRetryAfter());
+        Assertions.assertEquals(upstream1, route.next());
+        Assertions.assertNull(route.next());
+        route.release();
+    }
+
+    @Test
+    void testHedge() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Upstream upstream3 = new Upstream();
+        upstream3.setEndpoint("upstream3");
+
+        Model model = new Model();
+        model.setName("hedge");
+        model.setUpstreams(List.of(upstream1, upstream2, upstream3));
+
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer();
+
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertNull(route.hedge());
+        Assertions.assertEquals(upstream1, route.next());
+
+        // the hedge takes the next upstream, so the route doesn't retry it
+        UpstreamRoute hedge = route.hedge();
+        Assertions.assertEquals(upstream2, hedge.next());
+        Assertions.assertFalse(hedge.hasNext());
+        Assertions.assertEquals(upstream3, route.next());
+        Assertions.assertNull(route.hedge());
+
+        hedge.release();
+        route.release();
+    }
+
+    @Test
+    void testAffinity() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Upstream upstream3 = new Upstream();
+        upstream3.setEndpoint("upstream3");
+
+        Model model = new Model();
+        model.setName("affinity");
+        model.setUpstreams(List.of(upstream1, upstream2, upstream3));
+
+        JsonObject settings = new JsonObject().put("enabled", true).put("consecutiveFailures", 1).put("cooldown", 1000);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings, new AtomicLong()::get);
+        Set<Upstream> used = new HashSet<>();
+
+        // each conversation sticks to its upstream
+        for (int i = 0; i < 20; i++) {
+            UpstreamProvider provider = new DeploymentUpstreamProvider(model, "conversation" + i);
+            UpstreamRoute route = balancer.balance(provider);
+            Upstream upstream = route.next();
+            route.release();
+
+            for (int j = 0; j < 3; j++) {
+                route = balancer.balance(provider);
+                Assertions.assertEquals(upstream, route.next());
+                route.release();
+            }
+
+            used.add(upstream);
+        }
+
+        Assertions.assertTrue(used.size() > 1);
+
+        // the hot conversation spills to the other upstreams
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model, "hot");
+        UpstreamRoute first = balancer.balance(provider);
+        Upstream preferred = first.next();
+        first.release();
+
+        Map<Upstream, Integer> hits = new HashMap<>();
+        for (int i = 0; i < 12; i++) {
+            hits.merge(balancer.balance(provider).next(), 1, Integer::sum);
+        }
+
+        Assertions.assertEquals(5, hits.get(preferred));
+        Assertions.assertEquals(3, hits.size());
+
+        // the conversation falls back to the other upstreams when its upstream fails
+        UpstreamProvider failing = new DeploymentUpstreamProvider(model, "failing");
+        UpstreamRoute route = balancer.balance(failing);
+        Upstream broken = route.next();
+        route.responded(503);
+        route.release();
+
+        route = balancer.balance(failing);
+        Assertions.assertNotEquals(broken, route.next());
+        route.release();
+    }
+
+    @Test
+    void testStateEviction() {
+        Upstream upstream1 = new Upstream();
+        upstream1.setEndpoint("upstream1");
+
+        Upstream upstream2 = new Upstream();
+        upstream2.setEndpoint("upstream2");
+
+        Model model = new Model();
+        model.setName("eviction");
+        model.setUpstreams(List.of(upstream1, upstream2));
+
+        AtomicLong clock = new AtomicLong();
+        JsonObject settings = new JsonObject().put("enabled", true).put("consecutiveFailures", 1).put("cooldown", 1000);
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(settings, clock::get);
+
+        Assertions.assertEquals(upstream2, send(balancer.balance(provider), Set.of(upstream1)));
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream1));
+
+        // the state of the upstreams is kept while they are requested
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(9));
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, state(balancer, model.getName(), upstream1));
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        balancer.cleanUp();
+        Assertions.assertNull(state(balancer, model.getName(), upstream1));
+        Assertions.assertNull(state(balancer, model.getName(), upstream2));
+
+        UpstreamRoute route = balancer.balance(provider);
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, state(balancer, model.getName(), upstream1));
+        route.release();
+    }
+
+    @Test
+    void testMeterEviction() {
+        Upstream upstream = new Upstream();
+        upstream.setEndpoint("upstream");
+
+        Model model = new Model();
+        model.setName("meter-eviction");
+        model.setUpstreams(List.of(upstream));
+
+        AtomicLong clock = new AtomicLong();
+        UpstreamProvider provider = new DeploymentUpstreamProvider(model);
+        UpstreamBalancer balancer = new UpstreamBalancer(new JsonObject(), clock::get);
+        balancer.balance(provider).release();
+
+        MeterRegistry registry = MetricUtil.registry();
+        for (String meter : UPSTREAM_METERS) {
+            Assertions.assertNotNull(registry.find(meter).tag("deployment", model.getName()).meter(), meter);
+        }
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(11));
+        balancer.cleanUp();
+
+        for (String meter : UPSTREAM_METERS) {
+            Assertions.assertNull(registry.find(meter).tag("deployment", model.getName()).meter(), meter);
+        }
+    }
+
+    /**
+     * Sends the request to the fake upstreams which respond with 503 if failing.
+     *
+     * @return the upstream which responded with success.
+     */
+    private static Upstream send(UpstreamRoute route, Set<Upstream> failing) {
+        try {
+            for (Upstream upstream = route.next(); upstream != null; upstream = route.next()) {
+                if (failing.contains(upstream)) {
+                    route.responded(503);
+                } else {
+                    route.responded(200);
+                    return upstream;
+                }
+            }
+            return null;
+        } finally {
+            route.release();
+        }
+    }
+
+    private static CircuitBreaker.State state(UpstreamBalancer balancer, String name, Upstream upstream) {
+        return balancer.getBreakerState(name, upstream.getEndpoint());
+    }
 }
@@ -0,0 +1,66 @@
+package com.epam.aidial.core.upstream;
+
+import com.epam.aidial.core.config.Model;
+import com.epam.aidial.core.config.UpstreamProtocol;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+public class UpstreamClientsTest {
+
+    @Test
+    void testHttp1(Vertx vertx, VertxTestContext context) {
+        check(vertx, context, UpstreamProtocol.HTTP_1_1, HttpVersion.HTTP_1_1);
+    }
+
+    @Test
+    void testH2c(Vertx vertx, VertxTestContext context) {
+        check(vertx, context, UpstreamProtocol.H2C, HttpVersion.HTTP_2);
+    }
+
+    @Test
+    void testH2Upgrade(Vertx vertx, VertxTestContext context) {
+        check(vertx, context, UpstreamProtocol.H2, HttpVersion.HTTP_2);
+    }
+
+    private static void check(Vertx vertx, VertxTestContext context, UpstreamProtocol protocol, HttpVersion expected) {
+        UpstreamClients clients = new UpstreamClients(vertx, vertx.createHttpClient(new HttpClientOptions()), new JsonObject());
+
+        vertx.createHttpServer()
+                .requestHandler(request -> request.response().end(request.version().name()))
+                .listen(0, "localhost")
+                .compose(server -> send(clients, server, protocol))
+                .onComplete(context.succeeding(version -> context.verify(() -> {
+                    assertEquals(expected.name(), version);
+                    context.completeNow();
+                })));
+    }
+
+    private static Future<String> send(UpstreamClients clients, HttpServer server, UpstreamProtocol protocol) {
+        Model model = new Model();
+        model.setEndpoint("http://localhost:" + server.actualPort() + "/test");
+        model.setProtocol(protocol);
+        model.setMaxConcurrentStreams(10);
+
+        RequestOptions options = new RequestOptions()
+                .setAbsoluteURI(model.getEndpoint())
+                .setMethod(HttpMethod.GET);
+
+        return clients.request(model, options)
+                .compose(request -> request.send())
+                .compose(response -> response.body())
+                .map(body -> body.toString());
+    }
+}
@@ -0,0 +1,147 @@
+package com.epam.aidial.core.util;
+
+import com.epam.aidial.core.function.BaseResponseFunction;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.streams.ReadStream;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class BufferingReadStreamTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private final BaseResponseFunction fn = new BaseResponseFunction(null, null) {
+        @Override
+        public Future<Void> apply(ObjectNode json) {
+            events.add(json.toString());
+            return Future.succeededFuture();
+        }
+    };
+
+    @Test
+    public void testUnbounded() {
+        TestStream origin = new TestStream();
+        BufferingReadStream stream = new BufferingReadStream(origin, 4);
+        List<String> chunks = new ArrayList<>();
+        stream.handler(chunk -> chunks.add(chunk.toString()));
+
+        origin.send("0123456789");
+        origin.send("abcdefghij");
+        origin.end();
+
+        assertEquals(List.of("0123456789", "abcdefghij"), chunks);
+        assertEquals("0123456789abcdefghij", stream.getContent().toString());
+        assertFalse(stream.isTruncated());
+        assertNull(stream.getAssembler());
+        assertEquals(20, stream.getMaxRetained());
+    }
+
+    @Test
+    public void testBounded() {
+        TestStream origin = new TestStream();
+        BufferingReadStream stream = new BufferingReadStream(origin, 1024, null, 8);
+        List<String> chunks = new ArrayList<>();
+        stream.handler(chunk -> chunks.add(chunk.toString()));
+
+        origin.send("0123456789");
+        origin.send("abcdefghij");
+        origin.send("klmnopqrst");
+        origin.end();
+
+        assertEquals(List.of("0123456789", "abcdefghij", "klmnopqrst"), chunks);
+        assertTrue(stream.isTruncated());
+        assertTrue(stream.getContent().toString().endsWith("mnopqrst"));
+        assertTrue(stream.getMaxRetained() <= 2 * 8 + 10);
+        assertTrue(stream.isReleased());
+    }
+
+    @Test
+    public void testBoundedEventStream() {
+        TestStream origin = new TestStream();
+        BufferingReadStream stream = new BufferingReadStream(origin, 1024, fn, 64);
+        List<String> chunks = new ArrayList<>();
+        stream.handler(chunk -> chunks.add(chunk.toString()));
+
+        for (int i = 0; i < 10; i++) {
+            origin.send("data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"chunk " + i + "\"}}]}\n\n");
+        }
+        origin.send("data: {\"choices\":[{\"index\":0,\"finish_reason\":\"stop\",\"delta\":{}}],"
+                + "\"usage\":{\"completion_tokens\":10,\"prompt_tokens\":20,\"total_tokens\":30}}\n\n");
+        origin.send("data: [DONE]\n\n");
+        origin.end();
+
+        // the last chunk is sent on end
+        assertEquals(11, chunks.size());
+        assertEquals(11, events.size());
+        assertTrue(stream.isTruncated());
+
+        StreamingResponseAssembler assembler = stream.getAssembler();
+        assertNotNull(assembler);
+        assertEquals(60, assembler.getContentLength());
+        assertEquals(30, assembler.getTokenUsage().getTotalTokens());
+
+        HttpServerResponse response = mock(HttpServerResponse.class);
+        stream.end(response);
+        verify(response).end(Buffer.buffer("data: [DONE]\n\n"));
+    }
+
+    private static class TestStream implements ReadStream<Buffer> {
+
+        private Handler<Buffer> handler;
+        private Handler<Void> endHandler;
+
+        void send(String chunk) {
+            handler.handle(Buffer.buffer(chunk));
+        }
+
+        void end() {
+            endHandler.handle(null);
+        }
+
+        @Override
+        public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> pause() {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> resume() {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> fetch(long amount) {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+    }
+}
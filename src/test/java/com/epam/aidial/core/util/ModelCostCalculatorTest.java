@@ -5,6 +5,8 @@ import com.epam.aidial.core.config.Model;
 import com.epam.aidial.core.config.ModelType;
 import com.epam.aidial.core.config.Pricing;
 import com.epam.aidial.core.token.TokenUsage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.vertx.core.buffer.Buffer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -63,6 +65,20 @@ public class ModelCostCalculatorTest {
         assertEquals(new BigDecimal("6.0"), ModelCostCalculator.calculate(context));
     }
 
+    @Test
+    public void testCalculate_CachedResponse() {
+        Model model = new Model();
+        Pricing pricing = new Pricing();
+        pricing.setPrompt("0.1");
+        pricing.setCompletion("0.5");
+        pricing.setUnit("token");
+        model.setPricing(pricing);
+        when(context.getDeployment()).thenReturn(model);
+        when(context.isResponseCached()).thenReturn(true);
+
+        assertEquals(BigDecimal.ZERO, ModelCostCalculator.calculate(context));
+    }
+
     @Test
     public void testCalculate_LengthCost_Chat_StreamIsFalse_Success() {
         Model model = new Model();
@@ -115,7 +131,7 @@ public class ModelCostCalculatorTest {
                   "stream": false
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
 
         assertEquals(new BigDecimal("13.0"), ModelCostCalculator.calculate(context));
     }
@@ -153,7 +169,7 @@ public class ModelCostCalculatorTest {
                   "stream": false
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
 
         assertEquals(new BigDecimal("1.0"), ModelCostCalculator.calculate(context));
     }
@@ -203,7 +219,8 @@ public class ModelCostCalculatorTest {
                   "stream": true
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
+        when(context.isStreamingRequest()).thenReturn(true);
 
         assertEquals(new BigDecimal("6.5"), ModelCostCalculator.calculate(context));
     }
@@ -253,7 +270,8 @@ public class ModelCostCalculatorTest {
                   "stream": true
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
+        when(context.isStreamingRequest()).thenReturn(true);
 
         assertEquals(new BigDecimal("5.5"), ModelCostCalculator.calculate(context));
     }
@@ -279,7 +297,7 @@ public class ModelCostCalculatorTest {
                   "input": ["text", "123"]
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
 
         assertEquals(new BigDecimal("0.7"), ModelCostCalculator.calculate(context));
     }
@@ -305,8 +323,16 @@ public class ModelCostCalculatorTest {
                   "input": "text"
                 }
                 """;
-        when(context.getRequestBody()).thenReturn(Buffer.buffer(request));
+        when(context.getRequestContentLength()).thenReturn(requestContentLength(model, request));
 
         assertEquals(new BigDecimal("0.4"), ModelCostCalculator.calculate(context));
     }
+
+    private static int requestContentLength(Model model, String request) {
+        try {
+            return ModelCostCalculator.getRequestContentLength(model.getType(), (ObjectNode) ProxyUtil.MAPPER.readTree(request));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
 }
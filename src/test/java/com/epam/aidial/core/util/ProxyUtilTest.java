@@ -7,15 +7,18 @@ import com.epam.aidial.core.data.Prompt;
 import com.epam.aidial.core.data.ResourceAccessType;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.vertx.core.MultiMap;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -450,4 +453,26 @@ public class ProxyUtilTest {
 
     }
 
+    @Test
+    public void testCopyHeaders() {
+        MultiMap from = MultiMap.caseInsensitiveMultiMap()
+                .add(":method", "POST")
+                .add(":path", "/openai/deployments/gpt-4/chat/completions")
+                .add(":authority", "localhost:8080")
+                .add("Connection", "keep-alive, X-Hop")
+                .add("X-Hop", "hop")
+                .add("Transfer-Encoding", "chunked")
+                .add("Proxy-Connection", "keep-alive")
+                .add("Content-Type", "application/json")
+                .add("X-Custom", "value1")
+                .add("X-Custom", "value2");
+
+        MultiMap to = MultiMap.caseInsensitiveMultiMap();
+        ProxyUtil.copyHeaders(from, to);
+
+        assertEquals(2, to.names().size());
+        assertEquals("application/json", to.get("content-type"));
+        assertEquals(List.of("value1", "value2"), to.getAll("x-custom"));
+        assertFalse(to.contains("x-hop"));
+    }
 }
@@ -0,0 +1,57 @@
+package com.epam.aidial.core.util;
+
+import io.vertx.core.MultiMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RateLimitHeadersTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    void testRetryAfter() {
+        assertEquals(0, backoff(MultiMap.caseInsensitiveMultiMap()));
+        assertEquals(20_000, backoff(headers().add("retry-after", "20")));
+        assertEquals(1500, backoff(headers().add("retry-after-ms", "1500")));
+        assertEquals(30_000, backoff(headers().add("Retry-After", "Tue, 14 Nov 2023 22:13:50 GMT")));
+        assertEquals(0, backoff(headers().add("Retry-After", "Tue, 14 Nov 2023 22:13:00 GMT")));
+        assertEquals(0, backoff(headers().add("Retry-After", "soon")));
+    }
+
+    @Test
+    void testRemaining() {
+        assertEquals(0, backoff(headers()
+                .add("x-ratelimit-remaining-requests", "5")
+                .add("x-ratelimit-reset-requests", "10s")));
+        assertEquals(10_000, backoff(headers()
+                .add("x-ratelimit-remaining-requests", "0")
+                .add("x-ratelimit-reset-requests", "10s")));
+        assertEquals(360_500, backoff(headers()
+                .add("x-ratelimit-remaining-tokens", "0")
+                .add("x-ratelimit-reset-tokens", "6m0.5s")));
+        assertEquals(1000, backoff(headers().add("x-ratelimit-remaining-tokens", "0")));
+
+        // the longest wait is taken
+        assertEquals(20_000, backoff(headers()
+                .add("retry-after", "20")
+                .add("x-ratelimit-remaining-requests", "0")
+                .add("x-ratelimit-reset-requests", "20ms")));
+    }
+
+    @Test
+    void testDuration() {
+        assertEquals(20, RateLimitHeaders.parseDuration("20ms"));
+        assertEquals(1500, RateLimitHeaders.parseDuration("1.5s"));
+        assertEquals(3_723_000, RateLimitHeaders.parseDuration("1h2m3s"));
+        assertEquals(0, RateLimitHeaders.parseDuration("unknown"));
+    }
+
+    private static MultiMap headers() {
+        return MultiMap.caseInsensitiveMultiMap();
+    }
+
+    private static long backoff(MultiMap headers) {
+        return RateLimitHeaders.getBackoff(headers, NOW);
+    }
+}
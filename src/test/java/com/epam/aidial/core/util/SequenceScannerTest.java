@@ -0,0 +1,45 @@
+package com.epam.aidial.core.util;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SequenceScannerTest {
+
+    @Test
+    public void testFound() {
+        SequenceScanner scanner = new SequenceScanner("\"attachments\"");
+        assertFalse(scanner.scan(Buffer.buffer("{\"messages\":[{\"custom_content\":{")));
+        assertTrue(scanner.scan(Buffer.buffer("\"attachments\":[]}}]}")));
+        // the sequence stays found
+        assertTrue(scanner.scan(Buffer.buffer("{}")));
+    }
+
+    @Test
+    public void testFoundAcrossChunks() {
+        SequenceScanner scanner = new SequenceScanner("\"attachments\"");
+        assertFalse(scanner.scan(Buffer.buffer("{\"custom_content\":{\"att")));
+        assertFalse(scanner.scan(Buffer.buffer("ach")));
+        assertFalse(scanner.scan(Buffer.buffer("")));
+        assertTrue(scanner.scan(Buffer.buffer("ments\":[]}")));
+    }
+
+    @Test
+    public void testFoundAfterPartialMatch() {
+        SequenceScanner scanner = new SequenceScanner("abab");
+        assertFalse(scanner.scan(Buffer.buffer("aba")));
+        assertTrue(scanner.scan(Buffer.buffer("bab")));
+
+        scanner = new SequenceScanner("\"attachments\"");
+        assertTrue(scanner.scan(Buffer.buffer("\"\"attach\"attachments\"")));
+    }
+
+    @Test
+    public void testNotFound() {
+        SequenceScanner scanner = new SequenceScanner("\"attachments\"");
+        assertFalse(scanner.scan(Buffer.buffer("{\"content\":\"the attachments\",")));
+        assertFalse(scanner.scan(Buffer.buffer("\"content\":\"\\\"attachments\\\"\"}")));
+    }
+}
@@ -0,0 +1,68 @@
+package com.epam.aidial.core.util;
+
+import com.epam.aidial.core.token.TokenUsage;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class StreamingResponseAssemblerTest {
+
+    @Test
+    public void testAssemble() throws Exception {
+        StreamingResponseAssembler assembler = new StreamingResponseAssembler();
+        append(assembler, """
+                {"id":"chatcmpl-1","object":"chat.completion.chunk","created":1687780896,"model":"gpt-35-turbo",\
+                "choices":[{"index":0,"finish_reason":null,"delta":{"role":"assistant"}}],"usage":null}
+                """);
+        append(assembler, """
+                {"id":"chatcmpl-1","object":"chat.completion.chunk","created":1687780896,"model":"gpt-35-turbo",\
+                "choices":[{"index":0,"finish_reason":null,"delta":{"content":"As an"}}],"usage":null}
+                """);
+        append(assembler, """
+                {"id":"chatcmpl-1","object":"chat.completion.chunk","created":1687780896,"model":"gpt-35-turbo",\
+                "choices":[{"index":0,"finish_reason":null,\
+                "delta":{"content":" AI","custom_content":{"attachments":[{"url":"files/bucket/a.txt"}]}}}],"usage":null}
+                """);
+        append(assembler, """
+                {"id":"chatcmpl-1","object":"chat.completion.chunk","created":1687780896,"model":"gpt-35-turbo",\
+                "choices":[{"index":0,"finish_reason":"stop","delta":{}}],"usage":{"completion_tokens":10,"prompt_tokens":20,"total_tokens":30}}
+                """);
+
+        String expected = """
+                {"id":"chatcmpl-1","object":"chat.completion","created":1687780896,"model":"gpt-35-turbo",\
+                "usage":{"completion_tokens":10,"prompt_tokens":20,"total_tokens":30},\
+                "choices":[{"message":{"custom_content":{"attachments":[{"url":"files/bucket/a.txt"}]},"role":"assistant","content":"As an AI"},\
+                "finish_reason":"stop","index":0}]}""";
+        assertEquals(expected, assembler.assemble());
+        // assembling doesn't change the state
+        assertEquals(expected, assembler.assemble());
+        assertEquals(6, assembler.getContentLength());
+
+        TokenUsage usage = assembler.getTokenUsage();
+        assertNotNull(usage);
+        assertEquals(10, usage.getCompletionTokens());
+        assertEquals(20, usage.getPromptTokens());
+        assertEquals(30, usage.getTotalTokens());
+    }
+
+    @Test
+    public void testAssembleError() throws Exception {
+        StreamingResponseAssembler assembler = new StreamingResponseAssembler();
+        assertEquals("{}", assembler.assemble());
+
+        append(assembler, """
+                {"id":"chatcmpl-1","created":1687780896,"error":{"message":"failed"}}
+                """);
+
+        assertEquals("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"created\":1687780896,\"model\":null}", assembler.assemble());
+        assertEquals(0, assembler.getContentLength());
+        assertNull(assembler.getTokenUsage());
+    }
+
+    private static void append(StreamingResponseAssembler assembler, String chunk) throws Exception {
+        assembler.append((ObjectNode) ProxyUtil.MAPPER.readTree(chunk));
+    }
+}